@@ -32,6 +32,7 @@ import androidx.multidex.MultiDexApplication;
 import org.conscrypt.Conscrypt;
 import org.session.libsession.messaging.MessagingConfiguration;
 import org.session.libsession.messaging.avatars.AvatarHelper;
+import org.session.libsession.messaging.jobs.JobQueue;
 import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
 import org.session.libsession.messaging.threads.Address;
 import org.session.libsession.utilities.SSKEnvironment;
@@ -201,6 +202,9 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
         initializeWebRtc();
         initializeBlobProvider();
         SSKEnvironment.Companion.configure(getTypingStatusRepository(), getReadReceiptManager(), getProfileManager(), messageNotifier, getExpiringMessageManager());
+        if (userPublicKey != null) {
+            AsyncTask.execute(() -> JobQueue.Companion.getShared().resumePendingJobs());
+        }
     }
 
     @Override
@@ -70,6 +70,7 @@ object FullBackupImporter {
                         frame.hasAvatar() -> processAvatar(context, frame.avatar, inputStream)
                     }
                 }
+                repairMessageCounts(db)
                 trimEntriesForExpiredMessages(context, db)
                 db.setTransactionSuccessful()
             }
@@ -78,6 +79,8 @@ object FullBackupImporter {
                 db.endTransaction()
             }
         }
+        // The restored messages replaced the ones whose dedup keys are cached
+        DatabaseFactory.getMmsSmsDatabase(context).clearDedupCache()
         EventBus.getDefault().post(BackupEvent.createFinished())
     }
 
@@ -172,6 +175,15 @@ object FullBackupImporter {
         }
     }
 
+    private fun repairMessageCounts(db: SQLiteDatabase) {
+        // Older backups don't contain the message count triggers, and newer ones restore them before the messages, which
+        // then get counted on top of the restored counts
+        for (statement in ThreadDatabase.CREATE_MESSAGE_COUNT_TRIGGERS) {
+            db.execSQL(statement)
+        }
+        db.execSQL(ThreadDatabase.REPAIR_MESSAGE_COUNTS)
+    }
+
     private fun trimEntriesForExpiredMessages(context: Context, db: SQLiteDatabase) {
         val trimmedCondition = " NOT IN (SELECT ${MmsDatabase.ID} FROM ${MmsDatabase.TABLE_NAME})"
         db.delete(GroupReceiptDatabase.TABLE_NAME, GroupReceiptDatabase.MMS_ID + trimmedCondition, null)
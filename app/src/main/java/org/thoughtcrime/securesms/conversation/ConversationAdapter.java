@@ -22,6 +22,8 @@ import androidx.annotation.LayoutRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.util.SparseArray;
@@ -34,6 +36,7 @@ import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.BindableConversationItem;
 import org.thoughtcrime.securesms.conversation.ConversationAdapter.HeaderViewHolder;
+import org.thoughtcrime.securesms.database.ConversationChanges;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.FastCursorRecyclerViewAdapter;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
@@ -57,6 +60,7 @@ import org.session.libsession.utilities.Util;
 import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -199,6 +203,43 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     super.changeCursor(cursor);
   }
 
+  /**
+   * Swaps in a reloaded cursor for the same conversation. The records of messages that didn't
+   * change are kept, and only the rows that were added, removed or changed (or whose neighbours
+   * changed) are rebound. If {@code changedMessageKeys} is null any message might have changed, and
+   * everything is reloaded.
+   */
+  public void changeCursor(@Nullable Cursor cursor, @Nullable Set<String> changedMessageKeys) {
+    Cursor oldCursor = getCursor();
+
+    if (cursor == oldCursor) {
+      return;
+    }
+
+    int oldFastAccessSize = getFastAccessSize();
+    super.cleanFastRecords();
+
+    if (changedMessageKeys == null || cursor == null || oldCursor == null || oldCursor.isClosed() || !isActiveCursor() || getFastAccessSize() != oldFastAccessSize) {
+      changeCursor(cursor);
+      return;
+    }
+
+    List<String> oldMessageKeys = getMessageKeys(oldCursor);
+    List<String> newMessageKeys = getMessageKeys(cursor);
+
+    for (String messageKey : changedMessageKeys) {
+      messageRecordCache.remove(messageKey);
+    }
+    positionToCacheRef.clear();
+
+    DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new MessageKeyDiffCallback(oldMessageKeys, newMessageKeys, changedMessageKeys), false);
+
+    swapCursor(cursor, false);
+    oldCursor.close();
+
+    diff.dispatchUpdatesTo(new OffsetListUpdateCallback((hasHeaderView() ? 1 : 0) + getFastAccessSize()));
+  }
+
   @Override
   protected void onBindItemViewHolder(ViewHolder viewHolder, @NonNull MessageRecord messageRecord) {
     int           adapterPosition = viewHolder.getAdapterPosition();
@@ -346,21 +387,38 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
 
   @Override
   protected MessageRecord getRecordFromCursor(@NonNull Cursor cursor) {
-    long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
-    String type      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+    String messageKey = getMessageKey(cursor);
 
-    final SoftReference<MessageRecord> reference = messageRecordCache.get(type + messageId);
+    final SoftReference<MessageRecord> reference = messageRecordCache.get(messageKey);
     if (reference != null) {
       final MessageRecord record = reference.get();
       if (record != null) return record;
     }
 
     final MessageRecord messageRecord = db.readerFor(cursor).getCurrent();
-    messageRecordCache.put(type + messageId, new SoftReference<>(messageRecord));
+    messageRecordCache.put(messageKey, new SoftReference<>(messageRecord));
 
     return messageRecord;
   }
 
+  private static @NonNull String getMessageKey(@NonNull Cursor cursor) {
+    long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+    String type      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+
+    return ConversationChanges.getMessageKey(type, messageId);
+  }
+
+  private static @NonNull List<String> getMessageKeys(@NonNull Cursor cursor) {
+    List<String> messageKeys = new ArrayList<>(cursor.getCount());
+
+    for (int i = 0; i < cursor.getCount(); i++) {
+      if (!cursor.moveToPosition(i)) break;
+      messageKeys.add(getMessageKey(cursor));
+    }
+
+    return messageKeys;
+  }
+
   public void close() {
     getCursor().close();
   }
@@ -471,6 +529,75 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     viewHolder.setText(getContext().getResources().getQuantityString(R.plurals.ConversationAdapter_n_unread_messages, (position + 1), (position + 1)));
   }
 
+  private static class MessageKeyDiffCallback extends DiffUtil.Callback {
+
+    private final List<String> oldMessageKeys;
+    private final List<String> newMessageKeys;
+    private final Set<String>  changedMessageKeys;
+
+    MessageKeyDiffCallback(@NonNull List<String> oldMessageKeys, @NonNull List<String> newMessageKeys, @NonNull Set<String> changedMessageKeys) {
+      this.oldMessageKeys     = oldMessageKeys;
+      this.newMessageKeys     = newMessageKeys;
+      this.changedMessageKeys = changedMessageKeys;
+    }
+
+    @Override
+    public int getOldListSize() {
+      return oldMessageKeys.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+      return newMessageKeys.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+      return oldMessageKeys.get(oldItemPosition).equals(newMessageKeys.get(newItemPosition));
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+      // Messages are bound together with their neighbours, so a message whose neighbours changed needs to be rebound as well
+      return !changedMessageKeys.contains(newMessageKeys.get(newItemPosition)) &&
+             Util.equals(getOrNull(oldMessageKeys, oldItemPosition - 1), getOrNull(newMessageKeys, newItemPosition - 1)) &&
+             Util.equals(getOrNull(oldMessageKeys, oldItemPosition + 1), getOrNull(newMessageKeys, newItemPosition + 1));
+    }
+
+    private static @Nullable String getOrNull(@NonNull List<String> messageKeys, int position) {
+      return position >= 0 && position < messageKeys.size() ? messageKeys.get(position) : null;
+    }
+  }
+
+  private class OffsetListUpdateCallback implements ListUpdateCallback {
+
+    private final int offset;
+
+    OffsetListUpdateCallback(int offset) {
+      this.offset = offset;
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+      notifyItemRangeInserted(position + offset, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+      notifyItemRangeRemoved(position + offset, count);
+    }
+
+    @Override
+    public void onMoved(int fromPosition, int toPosition) {
+      notifyItemMoved(fromPosition + offset, toPosition + offset);
+    }
+
+    @Override
+    public void onChanged(int position, int count, @Nullable Object payload) {
+      notifyItemRangeChanged(position + offset, count, payload);
+    }
+  }
+
   static class LastSeenHeader extends StickyHeaderDecoration {
 
     private final ConversationAdapter adapter;
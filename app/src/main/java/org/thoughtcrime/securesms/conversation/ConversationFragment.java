@@ -67,8 +67,10 @@ import org.thoughtcrime.securesms.components.recyclerview.SmoothScrollingLinearL
 import org.thoughtcrime.securesms.conversation.ConversationAdapter.HeaderViewHolder;
 import org.thoughtcrime.securesms.conversation.ConversationAdapter.ItemClickListener;
 import org.session.libsession.messaging.threads.Address;
+import org.thoughtcrime.securesms.database.ConversationChanges;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -116,8 +118,7 @@ import network.loki.messenger.R;
 public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
-  private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String TAG = ConversationFragment.class.getSimpleName();
 
   private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
@@ -132,8 +133,12 @@ public class ConversationFragment extends Fragment
   private long                        threadId;
   private long                        lastSeen;
   private int                         startingPosition;
-  private int                         previousOffset;
+  private ConversationKey             anchor;
+  private int                         anchorPosition;
+  private int                         olderLimit;
+  private int                         newerLimit;
   private int                         activeOffset;
+  private long                        trackedThreadId = -1;
   private boolean                     firstLoad;
   private long                        loaderStartTime;
   private ActionMode                  actionMode;
@@ -170,8 +175,8 @@ public class ConversationFragment extends Fragment
 
     topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
+    initializeLoadMoreView(topLoadMoreView, true);
+    initializeLoadMoreView(bottomLoadMoreView, false);
 
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
@@ -213,6 +218,12 @@ public class ConversationFragment extends Fragment
     ApplicationContext.getInstance(requireContext()).getTypingStatusRepository().getTypists(threadId).removeObservers(this);
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    trackChanges(-1);
+  }
+
   public void onNewIntent() {
     if (actionMode != null) {
       actionMode.finish();
@@ -252,6 +263,8 @@ public class ConversationFragment extends Fragment
     this.startingPosition  = this.getActivity().getIntent().getIntExtra(ConversationActivity.STARTING_POSITION_EXTRA, -1);
     this.firstLoad         = true;
 
+    resetWindow(startingPosition);
+
     OnScrollListener scrollListener = new ConversationScrollListener(getActivity());
     list.addOnScrollListener(scrollListener);
   }
@@ -263,20 +276,54 @@ public class ConversationFragment extends Fragment
       list.addItemDecoration(new StickyHeaderDecoration(adapter, false, false));
 
       setLastSeen(lastSeen);
+      trackChanges(threadId);
       getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
+  private void initializeLoadMoreView(ViewSwitcher loadMoreView, boolean older) {
     loadMoreView.setOnClickListener(v -> {
-      Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
-      getLoaderManager().restartLoader(0, args, ConversationFragment.this);
+      if (older) olderLimit += PARTIAL_CONVERSATION_LIMIT;
+      else       newerLimit += PARTIAL_CONVERSATION_LIMIT;
+
+      getLoaderManager().restartLoader(0, Bundle.EMPTY, ConversationFragment.this);
       loadMoreView.showNext();
-      loadMoreView.setOnClickListener(null);
+      loadMoreView.setEnabled(false);
     });
   }
 
+  private void resetLoadMoreView(ViewSwitcher loadMoreView) {
+    if (loadMoreView.getDisplayedChild() != 0) {
+      loadMoreView.setDisplayedChild(0);
+    }
+    loadMoreView.setEnabled(true);
+  }
+
+  /**
+   * Loads the newest page of the conversation, or if {@code position} is further back than that, a
+   * page centered on the message at that position.
+   */
+  private void resetWindow(int position) {
+    if (position >= PARTIAL_CONVERSATION_LIMIT) {
+      anchorPosition = position;
+      olderLimit     = PARTIAL_CONVERSATION_LIMIT / 2;
+      newerLimit     = PARTIAL_CONVERSATION_LIMIT / 2;
+    } else {
+      anchorPosition = -1;
+      olderLimit     = PARTIAL_CONVERSATION_LIMIT;
+      newerLimit     = 0;
+    }
+    anchor = null;
+  }
+
+  private void trackChanges(long threadId) {
+    if (trackedThreadId == threadId) return;
+
+    if (trackedThreadId != -1) ConversationChanges.stopTracking(trackedThreadId);
+    trackedThreadId = threadId;
+    if (threadId != -1) ConversationChanges.startTracking(threadId);
+  }
+
   private void initializeTypingObserver() {
     if (!TextSecurePreferences.isTypingIndicatorsEnabled(requireContext())) {
       return;
@@ -436,6 +483,7 @@ public class ConversationFragment extends Fragment
 
     if (this.threadId != threadId) {
       this.threadId = threadId;
+      resetWindow(-1);
       initializeListAdapter();
     }
   }
@@ -743,14 +791,7 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
-      offset = Math.max(startingPosition - (limit / 2) + 1, 0);
-      startingPosition -= offset - 1;
-    }
-
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, anchor, anchorPosition, olderLimit, newerLimit, lastSeen);
   }
 
   @Override
@@ -765,33 +806,25 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
-      adapter.setFooterView(topLoadMoreView);
-    } else {
-      adapter.setFooterView(null);
-    }
-
     if (lastSeen == -1) {
       setLastSeen(loader.getLastSeen());
     }
 
-    if (!loader.hasSent() && !recipient.isSystemContact() && !recipient.isGroupRecipient() && recipient.getRegistered() == Recipient.RegisteredState.REGISTERED) {
-//      adapter.setHeaderView(unknownSenderView);
-    } else {
-      clearHeaderIfNotTyping(adapter);
-    }
+    anchor       = loader.getAnchor();
+    activeOffset = loader.getOffset();
 
-    if (loader.hasOffset()) {
-      adapter.setHeaderView(bottomLoadMoreView);
-    }
+    adapter.changeCursor(cursor, ConversationChanges.takeChanges(threadId, loader.getChangesVersion()));
 
-    if (firstLoad || loader.hasOffset()) {
-      previousOffset = loader.getOffset();
-    }
+    resetLoadMoreView(topLoadMoreView);
+    resetLoadMoreView(bottomLoadMoreView);
 
-    activeOffset = loader.getOffset();
+    setFooterView(adapter, loader.hasOlder() ? topLoadMoreView : null);
 
-    adapter.changeCursor(cursor);
+    if (loader.hasNewer()) {
+      setHeaderView(adapter, bottomLoadMoreView);
+    } else {
+      clearHeaderIfNotTyping(adapter);
+    }
 
     int lastSeenPosition = adapter.findLastSeenPosition(lastSeen);
 
@@ -800,21 +833,14 @@ public class ConversationFragment extends Fragment
     }
 
     if (firstLoad) {
-      if (startingPosition >= 0) {
+      if (loader.getAnchorCursorPosition() >= 0) {
+        scrollToStartingPosition(loader.getAnchorCursorPosition() + (adapter.hasHeaderView() ? 1 : 0));
+      } else if (startingPosition >= 0) {
         scrollToStartingPosition(startingPosition);
       } else {
         scrollToLastSeenPosition(lastSeenPosition);
       }
       firstLoad = false;
-    } else if (previousOffset > 0) {
-      int scrollPosition = previousOffset + getListLayoutManager().findFirstVisibleItemPosition();
-      scrollPosition = Math.min(scrollPosition, count - 1);
-
-      View firstView = list.getLayoutManager().getChildAt(scrollPosition);
-      int pixelOffset = (firstView == null) ? 0 : (firstView.getBottom() - list.getPaddingBottom());
-
-      getListLayoutManager().scrollToPositionWithOffset(scrollPosition, pixelOffset);
-      previousOffset = 0;
     }
 
     if (lastSeenPosition <= 0) {
@@ -822,9 +848,30 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  private void setHeaderView(@NonNull ConversationAdapter adapter, @Nullable View header) {
+    View previousHeader = adapter.getHeaderView();
+    if (previousHeader == header) return;
+
+    adapter.setHeaderView(header);
+
+    if      (previousHeader == null) adapter.notifyItemInserted(0);
+    else if (header == null)         adapter.notifyItemRemoved(0);
+    else                             adapter.notifyItemChanged(0);
+  }
+
+  private void setFooterView(@NonNull ConversationAdapter adapter, @Nullable View footer) {
+    boolean hadFooter = adapter.hasFooterView();
+    if (hadFooter && footer != null) return;
+
+    adapter.setFooterView(footer);
+
+    if      (!hadFooter && footer != null) adapter.notifyItemInserted(adapter.getItemCount() - 1);
+    else if (hadFooter && footer == null)  adapter.notifyItemRemoved(adapter.getItemCount());
+  }
+
   private void clearHeaderIfNotTyping(ConversationAdapter adapter) {
     if (adapter.getHeaderView() != typingView) {
-      adapter.setHeaderView(null);
+      setHeaderView(adapter, null);
     }
   }
 
@@ -907,10 +954,12 @@ public class ConversationFragment extends Fragment
   private void moveToMessagePosition(int position, @Nullable Runnable onMessageNotFound) {
     Log.d(TAG, "Moving to message position: " + position + "  activeOffset: " + activeOffset + "  cursorCount: " + getListAdapter().getCursorCount());
 
-    if (position >= activeOffset && position >= 0 && position < getListAdapter().getCursorCount()) {
-      int offset = activeOffset > 0 ? activeOffset - 1 : 0;
-      list.scrollToPosition(position - offset);
-      getListAdapter().pulseHighlightItem(position - offset);
+    int cursorPosition = position - activeOffset;
+
+    if (position >= 0 && cursorPosition >= 0 && cursorPosition < getListAdapter().getCursorCount()) {
+      int adapterPosition = cursorPosition + (getListAdapter().hasHeaderView() ? 1 : 0);
+      list.scrollToPosition(adapterPosition);
+      getListAdapter().pulseHighlightItem(adapterPosition);
     } else if (position < 0) {
       Log.w(TAG, "Tried to navigate to message, but it wasn't found.");
       if (onMessageNotFound != null) {
@@ -921,6 +970,7 @@ public class ConversationFragment extends Fragment
 
       firstLoad        = true;
       startingPosition = position;
+      resetWindow(position);
       getLoaderManager().restartLoader(0, Bundle.EMPTY, ConversationFragment.this);
     }
   }
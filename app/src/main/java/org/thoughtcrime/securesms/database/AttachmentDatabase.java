@@ -216,7 +216,7 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_FAILED);
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
-    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
+    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId), MmsSmsDatabase.MMS_TRANSPORT, mmsId);
   }
 
   public @Nullable DatabaseAttachment getAttachment(@NonNull AttachmentId attachmentId)
@@ -384,7 +384,7 @@ public class AttachmentDatabase extends Database {
       //noinspection ResultOfMethodCallIgnored
       dataInfo.file.delete();
     } else {
-      notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
+      notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId), MmsSmsDatabase.MMS_TRANSPORT, mmsId);
       notifyConversationListListeners();
     }
 
@@ -525,7 +525,7 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
     database.update(TABLE_NAME, values, PART_ID_WHERE, ((DatabaseAttachment)attachment).getAttachmentId().toStrings());
 
-    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
+    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId), MmsSmsDatabase.MMS_TRANSPORT, messageId);
     ((DatabaseAttachment) attachment).setUploaded(true);
   }
 
@@ -543,7 +543,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, transferState);
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
-    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
+    notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId), MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   public boolean hasStickerAttachments() {
@@ -824,7 +824,8 @@ public class AttachmentDatabase extends Database {
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
-        notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID))));
+        long mmsId = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId), MmsSmsDatabase.MMS_TRANSPORT, mmsId);
       }
     } finally {
       if (cursor != null) cursor.close();
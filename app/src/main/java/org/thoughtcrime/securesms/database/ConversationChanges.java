@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which messages changed in the conversations that are on screen, so that a reloaded
+ * conversation only has to rebind the messages that actually changed.
+ *
+ * Every change is stamped with a version. A loader grabs {@link #getVersion()} before it queries,
+ * and once its cursor is delivered takes the changes up to that version with
+ * {@link #takeChanges(long, long)}. Changes made while the query was running are left for the
+ * next load, which the same changes will have triggered.
+ *
+ * Messages are identified by {@link #getMessageKey(String, long)}. A change that isn't tied to a
+ * message (or too many changes at once) marks the whole conversation as changed.
+ */
+public final class ConversationChanges {
+
+  private static final int MAX_TRACKED_MESSAGES_PER_THREAD = 500;
+
+  private static final Map<Long, Integer>       trackingCounts  = new HashMap<>();
+  private static final Map<Long, ThreadChanges> changesByThread = new HashMap<>();
+  private static       long                     version         = 0;
+
+  private ConversationChanges() {}
+
+  public static @NonNull String getMessageKey(@NonNull String transport, long messageId) {
+    return transport + messageId;
+  }
+
+  public static synchronized void startTracking(long threadId) {
+    Integer count = trackingCounts.get(threadId);
+    trackingCounts.put(threadId, count == null ? 1 : count + 1);
+  }
+
+  public static synchronized void stopTracking(long threadId) {
+    Integer count = trackingCounts.get(threadId);
+    if (count == null || count <= 1) {
+      trackingCounts.remove(threadId);
+      changesByThread.remove(threadId);
+    } else {
+      trackingCounts.put(threadId, count - 1);
+    }
+  }
+
+  public static synchronized long getVersion() {
+    return version;
+  }
+
+  static synchronized void markThreadChanged(long threadId) {
+    ThreadChanges changes = getChangesIfTracked(threadId);
+    if (changes == null) return;
+
+    changes.threadChangedVersion = ++version;
+    changes.messageVersions.clear();
+  }
+
+  static synchronized void markMessageChanged(long threadId, @NonNull String messageKey) {
+    ThreadChanges changes = getChangesIfTracked(threadId);
+    if (changes == null) return;
+
+    if (changes.messageVersions.size() >= MAX_TRACKED_MESSAGES_PER_THREAD) {
+      markThreadChanged(threadId);
+    } else {
+      changes.messageVersions.put(messageKey, ++version);
+    }
+  }
+
+  /**
+   * Removes and returns the keys of the messages in the given thread that changed at or before
+   * {@code upToVersion}, or returns null if the whole thread should be considered changed.
+   */
+  public static synchronized @Nullable Set<String> takeChanges(long threadId, long upToVersion) {
+    ThreadChanges changes = changesByThread.get(threadId);
+    if (changes == null) return new HashSet<>();
+
+    boolean threadChanged = changes.threadChangedVersion > 0;
+    if (changes.threadChangedVersion <= upToVersion) {
+      changes.threadChangedVersion = 0;
+    }
+
+    Set<String>                       messageKeys = new HashSet<>();
+    Iterator<Map.Entry<String, Long>> iterator    = changes.messageVersions.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      if (entry.getValue() <= upToVersion) {
+        messageKeys.add(entry.getKey());
+        iterator.remove();
+      }
+    }
+
+    return threadChanged ? null : messageKeys;
+  }
+
+  private static @Nullable ThreadChanges getChangesIfTracked(long threadId) {
+    if (!trackingCounts.containsKey(threadId)) return null;
+
+    ThreadChanges changes = changesByThread.get(threadId);
+    if (changes == null) {
+      changes = new ThreadChanges();
+      changesByThread.put(threadId, changes);
+    }
+    return changes;
+  }
+
+  private static class ThreadChanges {
+    private final Map<String, Long> messageVersions      = new HashMap<>();
+    private       long              threadChangedVersion = 0;
+  }
+}
@@ -95,6 +95,13 @@ public abstract class CursorRecyclerViewAdapter<VH extends RecyclerView.ViewHold
   }
 
   public Cursor swapCursor(Cursor newCursor) {
+    return swapCursor(newCursor, true);
+  }
+
+  /**
+   * Swaps in a new cursor, optionally leaving it to the caller to notify about what changed.
+   */
+  protected Cursor swapCursor(Cursor newCursor, boolean notifyDataSetChanged) {
     if (newCursor == cursor) {
       return null;
     }
@@ -110,7 +117,9 @@ public abstract class CursorRecyclerViewAdapter<VH extends RecyclerView.ViewHold
     }
 
     valid = cursor != null;
-    notifyDataSetChanged();
+    if (notifyDataSetChanged) {
+      notifyDataSetChanged();
+    }
     return oldCursor;
   }
 
@@ -21,14 +21,20 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import androidx.annotation.NonNull;
 
+import org.session.libsession.utilities.Util;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class Database {
 
   protected static final String ID_WHERE = "_id = ?";
 
+  private static final long CONVERSATION_LIST_NOTIFICATION_DELAY = 250;
+
+  private static final AtomicBoolean conversationListNotificationPending = new AtomicBoolean(false);
+
   protected       SQLCipherOpenHelper databaseHelper;
   protected final Context             context;
 
@@ -43,11 +49,32 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
+    ConversationChanges.markThreadChanged(threadId);
+    notifyConversationMetadataListeners(threadId);
+  }
+
+  protected void notifyConversationListeners(long threadId, @NonNull String transport, long messageId) {
+    ConversationChanges.markMessageChanged(threadId, ConversationChanges.getMessageKey(transport, messageId));
+    notifyConversationMetadataListeners(threadId);
+  }
+
+  protected void notifyConversationMetadataListeners(long threadId) {
     context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
   }
 
+  /**
+   * Changes to the conversation list usually come in bursts (e.g. when a batch of messages is
+   * received), so they're coalesced into a single notification.
+   */
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    if (!conversationListNotificationPending.compareAndSet(false, true)) return;
+
+    Context applicationContext = context.getApplicationContext();
+
+    Util.runOnMainDelayed(() -> {
+      conversationListNotificationPending.set(false);
+      applicationContext.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    }, CONVERSATION_LIST_NOTIFICATION_DELAY);
   }
 
   protected void notifyStickerListeners() {
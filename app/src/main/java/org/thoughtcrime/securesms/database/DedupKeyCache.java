@@ -0,0 +1,144 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An LRU cache of the dedup keys of recently stored messages, in front of the dedup index table.
+ *
+ * A key that's added within a transaction only makes it into the cache once that transaction has
+ * committed, so that a rolled back insert can't leave a key behind for a message that was never
+ * stored. Transactions are followed per thread through {@link #beginTransaction()},
+ * {@link #markTransactionCommitted()} and {@link #endTransaction()}, and savepoints within them
+ * through the savepoint methods. Keys added within a transaction that isn't followed (one that
+ * was started without going through {@link MmsSmsDatabase}) aren't cached at all.
+ */
+final class DedupKeyCache {
+
+  private final Map<String, Boolean>     keys;
+  private final ThreadLocal<PendingKeys> pendingKeys = new ThreadLocal<>();
+
+  DedupKeyCache(final int maxSize) {
+    keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  synchronized boolean contains(@NonNull String key) {
+    return keys.get(key) != null;
+  }
+
+  /**
+   * Caches {@code key}, or holds on to it until the current thread's transaction commits.
+   *
+   * @param isInTransaction whether the calling thread is in a database transaction, followed or not.
+   */
+  void add(@NonNull String key, boolean isInTransaction) {
+    PendingKeys pending = pendingKeys.get();
+
+    if (pending != null) {
+      pending.keys.add(key);
+    } else if (!isInTransaction) {
+      synchronized (this) {
+        keys.put(key, true);
+      }
+    }
+  }
+
+  synchronized void clear() {
+    keys.clear();
+  }
+
+  void beginTransaction() {
+    pendingKeys.set(new PendingKeys());
+  }
+
+  void markTransactionCommitted() {
+    PendingKeys pending = pendingKeys.get();
+    if (pending != null) pending.isCommitted = true;
+  }
+
+  /**
+   * Stops following the current thread's transaction, caching the keys that were added within it
+   * if it committed. Returns whether it committed.
+   */
+  boolean endTransaction() {
+    PendingKeys pending = pendingKeys.get();
+    if (pending == null) return false;
+
+    pendingKeys.remove();
+
+    if (pending.isCommitted) {
+      synchronized (this) {
+        for (String key : pending.keys) {
+          keys.put(key, true);
+        }
+      }
+    }
+
+    return pending.isCommitted;
+  }
+
+  void setSavepoint(@NonNull String name) {
+    PendingKeys pending = pendingKeys.get();
+    if (pending != null) pending.savepoints.add(new Savepoint(name, pending.keys.size()));
+  }
+
+  void releaseSavepoint(@NonNull String name) {
+    PendingKeys pending = pendingKeys.get();
+    if (pending != null) pending.popSavepoint(name);
+  }
+
+  /**
+   * Drops the keys that were added since the savepoint was set, and releases it.
+   */
+  void rollbackToSavepoint(@NonNull String name) {
+    PendingKeys pending = pendingKeys.get();
+    if (pending == null) return;
+
+    Savepoint savepoint = pending.popSavepoint(name);
+    if (savepoint == null) return;
+
+    pending.keys.subList(savepoint.keyCount, pending.keys.size()).clear();
+  }
+
+  private static class PendingKeys {
+    private final List<String>    keys       = new ArrayList<>();
+    private final List<Savepoint> savepoints = new ArrayList<>();
+    private       boolean         isCommitted;
+
+    /**
+     * Removes the innermost savepoint with the given name, along with the ones within it, as
+     * SQLite does.
+     */
+    private Savepoint popSavepoint(@NonNull String name) {
+      for (int i = savepoints.size() - 1; i >= 0; i--) {
+        Savepoint savepoint = savepoints.get(i);
+
+        if (savepoint.name.equals(name)) {
+          savepoints.subList(i, savepoints.size()).clear();
+          return savepoint;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private static class Savepoint {
+    private final String name;
+    private final int    keyCount;
+
+    private Savepoint(@NonNull String name, int keyCount) {
+      this.name     = name;
+      this.keyCount = keyCount;
+    }
+  }
+}
@@ -137,6 +137,7 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
     "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_sent_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_SENT + ");",
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -269,7 +270,7 @@ public class MmsDatabase extends MessagingDatabase {
 
             DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, id);
           }
         }
       }
@@ -354,26 +355,26 @@ public class MmsDatabase extends MessagingDatabase {
   public void markAsPendingInsecureSmsFallback(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_PENDING_INSECURE_SMS_FALLBACK, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   public void markAsSending(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENDING_TYPE, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   public void markAsSentFailed(long messageId) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE, Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   @Override
   public void markAsSent(long messageId, boolean secure) {
     long threadId = getThreadIdForMessage(messageId);
     updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_TYPE | (secure ? Types.PUSH_MESSAGE_BIT | Types.SECURE_MESSAGE_BIT : 0), Optional.of(threadId));
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   @Override
@@ -399,7 +400,7 @@ public class MmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(messageId)});
 
     long threadId = getThreadIdForMessage(messageId);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
   }
 
   public void markAsNotified(long id) {
@@ -671,12 +672,14 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = insertMediaMessage(retrieved.getBody(), retrieved.getAttachments(), quoteAttachments, retrieved.getSharedContacts(), retrieved.getLinkPreviews(), contentValues, null);
 
+    DatabaseFactory.getMmsSmsDatabase(context).addToDedupIndex(retrieved.getSentTimeMillis(), retrieved.getFrom().serialize());
+
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
       DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
     ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(threadId));
 
     return Optional.of(new InsertResult(messageId, threadId));
@@ -778,6 +781,8 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = insertMediaMessage(message.getBody(), message.getAttachments(), quoteAttachments, message.getSharedContacts(), message.getLinkPreviews(), contentValues, insertListener);
 
+    DatabaseFactory.getMmsSmsDatabase(context).addToDedupIndex(message.getSentTimeMillis(), TextSecurePreferences.getLocalNumber(context));
+
     if (message.getRecipient().getAddress().isGroup()) {
       List<Recipient>      members         = DatabaseFactory.getGroupDatabase(context).getGroupMembers(message.getRecipient().getAddress().toGroupString(), false);
       GroupReceiptDatabase receiptDatabase = DatabaseFactory.getGroupReceiptDatabase(context);
@@ -819,9 +824,11 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, body);
     contentValues.put(PART_COUNT, allAttachments.size());
 
+    long messageId = -1;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       Map<Attachment, AttachmentId> insertedAttachments = partsDatabase.insertAttachmentsForMessage(messageId, allAttachments, quoteAttachments);
       String                        serializedContacts  = getSerializedSharedContacts(insertedAttachments, sharedContacts);
@@ -860,7 +867,7 @@ public class MmsDatabase extends MessagingDatabase {
         insertListener.onComplete();
       }
 
-      notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
+      notifyConversationListeners(contentValues.getAsLong(THREAD_ID), MmsSmsDatabase.MMS_TRANSPORT, messageId);
       DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
   }
@@ -876,7 +883,7 @@ public class MmsDatabase extends MessagingDatabase {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
     notifyStickerListeners();
     notifyStickerPackListeners();
     return threadDeleted;
@@ -16,6 +16,7 @@
  */
 package org.thoughtcrime.securesms.database;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import androidx.annotation.NonNull;
@@ -23,6 +24,8 @@ import androidx.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
+import net.sqlcipher.database.SQLiteStatement;
+import net.sqlcipher.database.SQLiteTransactionListener;
 
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -43,6 +46,38 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  /**
+   * A narrow (sent timestamp, author) index of every message that was stored, so that incoming messages can be checked
+   * for duplicates without querying (and building records for) the sms and mms tables. Outgoing messages are indexed
+   * under the user's own public key.
+   */
+  public  static final String DEDUP_INDEX_TABLE_NAME   = "message_dedup_index";
+  private static final String DEDUP_TIMESTAMP          = "timestamp";
+  private static final String DEDUP_AUTHOR             = "author";
+  public  static final String CREATE_DEDUP_INDEX_TABLE = "CREATE TABLE IF NOT EXISTS " + DEDUP_INDEX_TABLE_NAME + " (" + DEDUP_TIMESTAMP + " INTEGER, " +
+                                                         DEDUP_AUTHOR + " TEXT, PRIMARY KEY (" + DEDUP_TIMESTAMP + ", " + DEDUP_AUTHOR + "));";
+
+  private static final int MAX_RECENT_DEDUP_KEYS = 4096;
+
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
+  private final DedupKeyCache recentDedupKeys = new DedupKeyCache(MAX_RECENT_DEDUP_KEYS);
+
+  private final SQLiteTransactionListener dedupTransactionListener = new SQLiteTransactionListener() {
+    @Override
+    public void onBegin() {
+      recentDedupKeys.beginTransaction();
+    }
+
+    @Override
+    public void onCommit() {
+      recentDedupKeys.markTransactionCommitted();
+    }
+
+    @Override
+    public void onRollback() {}
+  };
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -121,6 +156,145 @@ public class MmsSmsDatabase extends Database {
     return getMessageFor(timestamp, author.serialize());
   }
 
+  /**
+   * Returns whether a message with the given sent timestamp and author was stored before. An empty author matches any
+   * message with the given timestamp.
+   */
+  public boolean isDuplicate(long timestamp, @NonNull String author) {
+    String key = getDedupKey(timestamp, author);
+
+    if (!author.isEmpty() && recentDedupKeys.contains(key)) return true;
+
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String         selection = author.isEmpty() ? DEDUP_TIMESTAMP + " = ?" : DEDUP_TIMESTAMP + " = ? AND " + DEDUP_AUTHOR + " = ?";
+    String[]       args      = author.isEmpty() ? new String[] { String.valueOf(timestamp) } : new String[] { String.valueOf(timestamp), author };
+
+    try (Cursor cursor = db.query(DEDUP_INDEX_TABLE_NAME, new String[] { DEDUP_TIMESTAMP }, selection, args, null, null, null, "1")) {
+      boolean isDuplicate = cursor != null && cursor.moveToFirst();
+
+      if (isDuplicate && !author.isEmpty()) {
+        recentDedupKeys.add(key, db.inTransaction());
+      }
+
+      return isDuplicate;
+    }
+  }
+
+  /*package*/ void addToDedupIndex(long timestamp, @Nullable String author) {
+    if (author == null) return;
+
+    ContentValues values = new ContentValues(2);
+    values.put(DEDUP_TIMESTAMP, timestamp);
+    values.put(DEDUP_AUTHOR, author);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.insertWithOnConflict(DEDUP_INDEX_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+
+    recentDedupKeys.add(getDedupKey(timestamp, author), db.inTransaction());
+  }
+
+  /**
+   * Forgets the cached dedup keys, for when the database was replaced (e.g. by restoring a backup).
+   */
+  public void clearDedupCache() {
+    recentDedupKeys.clear();
+  }
+
+  /**
+   * Begins a transaction on the writable database. Unlike a transaction begun on the database
+   * directly, the dedup keys of the messages that are stored within it are cached once it commits.
+   */
+  public void beginTransaction() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    if (db.inTransaction()) {
+      db.beginTransaction();
+    } else {
+      db.beginTransactionWithListener(dedupTransactionListener);
+    }
+  }
+
+  public void setTransactionSuccessful() {
+    databaseHelper.getWritableDatabase().setTransactionSuccessful();
+  }
+
+  /**
+   * Ends a transaction begun with {@link #beginTransaction()}. Returns {@code false} if this ended
+   * the outermost transaction and it was rolled back, which is also the case if a transaction
+   * nested within it failed.
+   */
+  public boolean endTransaction() {
+    SQLiteDatabase db          = databaseHelper.getWritableDatabase();
+    boolean        isCommitted = true;
+
+    try {
+      db.endTransaction();
+    } finally {
+      if (!db.inTransaction()) {
+        isCommitted = recentDedupKeys.endTransaction();
+      }
+    }
+
+    return isCommitted;
+  }
+
+  public void setSavepoint(@NonNull String name) {
+    databaseHelper.getWritableDatabase().execSQL("SAVEPOINT " + name);
+    recentDedupKeys.setSavepoint(name);
+  }
+
+  public void releaseSavepoint(@NonNull String name) {
+    databaseHelper.getWritableDatabase().execSQL("RELEASE " + name);
+    recentDedupKeys.releaseSavepoint(name);
+  }
+
+  /**
+   * Undoes everything since the savepoint was set, including the dedup keys that were added, and
+   * releases it.
+   */
+  public void rollbackToSavepoint(@NonNull String name) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("ROLLBACK TO " + name);
+    db.execSQL("RELEASE " + name);
+    recentDedupKeys.rollbackToSavepoint(name);
+  }
+
+  /**
+   * Indexes the messages that were stored before the dedup index existed.
+   */
+  public static void populateDedupIndex(@NonNull SQLiteDatabase db, @Nullable String userPublicKey) {
+    SQLiteStatement statement = db.compileStatement("INSERT OR IGNORE INTO " + DEDUP_INDEX_TABLE_NAME + " (" + DEDUP_TIMESTAMP + ", " + DEDUP_AUTHOR + ") VALUES (?, ?)");
+
+    try {
+      populateDedupIndex(db, statement, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_SENT, SmsDatabase.TYPE, userPublicKey);
+      populateDedupIndex(db, statement, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_SENT, MmsDatabase.MESSAGE_BOX, userPublicKey);
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void populateDedupIndex(@NonNull SQLiteDatabase db, @NonNull SQLiteStatement statement,
+                                         @NonNull String table, @NonNull String dateSentColumn, @NonNull String typeColumn,
+                                         @Nullable String userPublicKey)
+  {
+    try (Cursor cursor = db.query(table, new String[] { dateSentColumn, MmsSmsColumns.ADDRESS, typeColumn }, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        boolean isOutgoing = MmsSmsColumns.Types.isOutgoingMessageType(cursor.getLong(2));
+        String  author     = isOutgoing ? userPublicKey : cursor.getString(1);
+
+        if (author == null) continue;
+
+        statement.clearBindings();
+        statement.bindLong(1, cursor.getLong(0));
+        statement.bindString(2, author);
+        statement.executeInsert();
+      }
+    }
+  }
+
+  private static @NonNull String getDedupKey(long timestamp, @NonNull String author) {
+    return timestamp + ":" + author;
+  }
+
   public Cursor getConversation(long threadId, long offset, long limit) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
@@ -136,11 +310,91 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0, 0);
   }
 
-  public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+  /**
+   * Returns up to {@code limit} messages of the thread that sort before {@code key} (or the newest
+   * messages if there's no key), newest first. The page is cut out of the sms and mms tables before
+   * they're joined and merged, so how long this takes depends on the page size rather than on the
+   * size of the thread.
+   */
+  public Cursor getConversationPageBefore(long threadId, @Nullable ConversationKey key, boolean inclusive, int limit) {
+    return getConversationPage(threadId, key, true, inclusive, limit);
+  }
+
+  /**
+   * Returns up to {@code limit} messages of the thread that sort after {@code key}, newest first.
+   */
+  public Cursor getConversationPageAfter(long threadId, @NonNull ConversationKey key, int limit) {
+    return getConversationPage(threadId, key, false, false, limit);
+  }
+
+  public @Nullable ConversationKey getConversationKeyAtPosition(long threadId, int position) {
+    String query = "SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                   " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   " UNION ALL SELECT " + MmsDatabase.DATE_SENT + ", '" + MMS_TRANSPORT + "', " + MmsSmsColumns.ID +
+                   " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   " ORDER BY " + CONVERSATION_ORDER + " LIMIT 1 OFFSET " + position;
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(threadId) };
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return ConversationKey.fromCursor(cursor);
+      }
+    }
+    return null;
+  }
+
+  private Cursor getConversationPage(long threadId, @Nullable ConversationKey key, boolean older, boolean inclusive, int limit) {
+    String direction = older ? " DESC" : " ASC";
+    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + direction + ", " + TRANSPORT + direction + ", " + MmsSmsColumns.ID + direction;
+    String smsTable  = getConversationPageTable(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_SENT, SMS_TRANSPORT, threadId, key, older, inclusive, limit);
+    String mmsTable  = getConversationPageTable(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_SENT, MMS_TRANSPORT, threadId, key, older, inclusive, limit);
+
+    Cursor cursor = queryTables(PROJECTION, smsTable, mmsTable, null, order, String.valueOf(limit), CONVERSATION_ORDER);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  private static String getConversationPageTable(String table, String dateSentColumn, String transport, long threadId,
+                                                 @Nullable ConversationKey key, boolean older, boolean inclusive, int limit)
+  {
+    String direction = older ? " DESC" : " ASC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
 
-    return  queryTables(PROJECTION, selection, order, "1");
+    if (key != null) {
+      String operator       = older ? "<" : ">";
+      int    transportOrder = older ? key.getTransport().compareTo(transport) : transport.compareTo(key.getTransport());
+
+      if (transportOrder > 0) {
+        selection += " AND " + dateSentColumn + " " + operator + "= " + key.getDateSent();
+      } else if (transportOrder < 0) {
+        selection += " AND " + dateSentColumn + " " + operator + " " + key.getDateSent();
+      } else {
+        selection += " AND (" + dateSentColumn + " " + operator + " " + key.getDateSent() + " OR (" +
+                     dateSentColumn + " = " + key.getDateSent() + " AND " + MmsSmsColumns.ID + " " + operator + (inclusive ? "= " : " ") + key.getId() + "))";
+      }
+    }
+
+    return "(SELECT * FROM " + table + " WHERE " + selection +
+           " ORDER BY " + dateSentColumn + direction + ", " + MmsSmsColumns.ID + direction +
+           " LIMIT " + limit + ") AS " + table;
+  }
+
+  public Cursor getConversationSnippet(long threadId) {
+    String order    = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String smsTable = getConversationSnippetTable(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, threadId);
+    String mmsTable = getConversationSnippetTable(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, threadId);
+
+    return queryTables(PROJECTION, smsTable, mmsTable, null, order, "1", null);
+  }
+
+  /**
+   * Only the latest message of each table is a candidate for the snippet, so pick it through the
+   * (thread, date received) index instead of sorting the whole thread.
+   */
+  private static String getConversationSnippetTable(String table, String dateReceivedColumn, long threadId) {
+    return "(SELECT * FROM " + table + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId +
+           " ORDER BY " + dateReceivedColumn + " DESC LIMIT 1) AS " + table;
   }
 
   public Cursor getUnread() {
@@ -219,6 +473,10 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME, selection, order, limit, null);
+  }
+
+  private Cursor queryTables(String[] projection, String smsTable, String mmsTable, String selection, String order, String limit, String outerOrder) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
@@ -299,8 +557,8 @@ public class MmsSmsDatabase extends Database {
     mmsQueryBuilder.setDistinct(true);
     smsQueryBuilder.setDistinct(true);
 
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
+    smsQueryBuilder.setTables(smsTable);
+    mmsQueryBuilder.setTables(mmsTable + " LEFT OUTER JOIN " +
                               AttachmentDatabase.TABLE_NAME +
                               " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
 
@@ -396,7 +654,7 @@ public class MmsSmsDatabase extends Database {
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
     @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, outerOrder, null);
 
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     return db.rawQuery(query, null);
@@ -406,6 +664,41 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * Where a message sits in its conversation, which is sorted by sent timestamp, then transport,
+   * then ID. Unlike a position, a key stays valid while messages are added to the thread.
+   */
+  public static class ConversationKey {
+
+    private final long   dateSent;
+    private final String transport;
+    private final long   id;
+
+    public ConversationKey(long dateSent, @NonNull String transport, long id) {
+      this.dateSent  = dateSent;
+      this.transport = transport;
+      this.id        = id;
+    }
+
+    public static @NonNull ConversationKey fromCursor(@NonNull Cursor cursor) {
+      return new ConversationKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_SENT)),
+                                 cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT)),
+                                 cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    }
+
+    public long getDateSent() {
+      return dateSent;
+    }
+
+    public @NonNull String getTransport() {
+      return transport;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
   public class Reader {
 
     private final Cursor                 cursor;
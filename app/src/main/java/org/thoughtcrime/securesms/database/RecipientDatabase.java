@@ -24,6 +24,8 @@ import org.session.libsignal.utilities.logging.Log;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -35,6 +37,9 @@ public class RecipientDatabase extends Database {
 
   private static final String TAG = RecipientDatabase.class.getSimpleName();
 
+  // SQLite's default limit on the number of arguments to a single statement
+  private static final int MAX_QUERY_ARGUMENTS = 999;
+
           static final String TABLE_NAME               = "recipient_preferences";
   private static final String ID                       = "_id";
   public  static final String ADDRESS                  = "recipient_ids";
@@ -129,6 +134,38 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings of all the given recipients at once. Recipients without settings are left
+   * out of the returned map.
+   */
+  public Map<Address, RecipientSettings> getRecipientSettings(@NonNull Collection<Address> addresses) {
+    SQLiteDatabase                  database  = databaseHelper.getReadableDatabase();
+    Map<Address, RecipientSettings> results   = new HashMap<>();
+    List<Address>                   remaining = new ArrayList<>(addresses);
+
+    for (int offset = 0; offset < remaining.size(); offset += MAX_QUERY_ARGUMENTS) {
+      List<Address> batch        = remaining.subList(offset, Math.min(offset + MAX_QUERY_ARGUMENTS, remaining.size()));
+      String[]      args         = new String[batch.size()];
+      StringBuilder placeholders = new StringBuilder();
+
+      for (int i = 0; i < batch.size(); i++) {
+        args[i] = batch.get(i).serialize();
+        placeholders.append(i == 0 ? "?" : ", ?");
+      }
+
+      try (Cursor cursor = database.query(TABLE_NAME, null, ADDRESS + " IN (" + placeholders + ")", args, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          Address                     address  = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          Optional<RecipientSettings> settings = getRecipientSettings(cursor);
+
+          if (settings.isPresent()) results.put(address, settings.get());
+        }
+      }
+    }
+
+    return results;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     String  messageRingtone        = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
@@ -92,7 +92,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_sent_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_SENT + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -127,7 +128,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(id);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, id);
   }
 
   public long getThreadIdForMessage(long id) {
@@ -205,7 +206,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(id);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, id);
   }
 
   public void markAsSentFailed(long id) {
@@ -260,15 +261,16 @@ public class SmsDatabase extends MessagingDatabase {
           String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress)) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
             database.execSQL("UPDATE " + TABLE_NAME +
                              " SET " + columnName + " = " + columnName + " + 1 WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(id)});
 
             DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, id);
             foundMessage = true;
           }
         }
@@ -339,7 +341,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId = getThreadIdForMessage(messageId);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
     notifyConversationListListeners();
 
     return new Pair<>(messageId, threadId);
@@ -404,6 +406,8 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db        = databaseHelper.getWritableDatabase();
       long           messageId = db.insert(TABLE_NAME, null, values);
 
+      DatabaseFactory.getMmsSmsDatabase(context).addToDedupIndex(message.getSentTimestampMillis(), message.getSender().serialize());
+
       if (unread) {
         DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
       }
@@ -414,7 +418,7 @@ public class SmsDatabase extends MessagingDatabase {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient, message.getSubscriptionId());
       }
 
-      notifyConversationListeners(threadId);
+      notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
 
       ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(threadId));
 
@@ -469,6 +473,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    DatabaseFactory.getMmsSmsDatabase(context).addToDedupIndex(date, TextSecurePreferences.getLocalNumber(context));
     if (insertListener != null) {
       insertListener.onComplete();
     }
@@ -478,7 +483,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     DatabaseFactory.getThreadDatabase(context).setHasSent(threadId, true);
 
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
 
     ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(threadId));
 
@@ -516,7 +521,7 @@ public class SmsDatabase extends MessagingDatabase {
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    notifyConversationListeners(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
     return threadDeleted;
   }
 
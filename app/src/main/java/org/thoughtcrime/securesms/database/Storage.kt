@@ -79,6 +79,30 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return recipient.profileKey
     }
 
+    override fun beginTransaction() {
+        DatabaseFactory.getMmsSmsDatabase(context).beginTransaction()
+    }
+
+    override fun setTransactionSuccessful() {
+        DatabaseFactory.getMmsSmsDatabase(context).setTransactionSuccessful()
+    }
+
+    override fun endTransaction(): Boolean {
+        return DatabaseFactory.getMmsSmsDatabase(context).endTransaction()
+    }
+
+    override fun setSavepoint(name: String) {
+        DatabaseFactory.getMmsSmsDatabase(context).setSavepoint(name)
+    }
+
+    override fun releaseSavepoint(name: String) {
+        DatabaseFactory.getMmsSmsDatabase(context).releaseSavepoint(name)
+    }
+
+    override fun rollbackToSavepoint(name: String) {
+        DatabaseFactory.getMmsSmsDatabase(context).rollbackToSavepoint(name)
+    }
+
     override fun getOrGenerateRegistrationID(): Int {
         var registrationID = TextSecurePreferences.getLocalRegistrationId(context)
         if (registrationID == null) {
@@ -201,8 +225,7 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
 
     override fun resumeMessageSendJobIfNeeded(messageSendJobID: String) {
         val job = DatabaseFactory.getSessionJobDatabase(context).getMessageSendJob(messageSendJobID) ?: return
-        job.delegate = JobQueue.shared
-        job.execute()
+        JobQueue.shared.resume(job)
     }
 
     override fun isJobCanceled(job: Job): Boolean {
@@ -281,12 +304,7 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
     }
 
     override fun isMessageDuplicated(timestamp: Long, sender: String): Boolean {
-        val database = DatabaseFactory.getMmsSmsDatabase(context)
-        return if (sender.isEmpty()) {
-            database.getMessageForTimestamp(timestamp) != null
-        } else {
-            database.getMessageFor(timestamp, sender) != null
-        }
+        return DatabaseFactory.getMmsSmsDatabase(context).isDuplicate(timestamp, sender)
     }
 
     override fun setUserCount(group: Long, server: String, newValue: Int) {
@@ -525,6 +543,10 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return if (recipientSettings.isPresent) { recipientSettings.get() } else null
     }
 
+    override fun getRecipientSettings(addresses: Collection<Address>): Map<Address, Recipient.RecipientSettings> {
+        return DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(addresses)
+    }
+
     override fun getAttachmentDataUri(attachmentId: AttachmentId): Uri {
         return PartAuthority.getAttachmentDataUri(attachmentId)
     }
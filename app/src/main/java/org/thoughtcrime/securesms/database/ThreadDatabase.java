@@ -53,6 +53,7 @@ import org.thoughtcrime.securesms.mms.SlideDeck;
 
 import java.io.Closeable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -101,6 +102,29 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS archived_count_index ON " + TABLE_NAME + " (" + ARCHIVED + ", " + MESSAGE_COUNT + ");",
   };
 
+  /**
+   * Keeps the message count of every thread up to date as messages are added, removed or moved to
+   * another thread, so that updating a thread doesn't need to count its messages.
+   */
+  public static final String[] CREATE_MESSAGE_COUNT_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_message_count_insert AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN " + getMessageCountUpdate("NEW", "+") + " END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_count_delete AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN " + getMessageCountUpdate("OLD", "-") + " END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_count_move AFTER UPDATE OF " + MmsSmsColumns.THREAD_ID + " ON " + SmsDatabase.TABLE_NAME +
+        " WHEN OLD." + MmsSmsColumns.THREAD_ID + " != NEW." + MmsSmsColumns.THREAD_ID + " BEGIN " + getMessageCountUpdate("OLD", "-") + " " + getMessageCountUpdate("NEW", "+") + " END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_count_insert AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN " + getMessageCountUpdate("NEW", "+") + " END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_count_delete AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN " + getMessageCountUpdate("OLD", "-") + " END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_count_move AFTER UPDATE OF " + MmsSmsColumns.THREAD_ID + " ON " + MmsDatabase.TABLE_NAME +
+        " WHEN OLD." + MmsSmsColumns.THREAD_ID + " != NEW." + MmsSmsColumns.THREAD_ID + " BEGIN " + getMessageCountUpdate("OLD", "-") + " " + getMessageCountUpdate("NEW", "+") + " END;",
+  };
+
+  /**
+   * Recounts the messages of every thread. Only needed to repair the counts kept by the triggers,
+   * e.g. after importing a backup.
+   */
+  public static final String REPAIR_MESSAGE_COUNTS = "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " +
+    "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ") + " +
+    "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ");";
+
   private static final String[] THREAD_PROJECTION = {
       ID, DATE, MESSAGE_COUNT, ADDRESS, SNIPPET, SNIPPET_CHARSET, READ, UNREAD_COUNT, TYPE, ERROR, SNIPPET_TYPE,
       SNIPPET_URI, ARCHIVED, STATUS, DELIVERY_RECEIPT_COUNT, EXPIRES_IN, LAST_SEEN, READ_RECEIPT_COUNT
@@ -119,6 +143,10 @@ public class ThreadDatabase extends Database {
     super(context, databaseHelper);
   }
 
+  private static String getMessageCountUpdate(String row, String operator) {
+    return "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " " + operator + " 1 WHERE " + ID + " = " + row + "." + MmsSmsColumns.THREAD_ID + ";";
+  }
+
   private long createThreadForRecipient(Address address, boolean group, int distributionType) {
     ContentValues contentValues = new ContentValues(4);
     long date                   = System.currentTimeMillis();
@@ -135,13 +163,12 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
+  private void updateThread(long threadId, String body, @Nullable Uri attachment,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
                             long expiresIn, int readReceiptCount)
   {
     ContentValues contentValues = new ContentValues(7);
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
     if (!body.isEmpty()) {
       contentValues.put(SNIPPET, body);
     }
@@ -499,7 +526,7 @@ public class ThreadDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE,
                                                 new String[] {String.valueOf(threadId)});
 
-    notifyConversationListeners(threadId);
+    notifyConversationMetadataListeners(threadId);
   }
 
   public void notifyUpdatedFromConfig() {
@@ -508,9 +535,12 @@ public class ThreadDatabase extends Database {
 
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
-
+    long count                    = getMessageCount(threadId);
 
+    if (count <= 0) {
+      // The count is kept up to date by triggers, but make sure before deleting the thread
+      count = repairMessageCount(threadId);
+    }
 
     if (count == 0) {
       deleteThread(threadId);
@@ -525,10 +555,9 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
+        updateThread(threadId, getFormattedBodyFor(record), getAttachmentUriFor(record),
                      record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
                      record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
-        notifyConversationListListeners();
         return false;
       } else {
         deleteThread(threadId);
@@ -541,6 +570,42 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Resolves the members of the groups in the given conversation list with a single query, rather
+   * than one by one as each group is displayed.
+   */
+  public void prefetchGroupMembers(@NonNull Cursor cursor) {
+    GroupDatabase groupDatabase = DatabaseFactory.getGroupDatabase(context);
+    Set<Address>  members       = new HashSet<>();
+    int           position      = cursor.getPosition();
+
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      Optional<GroupRecord> groupRecord = groupDatabase.getGroup(cursor);
+      if (groupRecord.isPresent()) members.addAll(groupRecord.get().getMembers());
+    }
+    cursor.moveToPosition(position);
+
+    Recipient.prefetch(context, members);
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    }
+  }
+
+  private long repairMessageCount(long threadId) {
+    long          count         = DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId);
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.put(MESSAGE_COUNT, count);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(threadId)});
+    return count;
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms()) {
       MmsMessageRecord record = (MmsMessageRecord) messageRecord;
@@ -17,17 +17,20 @@ import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.session.libsignal.utilities.logging.Log;
+import org.session.libsession.utilities.TextSecurePreferences;
 import org.thoughtcrime.securesms.loki.database.LokiAPIDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiBackupFilesDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiMessageDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiThreadDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiUserDatabase;
+import org.thoughtcrime.securesms.loki.database.SessionJobDatabase;
 import org.thoughtcrime.securesms.loki.protocol.ClosedGroupsMigration;
 
 public class SQLCipherOpenHelper extends SQLiteOpenHelper {
@@ -52,9 +55,15 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV19                          = 40;
   private static final int lokiV20                          = 41;
   private static final int lokiV21                          = 42;
+  private static final int lokiV22                          = 43;
+  private static final int lokiV23                          = 44;
+  private static final int lokiV24                          = 45;
+  private static final int lokiV25                          = 46;
+  private static final int lokiV26                          = 47;
+  private static final int lokiV27                          = 48;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION = lokiV21;
+  private static final int    DATABASE_VERSION = lokiV27;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -100,7 +109,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateSwarmTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastMessageHashValueTable2Command());
-    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesTable3Command());
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashesTableCommand());
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashesExpirationIndexCommand());
     db.execSQL(LokiAPIDatabase.getCreateOpenGroupAuthTokenTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastMessageServerIDTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastDeletionServerIDTableCommand());
@@ -117,10 +127,13 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiMessageDatabase.getCreateMessageToThreadMappingTableCommand());
     db.execSQL(LokiMessageDatabase.getCreateErrorMessageTableCommand());
     db.execSQL(LokiThreadDatabase.getCreateSessionResetTableCommand());
+    db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+    db.execSQL(SessionJobDatabase.getAddSerializedBinaryDataColumnCommand());
     db.execSQL(LokiThreadDatabase.getCreatePublicChatTableCommand());
     db.execSQL(LokiUserDatabase.getCreateDisplayNameTableCommand());
     db.execSQL(LokiUserDatabase.getCreateServerDisplayNameTableCommand());
     db.execSQL(LokiBackupFilesDatabase.getCreateTableCommand());
+    db.execSQL(MmsSmsDatabase.CREATE_DEDUP_INDEX_TABLE);
 
     executeStatements(db, SmsDatabase.CREATE_INDEXS);
     executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -129,6 +142,9 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     executeStatements(db, DraftDatabase.CREATE_INDEXS);
     executeStatements(db, GroupDatabase.CREATE_INDEXS);
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES);
+    executeStatements(db, SessionJobDatabase.CREATE_INDEXES);
+
+    executeStatements(db, ThreadDatabase.CREATE_MESSAGE_COUNT_TRIGGERS);
   }
 
   @Override
@@ -255,6 +271,43 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
                 "ResetThreadSessionJob");
       }
 
+      if (oldVersion < lokiV22) {
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashesTableCommand());
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashesExpirationIndexCommand());
+        // The old table didn't store expiration dates; keep migrated hashes around for the maximum message TTL
+        LokiAPIDatabase.migrateReceivedMessageHashValues(db, System.currentTimeMillis() + 14L * 24 * 60 * 60 * 1000);
+      }
+
+      if (oldVersion < lokiV23) {
+        // Session jobs used to be written to the session reset table by mistake; give them their own indexed table
+        db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+        executeStatements(db, SessionJobDatabase.CREATE_INDEXES);
+      }
+
+      if (oldVersion < lokiV24) {
+        // Job data used to be stored as JSON, which Base64 encodes every message envelope and attachment
+        db.execSQL(SessionJobDatabase.getAddSerializedBinaryDataColumnCommand());
+        SessionJobDatabase.migrateSerializedData(db);
+      }
+
+      if (oldVersion < lokiV25) {
+        // Incoming messages used to be checked for duplicates against the sms and mms tables
+        db.execSQL(MmsSmsDatabase.CREATE_DEDUP_INDEX_TABLE);
+        MmsSmsDatabase.populateDedupIndex(db, TextSecurePreferences.getLocalNumber(context));
+      }
+
+      if (oldVersion < lokiV26) {
+        // Conversations are paged by sent timestamp
+        executeStatements(db, SmsDatabase.CREATE_INDEXS);
+        executeStatements(db, MmsDatabase.CREATE_INDEXS);
+      }
+
+      if (oldVersion < lokiV27) {
+        // Thread message counts used to be recounted whenever a thread was updated
+        executeStatements(db, ThreadDatabase.CREATE_MESSAGE_COUNT_TRIGGERS);
+        db.execSQL(ThreadDatabase.REPAIR_MESSAGE_COUNTS);
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -2,37 +2,77 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.ConversationChanges;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 import org.session.libsignal.libsignal.util.Pair;
 
+/**
+ * Loads a window of a conversation, newest first. Without an anchor the window holds the
+ * {@code olderLimit} newest messages. With one, it holds up to {@code olderLimit} messages from the
+ * anchor back and up to {@code newerLimit} messages after it.
+ *
+ * The anchor is a {@link ConversationKey} rather than a position, so reloading the window after the
+ * thread changed keeps showing the same messages. An anchor that's only known by its position is
+ * resolved to a key on the first load.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+  private final           long            threadId;
+  private       @Nullable ConversationKey anchor;
+  private                 int             anchorPosition;
+  private final           int             olderLimit;
+  private final           int             newerLimit;
+  private                 long            lastSeen;
+  private                 boolean         hasSent;
+  private                 int             olderCount;
+  private                 int             newerCount;
+  private                 long            changesVersion;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
+  public ConversationLoader(Context context, long threadId, @Nullable ConversationKey anchor, int anchorPosition, int olderLimit, int newerLimit, long lastSeen) {
     super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
+    this.threadId       = threadId;
+    this.anchor         = anchor;
+    this.anchorPosition = anchorPosition;
+    this.olderLimit     = olderLimit;
+    this.newerLimit     = newerLimit;
+    this.lastSeen       = lastSeen;
+    this.hasSent        = true;
+  }
+
+  public boolean hasOlder() {
+    return olderCount >= olderLimit;
+  }
+
+  public boolean hasNewer() {
+    return anchor != null && newerCount >= newerLimit;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public @Nullable ConversationKey getAnchor() {
+    return anchor;
   }
 
-  public boolean hasOffset() {
-    return offset > 0;
+  /**
+   * The position of the anchor in the loaded cursor, or -1 if there's no anchor.
+   */
+  public int getAnchorCursorPosition() {
+    return anchor != null ? newerCount : -1;
   }
 
+  /**
+   * The position of the first loaded message in the whole conversation, as far as it's known.
+   */
   public int getOffset() {
-    return offset;
+    return anchor != null && anchorPosition >= 0 ? Math.max(anchorPosition - newerCount, 0) : 0;
+  }
+
+  public int getNewerCount() {
+    return newerCount;
   }
 
   public long getLastSeen() {
@@ -43,16 +83,43 @@ public class ConversationLoader extends AbstractCursorLoader {
     return hasSent;
   }
 
+  /**
+   * The version of {@link ConversationChanges} the loaded cursor is at least as new as.
+   */
+  public long getChangesVersion() {
+    return changesVersion;
+  }
+
   @Override
   public Cursor getCursor() {
     Pair<Long, Boolean> lastSeenAndHasSent = DatabaseFactory.getThreadDatabase(context).getLastSeenAndHasSent(threadId);
 
-    this.hasSent = lastSeenAndHasSent.second();
+    this.hasSent        = lastSeenAndHasSent.second();
+    this.changesVersion = ConversationChanges.getVersion();
 
     if (lastSeen == -1) {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (anchor == null && anchorPosition > 0) {
+      anchor = database.getConversationKeyAtPosition(threadId, anchorPosition);
+    }
+
+    if (anchor == null) {
+      Cursor older = database.getConversationPageBefore(threadId, null, false, olderLimit);
+      this.olderCount = older.getCount();
+      this.newerCount = 0;
+      return older;
+    }
+
+    Cursor newer = database.getConversationPageAfter(threadId, anchor, newerLimit);
+    Cursor older = database.getConversationPageBefore(threadId, anchor, true, olderLimit);
+
+    this.newerCount = newer.getCount();
+    this.olderCount = older.getCount();
+
+    return new MergeCursor(new Cursor[] { newer, older });
   }
 }
@@ -8,6 +8,9 @@ import org.thoughtcrime.securesms.util.AbstractCursorLoader
 class HomeLoader(context: Context) : AbstractCursorLoader(context) {
 
     override fun getCursor(): Cursor {
-        return DatabaseFactory.getThreadDatabase(context).conversationList
+        val threadDatabase = DatabaseFactory.getThreadDatabase(context)
+        val cursor = threadDatabase.conversationList
+        threadDatabase.prefetchGroupMembers(cursor)
+        return cursor
     }
 }
\ No newline at end of file
@@ -1,10 +1,10 @@
 package org.thoughtcrime.securesms.loki.api
 
 import android.content.Context
-import android.os.Handler
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
+import org.session.libsession.messaging.sending_receiving.pollers.PollingScheduler
 import org.thoughtcrime.securesms.jobs.PushContentReceiveJob
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.successBackground
@@ -13,22 +13,35 @@ import org.session.libsignal.service.loki.api.SnodeAPI
 import org.session.libsignal.service.loki.api.SwarmAPI
 import org.session.libsignal.service.loki.utilities.getRandomElementOrNull
 import org.thoughtcrime.securesms.database.DatabaseFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import kotlin.math.min
+import kotlin.math.roundToLong
 
 class ClosedGroupPoller private constructor(private val context: Context) {
-    private var isPolling = false
-    private val handler: Handler by lazy { Handler() }
+    @Volatile private var isPolling = false
+    private var future: ScheduledFuture<*>? = null
+    /**
+     * Identifies the current polling loop. A tick left over from before the last stop sees a different value and ends.
+     */
+    @Volatile private var generation = 0
+    private val pollStates = ConcurrentHashMap<String, PollState>()
 
-    private val task = object : Runnable {
-
-        override fun run() {
-            poll()
-            handler.postDelayed(this, pollInterval)
-        }
+    /**
+     * Groups that just received messages are polled every `minPollInterval`. Each poll that comes back empty makes the
+     * interval grow by `backoffFactor`, up to `maxPollInterval`, so that quiet groups cost next to nothing.
+     */
+    private class PollState {
+        var interval = minPollInterval
+        var nextPollDate = 0L
+        var isPolling = false
     }
 
     // region Settings
     companion object {
-        private val pollInterval: Long = 4 * 1000
+        private val minPollInterval: Long = 2 * 1000
+        private val maxPollInterval: Long = 30 * 1000
+        private val backoffFactor = 1.5
 
         public lateinit var shared: ClosedGroupPoller
 
@@ -46,45 +59,87 @@ class ClosedGroupPoller private constructor(private val context: Context) {
 
     // region Public API
     fun startIfNeeded() {
-        if (isPolling) { return }
-        isPolling = true
-        task.run()
+        val generation = synchronized(this) {
+            if (isPolling) { return }
+            isPolling = true
+            ++this.generation
+        }
+        tick(generation)
     }
 
     fun pollOnce(): List<Promise<Unit, Exception>> {
         if (isPolling) { return listOf() }
         isPolling = true
-        return poll()
+        val publicKeys = DatabaseFactory.getLokiAPIDatabase(context).getAllClosedGroupPublicKeys()
+        return publicKeys.map { poll(it) }
     }
 
     fun stopIfNeeded() {
-        isPolling = false
-        handler.removeCallbacks(task)
+        synchronized(this) {
+            isPolling = false
+            future?.cancel(false)
+            future = null
+        }
+        pollStates.clear() // Poll every group right away when polling is resumed
     }
     // endregion
 
     // region Private API
-    private fun poll(): List<Promise<Unit, Exception>> {
-        if (!isPolling) { return listOf() }
+    private fun tick(generation: Int) {
+        if (!isPolling || this.generation != generation) { return }
+        try {
+            pollDueGroups()
+        } catch (exception: Exception) {
+            Log.d("Loki", "Failed to poll closed groups due to error: $exception.")
+        }
+        synchronized(this) {
+            if (isPolling && this.generation == generation) { future = PollingScheduler.schedule(minPollInterval) { tick(generation) } }
+        }
+    }
+
+    private fun pollDueGroups() {
+        val now = System.currentTimeMillis()
         val publicKeys = DatabaseFactory.getLokiAPIDatabase(context).getAllClosedGroupPublicKeys()
-        return publicKeys.map { publicKey ->
-            val promise = SwarmAPI.shared.getSwarm(publicKey).bind { swarm ->
-                val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
-                if (!isPolling) { throw PollingCanceledException() }
-                SnodeAPI.shared.getRawMessages(snode, publicKey).map {SnodeAPI.shared.parseRawMessagesResponse(it, snode, publicKey) }
+        pollStates.keys.retainAll(publicKeys)
+        val dueGroupPublicKeys = publicKeys.filter { publicKey ->
+            val state = pollStates.getOrPut(publicKey) { PollState() }
+            synchronized(state) {
+                val isDue = !state.isPolling && state.nextPollDate <= now
+                if (isDue) { state.isPolling = true }
+                isDue
             }
-            promise.successBackground { messages ->
-                if (messages.isNotEmpty()) {
-                    Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
-                }
-                messages.forEach {
-                    PushContentReceiveJob(context).processEnvelope(SignalServiceEnvelope(it), false)
-                }
+        }
+        dueGroupPublicKeys.forEach { poll(it) }
+    }
+
+    private fun poll(publicKey: String): Promise<Unit, Exception> {
+        val promise = SwarmAPI.shared.getSwarm(publicKey).bind { swarm ->
+            val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
+            if (!isPolling) { throw PollingCanceledException() }
+            SnodeAPI.shared.getRawMessages(snode, publicKey).map {SnodeAPI.shared.parseRawMessagesResponse(it, snode, publicKey) }
+        }
+        promise.successBackground { messages ->
+            if (messages.isNotEmpty()) {
+                Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
             }
-            promise.fail {
-                Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+            messages.forEach {
+                PushContentReceiveJob(context).processEnvelope(SignalServiceEnvelope(it), false)
             }
-            promise.map { Unit }
+            updatePollState(publicKey, messages.isNotEmpty())
+        }
+        promise.fail {
+            Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+            updatePollState(publicKey, false)
+        }
+        return promise.map { Unit }
+    }
+
+    private fun updatePollState(publicKey: String, didReceiveMessages: Boolean) {
+        val state = pollStates[publicKey] ?: return
+        synchronized(state) {
+            state.interval = if (didReceiveMessages) minPollInterval else min(maxPollInterval, (state.interval * backoffFactor).roundToLong())
+            state.nextPollDate = System.currentTimeMillis() + state.interval
+            state.isPolling = false
         }
     }
     // endregion
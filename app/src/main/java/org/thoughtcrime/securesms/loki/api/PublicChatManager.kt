@@ -19,6 +19,7 @@ import kotlin.jvm.Throws
 class PublicChatManager(private val context: Context) {
   private var chats = mutableMapOf<Long, PublicChat>()
   private val pollers = mutableMapOf<Long, PublicChatPoller>()
+  private val serverPollers = mutableMapOf<String, PublicChatServerPoller>()
   private val observers = mutableMapOf<Long, ContentObserver>()
   private var isPolling = false
 
@@ -44,16 +45,19 @@ class PublicChatManager(private val context: Context) {
     refreshChatsAndPollers()
 
     for ((threadId, chat) in chats) {
-      val poller = pollers[threadId] ?: PublicChatPoller(context, chat)
-      poller.startIfNeeded()
+      if (!pollers.containsKey(threadId)) {
+        val poller = PublicChatPoller(context, chat)
+        pollers[threadId] = poller
+        serverPollers.getOrPut(chat.server) { PublicChatServerPoller(context, chat.server) }.addPoller(threadId, poller)
+      }
       listenToThreadDeletion(threadId)
-      if (!pollers.containsKey(threadId)) { pollers[threadId] = poller }
     }
+    serverPollers.values.forEach { it.startIfNeeded() }
     isPolling = true
   }
 
   public fun stopPollers() {
-    pollers.values.forEach { it.stop() }
+    serverPollers.values.forEach { it.stop() }
     isPolling = false
   }
 
@@ -111,12 +115,19 @@ class PublicChatManager(private val context: Context) {
   private fun refreshChatsAndPollers() {
     val chatsInDB = DatabaseFactory.getLokiThreadDatabase(context).getAllPublicChats()
     val removedChatThreadIds = chats.keys.filter { !chatsInDB.keys.contains(it) }
-    removedChatThreadIds.forEach { pollers.remove(it)?.stop() }
+    removedChatThreadIds.forEach { removePoller(it) }
 
     // Only append to chats if we have a thread for the chat
     chats = chatsInDB.filter { GroupManager.getOpenGroupThreadID(it.value.id, context) > -1 }.toMutableMap()
   }
 
+  private fun removePoller(threadID: Long) {
+    pollers.remove(threadID) ?: return
+    serverPollers.values.forEach { it.removePoller(threadID) }
+    val emptyServers = serverPollers.filterValues { it.isEmpty }.keys
+    emptyServers.forEach { serverPollers.remove(it)?.stop() }
+  }
+
   private fun listenToThreadDeletion(threadID: Long) {
     if (threadID < 0 || observers[threadID] != null) { return }
     val observer = createDeletionObserver(threadID) {
@@ -130,7 +141,7 @@ class PublicChatManager(private val context: Context) {
       }
 
       DatabaseFactory.getLokiThreadDatabase(context).removePublicChat(threadID)
-      pollers.remove(threadID)?.stop()
+      removePoller(threadID)
       observers.remove(threadID)
       startPollersIfNeeded()
     }
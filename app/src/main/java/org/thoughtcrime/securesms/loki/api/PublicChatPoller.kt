@@ -1,7 +1,6 @@
 package org.thoughtcrime.securesms.loki.api
 
 import android.content.Context
-import android.os.Handler
 import org.session.libsignal.utilities.logging.Log
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.functional.bind
@@ -28,11 +27,15 @@ import org.session.libsignal.service.loki.api.opengroups.PublicChatAPI
 import org.session.libsignal.service.loki.api.opengroups.PublicChatMessage
 import java.security.MessageDigest
 import java.util.*
+import kotlin.math.min
+import kotlin.math.roundToLong
 
+/**
+ * Polls a single open group room. Polling is driven by the room's `PublicChatServerPoller`, which calls
+ * `pollIfNeeded(now)` for all rooms on the server on a shared background scheduler.
+ */
 class PublicChatPoller(private val context: Context, private val group: PublicChat) {
-    private val handler by lazy { Handler() }
-    private var hasStarted = false
-    private var isPollOngoing = false
+    @Volatile private var isPollOngoing = false
     public var isCaughtUp = false
 
     // region Convenience
@@ -49,65 +52,57 @@ class PublicChatPoller(private val context: Context, private val group: PublicCh
         }()
     // endregion
 
-    // region Tasks
-    private val pollForNewMessagesTask = object : Runnable {
-
-        override fun run() {
-            pollForNewMessages()
-            handler.postDelayed(this, pollForNewMessagesInterval)
-        }
-    }
-
-    private val pollForDeletedMessagesTask = object : Runnable {
-
-        override fun run() {
-            pollForDeletedMessages()
-            handler.postDelayed(this, pollForDeletedMessagesInterval)
-        }
-    }
-
-    private val pollForModeratorsTask = object : Runnable {
-
-        override fun run() {
-            pollForModerators()
-            handler.postDelayed(this, pollForModeratorsInterval)
-        }
-    }
-
-    private val pollForDisplayNamesTask = object : Runnable {
-
-        override fun run() {
-            pollForDisplayNames()
-            handler.postDelayed(this, pollForDisplayNamesInterval)
-        }
-    }
+    // region Scheduling
+    /**
+     * Rooms that just received messages are polled every `minPollForNewMessagesInterval`. Each poll that comes back
+     * empty makes the interval grow by `backoffFactor`, up to `maxPollForNewMessagesInterval`.
+     */
+    @Volatile private var pollForNewMessagesInterval = minPollForNewMessagesInterval
+    @Volatile private var nextPollForNewMessagesDate = 0L
+    private var nextPollForDeletedMessagesDate = 0L
+    private var nextPollForModeratorsDate = 0L
     // endregion
 
     // region Settings
     companion object {
-        private val pollForNewMessagesInterval: Long = 4 * 1000
+        private val minPollForNewMessagesInterval: Long = 4 * 1000
+        private val maxPollForNewMessagesInterval: Long = 16 * 1000
+        private val backoffFactor = 1.5
         private val pollForDeletedMessagesInterval: Long = 60 * 1000
         private val pollForModeratorsInterval: Long = 10 * 60 * 1000
-        private val pollForDisplayNamesInterval: Long = 60 * 1000
     }
     // endregion
 
     // region Lifecycle
-    fun startIfNeeded() {
-        if (hasStarted) return
-        pollForNewMessagesTask.run()
-        pollForDeletedMessagesTask.run()
-        pollForModeratorsTask.run()
-        pollForDisplayNamesTask.run()
-        hasStarted = true
+    /**
+     * Sends whichever queries are due. Called periodically by the `PublicChatServerPoller` of the room's server.
+     */
+    fun pollIfNeeded(now: Long) {
+        if (!isPollOngoing && now >= nextPollForNewMessagesDate) {
+            pollForNewMessages()
+        }
+        if (now >= nextPollForDeletedMessagesDate) {
+            nextPollForDeletedMessagesDate = now + pollForDeletedMessagesInterval
+            pollForDeletedMessages()
+        }
+        if (now >= nextPollForModeratorsDate) {
+            nextPollForModeratorsDate = now + pollForModeratorsInterval
+            pollForModerators()
+        }
     }
 
-    fun stop() {
-        handler.removeCallbacks(pollForNewMessagesTask)
-        handler.removeCallbacks(pollForDeletedMessagesTask)
-        handler.removeCallbacks(pollForModeratorsTask)
-        handler.removeCallbacks(pollForDisplayNamesTask)
-        hasStarted = false
+    fun resetPollState() {
+        pollForNewMessagesInterval = minPollForNewMessagesInterval
+        nextPollForNewMessagesDate = 0L
+    }
+
+    private fun updatePollForNewMessagesInterval(didReceiveMessages: Boolean) {
+        pollForNewMessagesInterval = if (didReceiveMessages) {
+            minPollForNewMessagesInterval
+        } else {
+            min(maxPollForNewMessagesInterval, (pollForNewMessagesInterval * backoffFactor).roundToLong())
+        }
+        nextPollForNewMessagesDate = System.currentTimeMillis() + pollForNewMessagesInterval
     }
     // endregion
 
@@ -194,26 +189,37 @@ class PublicChatPoller(private val context: Context, private val group: PublicCh
                 }
             }
             isCaughtUp = true
+            updatePollForNewMessagesInterval(messages.isNotEmpty())
             isPollOngoing = false
         }
         promise.fail {
             Log.d("Loki", "Failed to get messages for group chat with ID: ${group.channel} on server: ${group.server}.")
+            updatePollForNewMessagesInterval(false)
             isPollOngoing = false
         }
         return promise.map { Unit }
     }
 
-    private fun pollForDisplayNames() {
-        if (displayNameUpdatees.isEmpty()) { return }
-        val hexEncodedPublicKeys = displayNameUpdatees
+    /**
+     * Returns the senders whose display names should be refreshed and clears them. The display names of all rooms on a
+     * server are fetched at once by `PublicChatServerPoller`.
+     */
+    @Synchronized
+    fun takeDisplayNameUpdatees(): Set<String> {
+        val result = displayNameUpdatees
         displayNameUpdatees = setOf()
-        api.getDisplayNames(hexEncodedPublicKeys, group.server).successBackground { mapping ->
-            for (pair in mapping.entries) {
-                val senderDisplayName = "${pair.value} (...${pair.key.takeLast(8)})"
-                DatabaseFactory.getLokiUserDatabase(context).setServerDisplayName(group.id, pair.key, senderDisplayName)
-            }
-        }.fail {
-            displayNameUpdatees = displayNameUpdatees.union(hexEncodedPublicKeys)
+        return result
+    }
+
+    @Synchronized
+    fun addDisplayNameUpdatees(publicKeys: Set<String>) {
+        displayNameUpdatees = displayNameUpdatees.union(publicKeys)
+    }
+
+    fun setDisplayNames(mapping: Map<String, String>) {
+        for (pair in mapping.entries) {
+            val senderDisplayName = "${pair.value} (...${pair.key.takeLast(8)})"
+            DatabaseFactory.getLokiUserDatabase(context).setServerDisplayName(group.id, pair.key, senderDisplayName)
         }
     }
 
@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms.loki.api
+
+import android.content.Context
+import org.session.libsession.messaging.sending_receiving.pollers.PollingScheduler
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import org.session.libsignal.utilities.successBackground
+import org.session.libsignal.service.loki.api.opengroups.PublicChatAPI
+import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
+import org.thoughtcrime.securesms.database.DatabaseFactory
+import org.session.libsession.utilities.TextSecurePreferences
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+
+/**
+ * Drives the pollers of all rooms on a single open group server from one repeating task on the shared
+ * `PollingScheduler`, rather than having every room post its own timers to the main thread.
+ *
+ * Every tick, the queries that are due for any of the rooms are sent together. The server's API doesn't have
+ * multi-channel endpoints for messages, deletions or moderators, so those are still sent per room, but display names
+ * aren't tied to a channel and are fetched for all rooms with a single request.
+ *
+ * Setting up the queries reads from the database, so ticks hand off to a background thread rather than hold up the
+ * scheduler's only thread, and the next tick is only scheduled once that work is done.
+ */
+class PublicChatServerPoller(private val context: Context, private val server: String) {
+    @Volatile private var isPolling = false
+    private var future: ScheduledFuture<*>? = null
+    /**
+     * Incremented on every start, so that a tick from before the last stop ends rather than keep a second loop going.
+     */
+    @Volatile private var generation = 0
+    private val pollers = ConcurrentHashMap<Long, PublicChatPoller>()
+    private var nextPollForDisplayNamesDate = 0L
+
+    private val api: PublicChatAPI
+        get() = {
+            val userPublicKey = TextSecurePreferences.getLocalNumber(context)!!
+            val userPrivateKey = IdentityKeyUtil.getIdentityKeyPair(context).privateKey.serialize()
+            val lokiAPIDatabase = DatabaseFactory.getLokiAPIDatabase(context)
+            val lokiUserDatabase = DatabaseFactory.getLokiUserDatabase(context)
+            val openGroupDatabase = DatabaseFactory.getGroupDatabase(context)
+            PublicChatAPI(userPublicKey, userPrivateKey, lokiAPIDatabase, lokiUserDatabase, openGroupDatabase)
+        }()
+
+    // region Settings
+    companion object {
+        private val tickInterval: Long = 1000
+        private val pollForDisplayNamesInterval: Long = 60 * 1000
+    }
+    // endregion
+
+    // region Public API
+    val isEmpty: Boolean
+        get() = pollers.isEmpty()
+
+    fun addPoller(threadID: Long, poller: PublicChatPoller) {
+        pollers[threadID] = poller
+    }
+
+    fun removePoller(threadID: Long) {
+        pollers.remove(threadID)
+    }
+
+    fun startIfNeeded() {
+        val generation = synchronized(this) {
+            if (isPolling) { return }
+            isPolling = true
+            ++this.generation
+        }
+        ThreadUtils.queue { tick(generation) }
+    }
+
+    fun stop() {
+        synchronized(this) {
+            isPolling = false
+            future?.cancel(false)
+            future = null
+        }
+        pollers.values.forEach { it.resetPollState() } // Poll every room right away when polling is resumed
+    }
+    // endregion
+
+    // region Private API
+    private fun tick(generation: Int) {
+        if (!isPolling || this.generation != generation) { return }
+        val now = System.currentTimeMillis()
+        for (poller in pollers.values) {
+            try {
+                poller.pollIfNeeded(now)
+            } catch (exception: Exception) {
+                Log.d("Loki", "Failed to poll open group on server: $server due to error: $exception.")
+            }
+        }
+        if (now >= nextPollForDisplayNamesDate) {
+            nextPollForDisplayNamesDate = now + pollForDisplayNamesInterval
+            pollForDisplayNames()
+        }
+        synchronized(this) {
+            if (isPolling && this.generation == generation) {
+                future = PollingScheduler.schedule(tickInterval) { ThreadUtils.queue { tick(generation) } }
+            }
+        }
+    }
+
+    private fun pollForDisplayNames() {
+        val requests = pollers.values.mapNotNull { poller ->
+            val publicKeys = poller.takeDisplayNameUpdatees()
+            if (publicKeys.isNotEmpty()) Pair(poller, publicKeys) else null
+        }
+        if (requests.isEmpty()) { return }
+        val publicKeys = requests.flatMap { it.second }.toSet()
+        api.getDisplayNames(publicKeys, server).successBackground { mapping ->
+            for ((poller, requestedPublicKeys) in requests) {
+                poller.setDisplayNames(mapping.filterKeys { it in requestedPublicKeys })
+            }
+        }.fail {
+            Log.d("Loki", "Failed to get display names on server: $server.")
+            for ((poller, requestedPublicKeys) in requests) {
+                poller.addDisplayNameUpdatees(requestedPublicKeys)
+            }
+        }
+    }
+    // endregion
+}
@@ -18,21 +18,38 @@ import org.thoughtcrime.securesms.loki.utilities.KeyPairUtilities
 
 class SessionProtocolImpl(private val context: Context) : SessionProtocol {
 
-    private val sodium by lazy { LazySodiumAndroid(SodiumAndroid()) }
+    companion object {
+        /**
+         * Shared by all instances, as loading the native library is far more expensive than any single operation. The
+         * libsodium functions used here are thread safe.
+         */
+        private val sodium by lazy { LazySodiumAndroid(SodiumAndroid()) }
+    }
 
+    /**
+     * The plaintext, the sender's ED25519 public key and the signature are laid out in a single buffer, which is
+     * sealed in one go. The recipient's X25519 public key temporarily takes the place of the signature so that the
+     * signature can be computed over a prefix of the same buffer.
+     */
     override fun encrypt(plaintext: ByteArray, recipientHexEncodedX25519PublicKey: String): ByteArray {
         val userED25519KeyPair = KeyPairUtilities.getUserED25519KeyPair(context) ?: throw SessionProtocol.Exception.NoUserED25519KeyPair
         val recipientX25519PublicKey = Hex.fromStringCondensed(recipientHexEncodedX25519PublicKey.removing05PrefixIfNeeded())
+        val userED25519PublicKey = userED25519KeyPair.publicKey.asBytes
 
-        val verificationData = plaintext + userED25519KeyPair.publicKey.asBytes + recipientX25519PublicKey
+        val plaintextWithMetadata = ByteArray(plaintext.size + userED25519PublicKey.size + Sign.BYTES)
+        System.arraycopy(plaintext, 0, plaintextWithMetadata, 0, plaintext.size)
+        System.arraycopy(userED25519PublicKey, 0, plaintextWithMetadata, plaintext.size, userED25519PublicKey.size)
+        val signatureOffset = plaintext.size + userED25519PublicKey.size
+        System.arraycopy(recipientX25519PublicKey, 0, plaintextWithMetadata, signatureOffset, recipientX25519PublicKey.size)
+        val verificationDataSize = signatureOffset + recipientX25519PublicKey.size
         val signature = ByteArray(Sign.BYTES)
         try {
-            sodium.cryptoSignDetached(signature, verificationData, verificationData.size.toLong(), userED25519KeyPair.secretKey.asBytes)
+            sodium.cryptoSignDetached(signature, plaintextWithMetadata, verificationDataSize.toLong(), userED25519KeyPair.secretKey.asBytes)
         } catch (exception: Exception) {
             Log.d("Loki", "Couldn't sign message due to error: $exception.")
             throw SessionProtocol.Exception.SigningFailed
         }
-        val plaintextWithMetadata = plaintext + userED25519KeyPair.publicKey.asBytes + signature
+        System.arraycopy(signature, 0, plaintextWithMetadata, signatureOffset, signature.size)
         val ciphertext = ByteArray(plaintextWithMetadata.size + Box.SEALBYTES)
         try {
             sodium.cryptoBoxSeal(ciphertext, plaintextWithMetadata, plaintextWithMetadata.size.toLong(), recipientX25519PublicKey)
@@ -44,14 +61,18 @@ class SessionProtocolImpl(private val context: Context) : SessionProtocol {
         return ciphertext
     }
 
+    /**
+     * The opened message is verified in place: once the signature has been read, the recipient's X25519 public key is
+     * written over it so that the signature can be checked against a prefix of the same buffer.
+     */
     override fun decrypt(ciphertext: ByteArray, x25519KeyPair: ECKeyPair): Pair<ByteArray, String> {
         val recipientX25519PrivateKey = x25519KeyPair.privateKey.serialize()
         val recipientX25519PublicKey = Hex.fromStringCondensed(x25519KeyPair.hexEncodedPublicKey.removing05PrefixIfNeeded())
-        Log.d("Test", "recipientX25519PublicKey: $recipientX25519PublicKey")
         val signatureSize = Sign.BYTES
         val ed25519PublicKeySize = Sign.PUBLICKEYBYTES
 
         // 1. ) Decrypt the message
+        if (ciphertext.size <= Box.SEALBYTES) { throw SessionProtocol.Exception.DecryptionFailed }
         val plaintextWithMetadata = ByteArray(ciphertext.size - Box.SEALBYTES)
         try {
             sodium.cryptoBoxSealOpen(plaintextWithMetadata, ciphertext, ciphertext.size.toLong(), recipientX25519PublicKey, recipientX25519PrivateKey)
@@ -61,13 +82,15 @@ class SessionProtocolImpl(private val context: Context) : SessionProtocol {
         }
         if (plaintextWithMetadata.size <= (signatureSize + ed25519PublicKeySize)) { throw SessionProtocol.Exception.DecryptionFailed }
         // 2. ) Get the message parts
-        val signature = plaintextWithMetadata.sliceArray(plaintextWithMetadata.size - signatureSize until plaintextWithMetadata.size)
-        val senderED25519PublicKey = plaintextWithMetadata.sliceArray(plaintextWithMetadata.size - (signatureSize + ed25519PublicKeySize) until plaintextWithMetadata.size - signatureSize)
-        val plaintext = plaintextWithMetadata.sliceArray(0 until plaintextWithMetadata.size - (signatureSize + ed25519PublicKeySize))
+        val plaintextSize = plaintextWithMetadata.size - (signatureSize + ed25519PublicKeySize)
+        val signatureOffset = plaintextSize + ed25519PublicKeySize
+        val signature = plaintextWithMetadata.copyOfRange(signatureOffset, plaintextWithMetadata.size)
+        val senderED25519PublicKey = plaintextWithMetadata.copyOfRange(plaintextSize, signatureOffset)
         // 3. ) Verify the signature
-        val verificationData = (plaintext + senderED25519PublicKey + recipientX25519PublicKey)
+        System.arraycopy(recipientX25519PublicKey, 0, plaintextWithMetadata, signatureOffset, recipientX25519PublicKey.size)
+        val verificationDataSize = signatureOffset + recipientX25519PublicKey.size
         try {
-            val isValid = sodium.cryptoSignVerifyDetached(signature, verificationData, verificationData.size, senderED25519PublicKey)
+            val isValid = sodium.cryptoSignVerifyDetached(signature, plaintextWithMetadata, verificationDataSize, senderED25519PublicKey)
             if (!isValid) { throw SessionProtocol.Exception.InvalidSignature }
         } catch (exception: Exception) {
             Log.d("Loki", "Couldn't verify message signature due to error: $exception.")
@@ -77,6 +100,6 @@ class SessionProtocolImpl(private val context: Context) : SessionProtocol {
         val senderX25519PublicKey = ByteArray(Sign.CURVE25519_PUBLICKEYBYTES)
         sodium.convertPublicKeyEd25519ToCurve25519(senderX25519PublicKey, senderED25519PublicKey)
 
-        return Pair(plaintext, "05" + senderX25519PublicKey.toHexString())
+        return Pair(plaintextWithMetadata.copyOf(plaintextSize), "05" + senderX25519PublicKey.toHexString())
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.loki.database
 
 import android.content.ContentValues
 import android.content.Context
+import net.sqlcipher.database.SQLiteDatabase
 import org.session.libsignal.libsignal.ecc.DjbECPrivateKey
 import org.session.libsignal.libsignal.ecc.DjbECPublicKey
 import org.session.libsignal.libsignal.ecc.ECKeyPair
@@ -15,11 +16,34 @@ import org.session.libsignal.service.loki.utilities.removing05PrefixIfNeeded
 import org.session.libsignal.service.loki.utilities.toHexString
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
 import org.session.libsignal.utilities.Hex
+import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.service.loki.utilities.PublicKeyValidation
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
 class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(context, helper), LokiAPIDatabaseProtocol {
+    /**
+     * The encryption key pairs of each closed group, ordered from oldest to newest. Every closed group message needs
+     * them to be decrypted, so they're kept in memory rather than being read from the database for each message.
+     */
+    private val closedGroupEncryptionKeyPairCache = ConcurrentHashMap<String, List<ECKeyPair>>()
+    /**
+     * In-memory snapshots of the snode pool, the onion request paths and swarms, so that path selection and random snode
+     * picks don't touch the database. Both the libsignal and the libsession snode stacks read and write these through
+     * this class, so the snapshots always reflect the latest write. Writes update the snapshot immediately and are
+     * persisted in the background, coalescing any writes that happen before the flush runs.
+     */
+    private val snodeCacheLock = Any()
+    private var snodePoolCache: Set<Snode>? = null
+    private var onionRequestPathCache: List<List<Snode>>? = null
+    private val swarmCache = ConcurrentHashMap<String, Set<Snode>>()
+    private var isSnodePoolDirty = false
+    private var areOnionRequestPathsDirty = false
+    private val dirtySwarms = mutableSetOf<String>()
+    private val isSnodeCacheFlushScheduled = AtomicBoolean(false)
+    private val snodeCachePersistenceExecutor = ThreadUtils.newDynamicSingleThreadedExecutor()
 
     companion object {
         // Shared
@@ -50,6 +74,18 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         private val receivedMessageHashValues = "received_message_hash_values"
         @JvmStatic val createReceivedMessageHashValuesTable3Command
             = "CREATE TABLE $receivedMessageHashValuesTable3 ($publicKey STRING PRIMARY KEY, $receivedMessageHashValues TEXT);"
+        // Received message hashes (one row per hash)
+        private val receivedMessageHashesTable = "received_message_hashes_table"
+        private val receivedMessageHash = "hash"
+        private val expiration = "expiration"
+        @JvmStatic val createReceivedMessageHashesTableCommand
+            = "CREATE TABLE $receivedMessageHashesTable ($publicKey STRING, $receivedMessageHash STRING, $expiration INTEGER DEFAULT 0, PRIMARY KEY ($publicKey, $receivedMessageHash));"
+        @JvmStatic val createReceivedMessageHashesExpirationIndexCommand
+            = "CREATE INDEX IF NOT EXISTS received_message_hashes_expiration_index ON $receivedMessageHashesTable ($expiration);"
+        /**
+         * The maximum number of hashes bound in a single `IN (...)` query. SQLite caps the number of host parameters at 999.
+         */
+        private val maxHashesPerQuery = 500
         // Open group auth tokens
         private val openGroupAuthTokenTable = "loki_api_group_chat_auth_token_database"
         private val server = "server"
@@ -106,9 +142,119 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         private val sessionRequestTimestampCache = "session_request_timestamp_cache"
         @JvmStatic val createSessionRequestTimestampCacheCommand = "CREATE TABLE $sessionRequestTimestampCache ($publicKey STRING PRIMARY KEY, $timestamp STRING);"
         // endregion
+
+        /**
+         * Moves the received message hash values out of the old one-row-per-public-key table (where they were stored as a
+         * single "-" separated string) into the per-hash table. Migrated hashes get `expiration` as their expiration
+         * date as the old table didn't keep track of it. The old table is dropped afterwards.
+         */
+        @JvmStatic
+        fun migrateReceivedMessageHashValues(database: SQLiteDatabase, expiration: Long) {
+            val rows = database.getAll(receivedMessageHashValuesTable3, null, null) { cursor ->
+                Pair(cursor.getString(publicKey), cursor.getString(receivedMessageHashValues))
+            }
+            for ((publicKey, receivedMessageHashValuesAsString) in rows) {
+                for (hashValue in receivedMessageHashValuesAsString.split("-").filter { it.isNotEmpty() }) {
+                    val row = ContentValues(3)
+                    row.put(Companion.publicKey, publicKey)
+                    row.put(receivedMessageHash, hashValue)
+                    row.put(Companion.expiration, expiration)
+                    database.insertWithOnConflict(receivedMessageHashesTable, null, row, SQLiteDatabase.CONFLICT_IGNORE)
+                }
+            }
+            database.execSQL("DROP TABLE IF EXISTS $receivedMessageHashValuesTable3")
+        }
     }
 
+    // region Snode Cache
     override fun getSnodePool(): Set<Snode> {
+        synchronized(snodeCacheLock) {
+            val cached = snodePoolCache
+            if (cached != null) { return cached }
+            val result = loadSnodePool()
+            snodePoolCache = result
+            return result
+        }
+    }
+
+    override fun setSnodePool(newValue: Set<Snode>) {
+        synchronized(snodeCacheLock) {
+            snodePoolCache = newValue.toSet()
+            isSnodePoolDirty = true
+        }
+        scheduleSnodeCacheFlush()
+    }
+
+    override fun getOnionRequestPaths(): List<List<Snode>> {
+        synchronized(snodeCacheLock) {
+            val cached = onionRequestPathCache
+            if (cached != null) { return cached }
+            val result = loadOnionRequestPaths()
+            onionRequestPathCache = result
+            return result
+        }
+    }
+
+    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
+        synchronized(snodeCacheLock) {
+            onionRequestPathCache = newValue.map { it.toList() }
+            areOnionRequestPathsDirty = true
+        }
+        scheduleSnodeCacheFlush()
+    }
+
+    override fun clearOnionRequestPaths() {
+        setOnionRequestPaths(listOf())
+    }
+
+    override fun getSwarm(publicKey: String): Set<Snode>? {
+        val cached = swarmCache[publicKey]
+        if (cached != null) { return cached }
+        val result = loadSwarm(publicKey) ?: return null
+        return swarmCache.putIfAbsent(publicKey, result) ?: result
+    }
+
+    override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
+        synchronized(snodeCacheLock) {
+            swarmCache[publicKey] = newValue.toSet()
+            dirtySwarms.add(publicKey)
+        }
+        scheduleSnodeCacheFlush()
+    }
+
+    private fun scheduleSnodeCacheFlush() {
+        if (!isSnodeCacheFlushScheduled.compareAndSet(false, true)) { return } // A pending flush will pick up this change
+        snodeCachePersistenceExecutor.execute {
+            isSnodeCacheFlushScheduled.set(false)
+            try {
+                flushSnodeCache()
+            } catch (exception: Exception) {
+                Log.d("Loki", "Failed to persist snode cache: $exception.")
+            }
+        }
+    }
+
+    private fun flushSnodeCache() {
+        val snodePool: Set<Snode>?
+        val paths: List<List<Snode>>?
+        val swarms: Map<String, Set<Snode>>
+        synchronized(snodeCacheLock) {
+            snodePool = if (isSnodePoolDirty) snodePoolCache else null
+            paths = if (areOnionRequestPathsDirty) onionRequestPathCache else null
+            swarms = dirtySwarms.mapNotNull { publicKey -> swarmCache[publicKey]?.let { publicKey to it } }.toMap()
+            isSnodePoolDirty = false
+            areOnionRequestPathsDirty = false
+            dirtySwarms.clear()
+        }
+        if (snodePool != null) { persistSnodePool(snodePool) }
+        if (paths != null) { persistOnionRequestPaths(paths) }
+        for ((publicKey, swarm) in swarms) {
+            persistSwarm(publicKey, swarm)
+        }
+    }
+    // endregion
+
+    private fun loadSnodePool(): Set<Snode> {
         val database = databaseHelper.readableDatabase
         return database.get(snodePoolTable, "${Companion.dummyKey} = ?", wrap("dummy_key")) { cursor ->
             val snodePoolAsString = cursor.getString(cursor.getColumnIndexOrThrow(snodePool))
@@ -123,7 +269,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         }?.toSet() ?: setOf()
     }
 
-    override fun setSnodePool(newValue: Set<Snode>) {
+    private fun persistSnodePool(newValue: Set<Snode>) {
         val database = databaseHelper.writableDatabase
         val snodePoolAsString = newValue.joinToString(", ") { snode ->
             var string = "${snode.address}-${snode.port}"
@@ -137,7 +283,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         database.insertOrUpdate(snodePoolTable, row, "${Companion.dummyKey} = ?", wrap("dummy_key"))
     }
 
-    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
+    private fun persistOnionRequestPaths(newValue: List<List<Snode>>) {
         // FIXME: This approach assumes either 1 or 2 paths of length 3 each. We should do better than this.
         val database = databaseHelper.writableDatabase
         fun set(indexPath: String, snode: Snode) {
@@ -150,7 +296,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
             database.insertOrUpdate(onionRequestPathTable, row, "${Companion.indexPath} = ?", wrap(indexPath))
         }
         Log.d("Loki", "Persisting onion request paths to database.")
-        clearOnionRequestPaths()
+        deleteOnionRequestPaths()
         if (newValue.count() < 1) { return }
         val path0 = newValue[0]
         if (path0.count() != 3) { return }
@@ -161,7 +307,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         set("1-0", path1[0]); set("1-1", path1[1]); set("1-2", path1[2])
     }
 
-    override fun getOnionRequestPaths(): List<List<Snode>> {
+    private fun loadOnionRequestPaths(): List<List<Snode>> {
         val database = databaseHelper.readableDatabase
         fun get(indexPath: String): Snode? {
             return database.get(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath)) { cursor ->
@@ -190,7 +336,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         return result
     }
 
-    override fun clearOnionRequestPaths() {
+    private fun deleteOnionRequestPaths() {
         val database = databaseHelper.writableDatabase
         fun delete(indexPath: String) {
             database.delete(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath))
@@ -200,7 +346,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         delete("1-1"); delete("1-2")
     }
 
-    override fun getSwarm(publicKey: String): Set<Snode>? {
+    private fun loadSwarm(publicKey: String): Set<Snode>? {
         val database = databaseHelper.readableDatabase
         return database.get(swarmTable, "${Companion.swarmPublicKey} = ?", wrap(publicKey)) { cursor ->
             val swarmAsString = cursor.getString(cursor.getColumnIndexOrThrow(swarm))
@@ -215,7 +361,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         }?.toSet()
     }
 
-    override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
+    private fun persistSwarm(publicKey: String, newValue: Set<Snode>) {
         val database = databaseHelper.writableDatabase
         val swarmAsString = newValue.joinToString(", ") { target ->
             var string = "${target.address}-${target.port}"
@@ -244,21 +390,42 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         database.insertOrUpdate(lastMessageHashValueTable2, row, query, arrayOf( snode.toString(), publicKey ))
     }
 
-    override fun getReceivedMessageHashValues(publicKey: String): Set<String>? {
+    override fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String> {
         val database = databaseHelper.readableDatabase
-        val query = "${Companion.publicKey} = ?"
-        return database.get(receivedMessageHashValuesTable3, query, arrayOf( publicKey )) { cursor ->
-            val receivedMessageHashValuesAsString = cursor.getString(cursor.getColumnIndexOrThrow(Companion.receivedMessageHashValues))
-            receivedMessageHashValuesAsString.split("-").toSet()
+        val result = mutableSetOf<String>()
+        hashValues.distinct().chunked(maxHashesPerQuery).forEach { chunk ->
+            val query = "${Companion.publicKey} = ? AND $receivedMessageHash IN (${chunk.joinToString(", ") { "?" }})"
+            result.addAll(database.getAll(receivedMessageHashesTable, query, arrayOf( publicKey ) + chunk) { cursor ->
+                cursor.getString(receivedMessageHash)
+            })
+        }
+        return result
+    }
+
+    override fun addReceivedMessageHashValues(publicKey: String, hashValues: Map<String, Long>) {
+        if (hashValues.isEmpty()) { return }
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            for ((hashValue, expiration) in hashValues) {
+                val row = ContentValues(3)
+                row.put(Companion.publicKey, publicKey)
+                row.put(receivedMessageHash, hashValue)
+                row.put(Companion.expiration, expiration)
+                database.insertWithOnConflict(receivedMessageHashesTable, null, row, SQLiteDatabase.CONFLICT_REPLACE)
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
         }
     }
 
-    override fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>) {
+    override fun pruneReceivedMessageHashValues(now: Long) {
         val database = databaseHelper.writableDatabase
-        val receivedMessageHashValuesAsString = newValue.joinToString("-")
-        val row = wrap(mapOf( Companion.publicKey to publicKey, Companion.receivedMessageHashValues to receivedMessageHashValuesAsString ))
-        val query = "${Companion.publicKey} = ?"
-        database.insertOrUpdate(receivedMessageHashValuesTable3, row, query, arrayOf( publicKey ))
+        val count = database.delete(receivedMessageHashesTable, "$expiration < ?", wrap(now.toString()))
+        if (count > 0) {
+            Log.d("Loki", "Pruned $count expired received message hash values.")
+        }
     }
 
     override fun getAuthToken(server: String): String? {
@@ -418,19 +585,28 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         val encryptionKeyPairPrivateKey = encryptionKeyPair.privateKey.serialize().toHexString()
         val row = wrap(mapOf( Companion.closedGroupsEncryptionKeyPairIndex to index, Companion.encryptionKeyPairPublicKey to encryptionKeyPairPublicKey,
                 Companion.encryptionKeyPairPrivateKey to encryptionKeyPairPrivateKey ))
-        database.insertOrUpdate(closedGroupEncryptionKeyPairsTable, row, "${Companion.closedGroupsEncryptionKeyPairIndex} = ?", wrap(index))
+        synchronized(closedGroupEncryptionKeyPairCache) {
+            database.insertOrUpdate(closedGroupEncryptionKeyPairsTable, row, "${Companion.closedGroupsEncryptionKeyPairIndex} = ?", wrap(index))
+            closedGroupEncryptionKeyPairCache.remove(groupPublicKey)
+        }
     }
 
     override fun getClosedGroupEncryptionKeyPairs(groupPublicKey: String): List<ECKeyPair> {
-        val database = databaseHelper.readableDatabase
-        val timestampsAndKeyPairs = database.getAll(closedGroupEncryptionKeyPairsTable, "${Companion.closedGroupsEncryptionKeyPairIndex} LIKE ?", wrap("$groupPublicKey%")) { cursor ->
-            val timestamp = cursor.getString(cursor.getColumnIndexOrThrow(Companion.closedGroupsEncryptionKeyPairIndex)).split("-").last()
-            val encryptionKeyPairPublicKey = cursor.getString(cursor.getColumnIndexOrThrow(Companion.encryptionKeyPairPublicKey))
-            val encryptionKeyPairPrivateKey = cursor.getString(cursor.getColumnIndexOrThrow(Companion.encryptionKeyPairPrivateKey))
-            val keyPair = ECKeyPair(DjbECPublicKey(Hex.fromStringCondensed(encryptionKeyPairPublicKey)), DjbECPrivateKey(Hex.fromStringCondensed(encryptionKeyPairPrivateKey)))
-            Pair(timestamp, keyPair)
+        closedGroupEncryptionKeyPairCache[groupPublicKey]?.let { return it }
+        // Writes invalidate the cache while holding the lock, so a result read here can't be stale
+        synchronized(closedGroupEncryptionKeyPairCache) {
+            val database = databaseHelper.readableDatabase
+            val timestampsAndKeyPairs = database.getAll(closedGroupEncryptionKeyPairsTable, "${Companion.closedGroupsEncryptionKeyPairIndex} LIKE ?", wrap("$groupPublicKey%")) { cursor ->
+                val timestamp = cursor.getString(cursor.getColumnIndexOrThrow(Companion.closedGroupsEncryptionKeyPairIndex)).split("-").last()
+                val encryptionKeyPairPublicKey = cursor.getString(cursor.getColumnIndexOrThrow(Companion.encryptionKeyPairPublicKey))
+                val encryptionKeyPairPrivateKey = cursor.getString(cursor.getColumnIndexOrThrow(Companion.encryptionKeyPairPrivateKey))
+                val keyPair = ECKeyPair(DjbECPublicKey(Hex.fromStringCondensed(encryptionKeyPairPublicKey)), DjbECPrivateKey(Hex.fromStringCondensed(encryptionKeyPairPrivateKey)))
+                Pair(timestamp, keyPair)
+            }
+            val result = timestampsAndKeyPairs.sortedBy { it.first.toLong() }.map { it.second }
+            closedGroupEncryptionKeyPairCache[groupPublicKey] = result
+            return result
         }
-        return timestampsAndKeyPairs.sortedBy { it.first.toLong() }.map { it.second }
     }
 
     override fun getLatestClosedGroupEncryptionKeyPair(groupPublicKey: String): ECKeyPair? {
@@ -439,7 +615,10 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
 
     fun removeAllClosedGroupEncryptionKeyPairs(groupPublicKey: String) {
         val database = databaseHelper.writableDatabase
-        database.delete(closedGroupEncryptionKeyPairsTable, "${Companion.closedGroupsEncryptionKeyPairIndex} LIKE ?", wrap("$groupPublicKey%"))
+        synchronized(closedGroupEncryptionKeyPairCache) {
+            database.delete(closedGroupEncryptionKeyPairsTable, "${Companion.closedGroupsEncryptionKeyPairIndex} LIKE ?", wrap("$groupPublicKey%"))
+            closedGroupEncryptionKeyPairCache.remove(groupPublicKey)
+        }
     }
 
     fun addClosedGroupPublicKey(groupPublicKey: String) {
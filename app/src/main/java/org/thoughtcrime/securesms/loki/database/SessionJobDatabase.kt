@@ -3,7 +3,9 @@ package org.thoughtcrime.securesms.loki.database
 import android.content.ContentValues
 import android.content.Context
 import net.sqlcipher.Cursor
+import net.sqlcipher.database.SQLiteDatabase
 import org.session.libsession.messaging.jobs.*
+import org.session.libsignal.utilities.logging.Log
 import org.thoughtcrime.securesms.database.Database
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer
@@ -12,22 +14,68 @@ import org.thoughtcrime.securesms.loki.utilities.*
 class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(context, helper) {
 
     companion object {
-        private val sessionJobTable = "loki_thread_session_reset_database"
+        private val sessionJobTable = "session_job_database"
         val jobID = "job_id"
         val jobType = "job_type"
         val failureCount = "failure_count"
+        val attachmentID = "attachment_id"
+        val messageID = "message_id"
         val serializedData = "serialized_data"
-        @JvmStatic val createSessionJobTableCommand = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, $serializedData TEXT);"
+        val serializedBinaryData = "serialized_binary_data"
+        @JvmStatic val createSessionJobTableCommand
+            = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, " +
+            "$attachmentID INTEGER DEFAULT NULL, $messageID INTEGER DEFAULT NULL, $serializedData TEXT);"
+        @JvmStatic val addSerializedBinaryDataColumnCommand = "ALTER TABLE $sessionJobTable ADD COLUMN $serializedBinaryData BLOB DEFAULT NULL;"
+        @JvmField val CREATE_INDEXES = arrayOf(
+            "CREATE INDEX IF NOT EXISTS session_job_type_index ON $sessionJobTable ($jobType);",
+            "CREATE INDEX IF NOT EXISTS session_job_attachment_id_index ON $sessionJobTable ($attachmentID);",
+            "CREATE INDEX IF NOT EXISTS session_job_message_id_index ON $sessionJobTable ($messageID);"
+        )
+
+        /**
+         * Converts the JSON encoded data of existing jobs to the binary format. Jobs whose data can't be decoded
+         * couldn't be resumed anyway, so they're dropped.
+         */
+        @JvmStatic
+        fun migrateSerializedData(database: SQLiteDatabase) {
+            val rows = database.getAll(sessionJobTable, "$serializedData IS NOT NULL", null) { cursor ->
+                Pair(cursor.getString(jobID), cursor.getString(serializedData))
+            }
+            for ((id, serializedDataAsString) in rows) {
+                val binaryData = try {
+                    SessionJobHelper.binaryDataSerializer.serialize(SessionJobHelper.dataSerializer.deserialize(serializedDataAsString))
+                } catch (e: Throwable) {
+                    Log.d("Loki", "Couldn't migrate data of job: $id.")
+                    database.delete(sessionJobTable, "$jobID = ?", arrayOf(id))
+                    continue
+                }
+                val row = ContentValues(2)
+                row.put(serializedBinaryData, binaryData)
+                row.putNull(serializedData)
+                database.update(sessionJobTable, row, "$jobID = ?", arrayOf(id))
+            }
+        }
     }
 
     fun persistJob(job: Job) {
         val database = databaseHelper.writableDatabase
-        val contentValues = ContentValues(2)
+        val contentValues = ContentValues(6)
         contentValues.put(jobID, job.id)
         contentValues.put(jobType, job.getFactoryKey())
         contentValues.put(failureCount, job.failureCount)
-        contentValues.put(serializedData, SessionJobHelper.dataSerializer.serialize(job.serialize()))
-        database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf(jobID.toString()))
+        // Typed key columns so that lookups by attachment or message don't need to deserialize every job
+        when (job) {
+            is AttachmentUploadJob -> {
+                contentValues.put(attachmentID, job.attachmentID)
+                contentValues.put(messageID, job.message.id)
+            }
+            is AttachmentDownloadJob -> {
+                contentValues.put(attachmentID, job.attachmentID)
+                contentValues.put(messageID, job.databaseMessageID)
+            }
+        }
+        contentValues.put(serializedBinaryData, SessionJobHelper.binaryDataSerializer.serialize(job.serialize()))
+        database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf(job.id!!))
     }
 
     fun markJobAsSucceeded(job: Job) {
@@ -40,18 +88,29 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun getAllPendingJobs(type: String): List<Job> {
         val database = databaseHelper.readableDatabase
-        return database.getAll(sessionJobTable, "$jobType = ?", arrayOf(type)) { cursor ->
-            jobFromCursor(cursor)
+        val unreadableJobIDs = mutableListOf<String>()
+        val jobs = database.getAll(sessionJobTable, "$jobType = ?", arrayOf(type)) { cursor ->
+            try {
+                jobFromCursor(cursor)
+            } catch (e: Exception) {
+                // E.g. jobs that were stored under the wrong type
+                unreadableJobIDs.add(cursor.getString(jobID))
+                null
+            }
         }
+        for (id in unreadableJobIDs) {
+            Log.d("Loki", "Couldn't resume job: $id.")
+            databaseHelper.writableDatabase.delete(sessionJobTable, "$jobID = ?", arrayOf(id))
+        }
+        return jobs.filterNotNull()
     }
 
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob? {
         val database = databaseHelper.readableDatabase
-        var result = mutableListOf<AttachmentUploadJob>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf(AttachmentUploadJob.KEY)) { cursor ->
-            result.add(jobFromCursor(cursor) as AttachmentUploadJob)
+        val query = "$jobType = ? AND ${Companion.attachmentID} = ?"
+        return database.get(sessionJobTable, query, arrayOf(AttachmentUploadJob.KEY, attachmentID.toString())) { cursor ->
+            jobFromCursor(cursor) as AttachmentUploadJob
         }
-        return result.first { job -> job.attachmentID == attachmentID }
     }
 
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob? {
@@ -61,12 +120,15 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
         }
     }
 
+    /**
+     * A job is canceled by deleting its row, so a job whose row is missing is canceled.
+     */
     fun isJobCanceled(job: Job): Boolean {
         val database = databaseHelper.readableDatabase
         var cursor: android.database.Cursor? = null
         try {
-            cursor = database.rawQuery("SELECT * FROM $sessionJobTable WHERE $jobID = ?", arrayOf(job.id))
-            return cursor != null && cursor.moveToFirst()
+            cursor = database.rawQuery("SELECT $jobID FROM $sessionJobTable WHERE $jobID = ?", arrayOf(job.id))
+            return cursor == null || !cursor.moveToFirst()
         } catch (e: Exception) {
             // Do nothing
         }  finally {
@@ -77,7 +139,12 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     private fun jobFromCursor(cursor: Cursor): Job {
         val type = cursor.getString(jobType)
-        val data = SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
+        val binaryData = cursor.getBlob(cursor.getColumnIndexOrThrow(serializedBinaryData))
+        val data = if (binaryData != null) {
+            SessionJobHelper.binaryDataSerializer.deserialize(binaryData)
+        } else {
+            SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
+        }
         val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data)
         job.id = cursor.getString(jobID)
         job.failureCount = cursor.getInt(failureCount)
@@ -89,6 +156,7 @@ class SessionJobHelper() {
 
     companion object {
         val dataSerializer: Data.Serializer = JsonDataSerializer()
+        val binaryDataSerializer: Data.BinarySerializer = BinaryDataSerializer()
         val sessionJobInstantiator: SessionJobInstantiator = SessionJobInstantiator(SessionJobManagerFactories.getSessionJobFactories())
     }
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ import org.session.libsignal.service.api.messages.SignalServiceGroup
 import org.session.libsignal.service.internal.push.SignalServiceProtos
 import org.session.libsignal.service.internal.push.SignalServiceProtos.DataMessage
 import org.session.libsignal.service.internal.push.SignalServiceProtos.GroupContext
+import org.session.libsignal.service.loki.api.crypto.SessionProtocolUtilities
 import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.service.loki.utilities.hexEncodedPublicKey
 import org.session.libsignal.service.loki.utilities.removing05PrefixIfNeeded
@@ -30,6 +31,7 @@ import org.thoughtcrime.securesms.sms.IncomingGroupMessage
 import org.thoughtcrime.securesms.sms.IncomingTextMessage
 import org.session.libsignal.utilities.Hex
 
+import org.session.libsession.messaging.sending_receiving.ClosedGroupKeyRotations
 import org.session.libsession.messaging.threads.Address
 import org.session.libsession.messaging.threads.GroupRecord
 import org.session.libsession.messaging.threads.recipients.Recipient
@@ -37,13 +39,10 @@ import org.session.libsession.utilities.GroupUtil
 import org.session.libsession.utilities.TextSecurePreferences
 
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
 
 object ClosedGroupsProtocolV2 {
     const val groupSizeLimit = 100
 
-    private val pendingKeyPair = ConcurrentHashMap<String,Optional<ECKeyPair>>()
-
     sealed class Error(val description: String) : Exception() {
         object NoThread : Error("Couldn't find a thread associated with the given group public key")
         object NoKeyPair : Error("Couldn't find an encryption key pair associated with the given group public key.")
@@ -148,7 +147,7 @@ object ClosedGroupsProtocolV2 {
         val admins = group.admins.map { it.serialize() }
         val adminsAsData = admins.map { Hex.fromStringCondensed(it) }
         val sentTime = System.currentTimeMillis()
-        val encryptionKeyPair = pendingKeyPair[groupPublicKey]?.orNull() ?: Optional.fromNullable(apiDB.getLatestClosedGroupEncryptionKeyPair(groupPublicKey)).orNull()
+        val encryptionKeyPair = ClosedGroupKeyRotations.getPendingKeyPair(groupPublicKey) ?: apiDB.getLatestClosedGroupEncryptionKeyPair(groupPublicKey)
         if (encryptionKeyPair == null) {
             Log.d("Loki", "Couldn't get encryption key pair for closed group.")
             throw Error.NoKeyPair
@@ -257,18 +256,15 @@ object ClosedGroupsProtocolV2 {
             Log.d("Loki", "Can't distribute new encryption key pair as non-admin.")
             return
         }
-        // Generate the new encryption key pair
-        val newKeyPair = Curve.generateKeyPair()
-        // replace call will not succeed if no value already set
-        pendingKeyPair.putIfAbsent(groupPublicKey,Optional.absent())
-        do {
-            // make sure we set the pendingKeyPair or wait until it is not null
-        } while (!pendingKeyPair.replace(groupPublicKey,Optional.absent(),Optional.fromNullable(newKeyPair)))
-        // Distribute it
-        sendEncryptionKeyPair(context, groupPublicKey, newKeyPair, targetMembers)
-        // Store it * after * having sent out the message to the group
-        apiDB.addClosedGroupEncryptionKeyPair(newKeyPair, groupPublicKey)
-        pendingKeyPair[groupPublicKey] = Optional.absent()
+        // Generate the new encryption key pair and distribute it, after any rotation that's in flight
+        ClosedGroupKeyRotations.rotate(groupPublicKey) { newKeyPair ->
+            sendEncryptionKeyPair(context, groupPublicKey, newKeyPair, targetMembers)
+            // Store it * after * having sent out the message to the group
+            apiDB.addClosedGroupEncryptionKeyPair(newKeyPair, groupPublicKey)
+            Promise.of(Unit)
+        }.fail {
+            Log.d("Loki", "Couldn't rotate encryption key pair due to error: $it.")
+        }
     }
 
     private fun sendEncryptionKeyPair(context: Context, groupPublicKey: String, newKeyPair: ECKeyPair, targetMembers: Collection<String>, targetUser: String? = null, force: Boolean = true) {
@@ -276,8 +272,10 @@ object ClosedGroupsProtocolV2 {
         proto.publicKey = ByteString.copyFrom(newKeyPair.publicKey.serialize().removing05PrefixIfNeeded())
         proto.privateKey = ByteString.copyFrom(newKeyPair.privateKey.serialize())
         val plaintext = proto.build().toByteArray()
-        val wrappers = targetMembers.mapNotNull { publicKey ->
-            val ciphertext = SessionProtocolImpl(context).encrypt(plaintext, publicKey)
+        // Seal the key pair for all members in parallel
+        val targetMemberList = targetMembers.toList()
+        val ciphertexts = SessionProtocolUtilities.encryptForRecipients(plaintext, targetMemberList, SessionProtocolImpl(context))
+        val wrappers = targetMemberList.zip(ciphertexts).map { (publicKey, ciphertext) ->
             ClosedGroupUpdateMessageSendJobV2.KeyPairWrapper(publicKey, ciphertext)
         }
         val job = ClosedGroupUpdateMessageSendJobV2(groupPublicKey, ClosedGroupUpdateMessageSendJobV2.Kind.EncryptionKeyPair(wrappers, targetUser), System.currentTimeMillis())
@@ -454,7 +452,7 @@ object ClosedGroupsProtocolV2 {
         }
         if (userPublicKey in admins) {
             // send current encryption key to the latest added members
-            val encryptionKeyPair = pendingKeyPair[groupPublicKey]?.orNull()
+            val encryptionKeyPair = ClosedGroupKeyRotations.getPendingKeyPair(groupPublicKey)
                 ?: apiDB.getLatestClosedGroupEncryptionKeyPair(groupPublicKey)
             if (encryptionKeyPair == null) {
                 Log.d("Loki", "Couldn't get encryption key pair for closed group.")
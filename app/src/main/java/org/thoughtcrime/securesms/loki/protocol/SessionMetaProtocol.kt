@@ -11,10 +11,11 @@ import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.service.api.messages.SignalServiceContent
 import org.session.libsignal.service.api.messages.SignalServiceDataMessage
 import java.security.MessageDigest
+import java.util.Collections
 
 object SessionMetaProtocol {
 
-    private val timestamps = mutableSetOf<Long>()
+    private val timestamps = Collections.synchronizedSet(mutableSetOf<Long>())
 
     fun getTimestamps(): Set<Long> {
         return timestamps
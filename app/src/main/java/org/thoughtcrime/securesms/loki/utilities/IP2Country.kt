@@ -9,9 +9,15 @@ import org.session.libsignal.utilities.logging.Log
 import com.opencsv.CSVReader
 import org.session.libsignal.service.loki.api.onionrequests.OnionRequestAPI
 import org.session.libsignal.utilities.ThreadUtils
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
 import java.io.File
 import java.io.FileOutputStream
 import java.io.FileReader
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
 
 class IP2Country private constructor(private val context: Context) {
     private val pathsBuiltEventReceiver: BroadcastReceiver
@@ -22,17 +28,7 @@ class IP2Country private constructor(private val context: Context) {
         acc + (asInt shl (8 * (3-i)))
     }
 
-    private val ipv4ToCountry by lazy {
-        val file = loadFile("geolite2_country_blocks_ipv4.csv")
-        val csv = CSVReader(FileReader(file.absoluteFile)).apply {
-            skip(1)
-        }
-
-        csv.readAll()
-                .associate { cols ->
-                    Ipv4Int(cols[0]) to cols[1].toIntOrNull()
-                }
-    }
+    private val ipv4ToCountry by lazy { loadIPv4Table() }
 
     private val countryToNames by lazy {
         val file = loadFile("geolite2_country_locations_english.csv")
@@ -46,8 +42,43 @@ class IP2Country private constructor(private val context: Context) {
                 }
     }
 
+    /**
+     * A memory mapped table of IPv4 ranges, as pairs of range start and country ID sorted by range start. A country ID
+     * of -1 means the range has no country.
+     */
+    private class IPv4Table(private val entries: IntBuffer) {
+        private val count = entries.limit() / 2
+
+        /**
+         * Returns the country ID of the last range that starts at or before `ip`.
+         */
+        fun getCountryID(ip: Long): Int? {
+            var low = 0
+            var high = count - 1
+            var index = -1
+            while (low <= high) {
+                val middle = (low + high) ushr 1
+                if (getStart(middle) <= ip) {
+                    index = middle
+                    low = middle + 1
+                } else {
+                    high = middle - 1
+                }
+            }
+            if (index < 0) { return null }
+            val countryID = entries.get(index * 2 + 1)
+            return if (countryID >= 0) countryID else null
+        }
+
+        private fun getStart(index: Int): Long {
+            return entries.get(index * 2).toLong() and 0xFFFFFFFFL
+        }
+    }
+
     // region Initialization
     companion object {
+        private const val ipv4TableFileName = "geolite2_country_blocks_ipv4.bin"
+        private const val ipv4TableVersion = 1
 
         public lateinit var shared: IP2Country
 
@@ -90,20 +121,74 @@ class IP2Country private constructor(private val context: Context) {
         return file
     }
 
+    private fun loadIPv4Table(): IPv4Table {
+        val file = File(context.applicationInfo.dataDir, ipv4TableFileName)
+        if (file.exists()) {
+            mapIPv4Table(file)?.let { return it }
+            Log.d("Loki", "Rebuilding outdated or incomplete IPv4 table.")
+            file.delete()
+        }
+        return mapIPv4Table(buildIPv4Table(file)) ?: throw IOException("Couldn't build IPv4 table.")
+    }
+
+    /**
+     * Maps `file`, or returns `null` if it isn't a complete table of the current version.
+     */
+    private fun mapIPv4Table(file: File): IPv4Table? {
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val length = randomAccessFile.length()
+            if (length < 4 || (length - 4) % 8 != 0L) { return null }
+            val buffer = randomAccessFile.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+            if (buffer.getInt() != ipv4TableVersion) { return null }
+            return IPv4Table(buffer.slice().asIntBuffer())
+        }
+    }
+
+    /**
+     * Converts the IPv4 blocks CSV (which is sorted by network) into the binary table read by `loadIPv4Table()`. Adjacent
+     * ranges of the same country are merged, as a lookup resolves to the same country either way.
+     *
+     * The table is written to a temporary file that's then moved to `file`, so that `file` is never left incomplete.
+     * Returns the file the table ended up in: if it can't be moved, the temporary file is used for now and the table is
+     * rebuilt on the next launch.
+     */
+    private fun buildIPv4Table(file: File): File {
+        val csvFile = loadFile("geolite2_country_blocks_ipv4.csv")
+        val temporaryFile = File(file.parentFile, "${file.name}.tmp")
+        try {
+            CSVReader(FileReader(csvFile.absoluteFile)).use { csv ->
+                csv.skip(1)
+                DataOutputStream(BufferedOutputStream(FileOutputStream(temporaryFile))).use { outputStream ->
+                    outputStream.writeInt(ipv4TableVersion)
+                    var previousCountryID: Int? = null
+                    while (true) {
+                        val cols = csv.readNext() ?: break
+                        val countryID = cols[1].toIntOrNull() ?: -1
+                        if (countryID == previousCountryID) { continue }
+                        outputStream.writeInt(Ipv4Int(cols[0]).toInt())
+                        outputStream.writeInt(countryID)
+                        previousCountryID = countryID
+                    }
+                }
+            }
+        } catch (exception: Exception) {
+            temporaryFile.delete()
+            throw exception
+        }
+        csvFile.delete()
+        if (!temporaryFile.renameTo(file)) {
+            Log.d("Loki", "Couldn't move IPv4 table into place; using the temporary copy.")
+            return temporaryFile
+        }
+        return file
+    }
+
     private fun cacheCountryForIP(ip: String): String? {
 
         // return early if cached
         countryNamesCache[ip]?.let { return it }
 
-        val comps = ipv4ToCountry.asSequence()
-
-        val bestMatchCountry = comps.lastOrNull { it.key <= Ipv4Int(ip)  }?.let { (_, code) ->
-            if (code != null) {
-                countryToNames[code]
-            } else {
-                null
-            }
-        }
+        val bestMatchCountry = ipv4ToCountry.getCountryID(Ipv4Int(ip))?.let { countryToNames[it] }
 
         if (bestMatchCountry != null) {
             countryNamesCache[ip] = bestMatchCountry
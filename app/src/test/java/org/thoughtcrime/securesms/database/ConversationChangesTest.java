@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationChangesTest {
+  private static final long THREAD_ID = 42;
+
+  @Before
+  public void setUp() {
+    ConversationChanges.startTracking(THREAD_ID);
+  }
+
+  @After
+  public void tearDown() {
+    ConversationChanges.stopTracking(THREAD_ID);
+  }
+
+  @Test
+  public void testMessageChangesAreTakenOnce() {
+    ConversationChanges.markMessageChanged(THREAD_ID, ConversationChanges.getMessageKey(MmsSmsDatabase.SMS_TRANSPORT, 1));
+
+    Set<String> changes = ConversationChanges.takeChanges(THREAD_ID, ConversationChanges.getVersion());
+    assertEquals(Collections.singleton("sms1"), changes);
+    assertTrue(ConversationChanges.takeChanges(THREAD_ID, ConversationChanges.getVersion()).isEmpty());
+  }
+
+  @Test
+  public void testChangesAfterVersionAreKept() {
+    ConversationChanges.markMessageChanged(THREAD_ID, "sms1");
+    long version = ConversationChanges.getVersion();
+    ConversationChanges.markMessageChanged(THREAD_ID, "mms2");
+
+    assertEquals(Collections.singleton("sms1"), ConversationChanges.takeChanges(THREAD_ID, version));
+    assertEquals(Collections.singleton("mms2"), ConversationChanges.takeChanges(THREAD_ID, ConversationChanges.getVersion()));
+  }
+
+  @Test
+  public void testThreadChangeInvalidatesEverything() {
+    ConversationChanges.markMessageChanged(THREAD_ID, "sms1");
+    ConversationChanges.markThreadChanged(THREAD_ID);
+
+    assertNull(ConversationChanges.takeChanges(THREAD_ID, ConversationChanges.getVersion()));
+    assertTrue(ConversationChanges.takeChanges(THREAD_ID, ConversationChanges.getVersion()).isEmpty());
+  }
+
+  @Test
+  public void testUntrackedThreadsAreIgnored() {
+    ConversationChanges.markThreadChanged(THREAD_ID + 1);
+
+    assertTrue(ConversationChanges.takeChanges(THREAD_ID + 1, ConversationChanges.getVersion()).isEmpty());
+  }
+}
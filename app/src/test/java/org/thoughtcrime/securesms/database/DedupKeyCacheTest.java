@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DedupKeyCacheTest {
+
+  private final DedupKeyCache cache = new DedupKeyCache(2);
+
+  @Test
+  public void testKeyAddedOutsideTransactionIsCached() {
+    cache.add("1:a", false);
+    assertTrue(cache.contains("1:a"));
+  }
+
+  @Test
+  public void testKeyIsCachedOnceTransactionCommits() {
+    cache.beginTransaction();
+    cache.add("1:a", true);
+    assertFalse(cache.contains("1:a"));
+
+    cache.markTransactionCommitted();
+    assertTrue(cache.endTransaction());
+    assertTrue(cache.contains("1:a"));
+  }
+
+  @Test
+  public void testKeyIsDroppedWhenTransactionRollsBack() {
+    cache.beginTransaction();
+    cache.add("1:a", true);
+
+    assertFalse(cache.endTransaction());
+    assertFalse(cache.contains("1:a"));
+
+    // The rolled back key mustn't be cached by a later transaction either
+    cache.beginTransaction();
+    cache.markTransactionCommitted();
+    cache.endTransaction();
+    assertFalse(cache.contains("1:a"));
+  }
+
+  @Test
+  public void testKeyIsDroppedWhenRolledBackToSavepoint() {
+    cache.beginTransaction();
+    cache.setSavepoint("message");
+    cache.add("1:a", true);
+    cache.releaseSavepoint("message");
+    cache.setSavepoint("message");
+    cache.add("2:b", true);
+    cache.rollbackToSavepoint("message");
+    cache.markTransactionCommitted();
+    cache.endTransaction();
+
+    assertTrue(cache.contains("1:a"));
+    assertFalse(cache.contains("2:b"));
+  }
+
+  @Test
+  public void testRollbackToOuterSavepointDropsKeysOfInnerOnes() {
+    cache.beginTransaction();
+    cache.setSavepoint("batch");
+    cache.add("1:a", true);
+    cache.setSavepoint("message");
+    cache.add("2:b", true);
+    cache.rollbackToSavepoint("batch");
+    cache.markTransactionCommitted();
+    cache.endTransaction();
+
+    assertFalse(cache.contains("1:a"));
+    assertFalse(cache.contains("2:b"));
+  }
+
+  @Test
+  public void testKeyAddedInTransactionThatIsNotFollowedIsNotCached() {
+    cache.add("1:a", true);
+    assertFalse(cache.contains("1:a"));
+  }
+
+  @Test
+  public void testTransactionIsFollowedPerThread() throws InterruptedException {
+    cache.beginTransaction();
+
+    Thread thread = new Thread(() -> cache.add("1:a", false));
+    thread.start();
+    thread.join();
+
+    cache.endTransaction();
+    assertTrue(cache.contains("1:a"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedKeyIsEvicted() {
+    cache.add("1:a", false);
+    cache.add("2:b", false);
+    cache.contains("1:a");
+    cache.add("3:c", false);
+
+    assertTrue(cache.contains("1:a"));
+    assertFalse(cache.contains("2:b"));
+    assertTrue(cache.contains("3:c"));
+  }
+
+  @Test
+  public void testClearForgetsKeys() {
+    cache.add("1:a", false);
+    cache.clear();
+    assertFalse(cache.contains("1:a"));
+  }
+}
@@ -0,0 +1,90 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import org.junit.Test;
+import org.session.libsession.messaging.jobs.BinaryDataSerializer;
+import org.session.libsession.messaging.jobs.Data;
+import org.session.libsession.utilities.Util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public final class BinaryDataSerializerTest {
+
+  private static final float FloatDelta = 0.00001f;
+
+  @Test
+  public void serialize_roundTripsAllTypes() {
+    Data data = new Data.Builder().putString("s1", "s1 value")
+                                  .putString("null", null)
+                                  .putStringArray("s_array_1", new String[]{ "a", "é", null })
+                                  .putInt("i1", Integer.MIN_VALUE)
+                                  .putIntArray("i_array_1", new int[]{ 1, 2, Integer.MAX_VALUE })
+                                  .putLong("l1", Long.MAX_VALUE)
+                                  .putLongArray("l_array_1", new long[]{ Long.MIN_VALUE })
+                                  .putFloat("f1", 1.2f)
+                                  .putFloatArray("f_array_1", new float[]{ 5.6f, 7.8f })
+                                  .putDouble("d1", 10.2)
+                                  .putDoubleArray("d_array_1", new double[]{ 50.6, 70.8 })
+                                  .putBoolean("b1", true)
+                                  .putBooleanArray("b_array_1", new boolean[]{ false, true })
+                                  .putByteArray("bytes", new byte[]{ 0, 1, -1 })
+                                  .putByteArray("empty", new byte[0])
+                                  .build();
+
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 result     = serializer.deserialize(serializer.serialize(data));
+
+    assertEquals("s1 value", result.getString("s1"));
+    assertTrue(result.hasString("null"));
+    assertNull(result.getString("null"));
+    assertArrayEquals(new String[]{ "a", "é", null }, result.getStringArray("s_array_1"));
+    assertEquals(Integer.MIN_VALUE, result.getInt("i1"));
+    assertArrayEquals(new int[]{ 1, 2, Integer.MAX_VALUE }, result.getIntegerArray("i_array_1"));
+    assertEquals(Long.MAX_VALUE, result.getLong("l1"));
+    assertArrayEquals(new long[]{ Long.MIN_VALUE }, result.getLongArray("l_array_1"));
+    assertEquals(1.2f, result.getFloat("f1"), FloatDelta);
+    assertArrayEquals(new float[]{ 5.6f, 7.8f }, result.getFloatArray("f_array_1"), FloatDelta);
+    assertEquals(10.2, result.getDouble("d1"), FloatDelta);
+    assertArrayEquals(new double[]{ 50.6, 70.8 }, result.getDoubleArray("d_array_1"), FloatDelta);
+    assertTrue(result.getBoolean("b1"));
+    assertArrayEquals(new boolean[]{ false, true }, result.getBooleanArray("b_array_1"));
+    assertArrayEquals(new byte[]{ 0, 1, -1 }, result.getByteArray("bytes"));
+    assertArrayEquals(new byte[0], result.getByteArray("empty"));
+    assertFalse(result.hasByteArray("missing"));
+  }
+
+  @Test
+  public void serialize_matchesJsonData() throws IOException {
+    Data json = new JsonDataSerializer().deserialize(Util.readFullyAsString(ClassLoader.getSystemClassLoader().getResourceAsStream("data/data_serialized.json")));
+
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    byte[]               serialized = serializer.serialize(json);
+    Data                 data       = serializer.deserialize(serialized);
+
+    assertEquals("s1 value", data.getString("s1"));
+    assertArrayEquals(new String[]{ "a", "b", "c" }, data.getStringArray("s_array_1"));
+    assertEquals(Integer.MAX_VALUE, data.getInt("max"));
+    assertArrayEquals(new long[]{ 1, 2, 3, Long.MAX_VALUE, Long.MIN_VALUE }, data.getLongArray("l_array_1"));
+    assertArrayEquals(new boolean[]{ false, true }, data.getBooleanArray("b_array_1"));
+  }
+
+  @Test
+  public void deserialize_byteArraysAreCopies() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 data       = serializer.deserialize(serializer.serialize(new Data.Builder().putByteArray("bytes", new byte[]{ 1, 2, 3 }).build()));
+
+    data.getByteArray("bytes")[0] = 9;
+
+    assertArrayEquals(new byte[]{ 1, 2, 3 }, data.getByteArray("bytes"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void deserialize_truncatedData_throws() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    byte[]               serialized = serializer.serialize(new Data.Builder().putString("s1", "s1 value").build());
+
+    serializer.deserialize(Arrays.copyOf(serialized, serialized.length - 3));
+  }
+}
@@ -35,6 +35,21 @@ interface StorageProtocol {
 
     fun getProfileKeyForRecipient(recipientPublicKey: String): ByteArray?
 
+    // Transactions
+    fun beginTransaction()
+    fun setTransactionSuccessful()
+    /**
+     * Returns `false` if this ended the outermost transaction and it was rolled back, which is also the case if a
+     * transaction nested within it failed.
+     */
+    fun endTransaction(): Boolean
+    fun setSavepoint(name: String)
+    fun releaseSavepoint(name: String)
+    /**
+     * Undoes everything since the savepoint was set, and releases it.
+     */
+    fun rollbackToSavepoint(name: String)
+
     // Signal Protocol
 
     fun getOrGenerateRegistrationID(): Int
@@ -143,6 +158,7 @@ interface StorageProtocol {
 
     // Recipient
     fun getRecipientSettings(address: Address): RecipientSettings?
+    fun getRecipientSettings(addresses: Collection<Address>): Map<Address, RecipientSettings>
 
     // PartAuthority
     fun getAttachmentDataUri(attachmentId: AttachmentId): Uri
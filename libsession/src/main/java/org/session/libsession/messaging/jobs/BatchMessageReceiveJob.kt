@@ -0,0 +1,168 @@
+package org.session.libsession.messaging.jobs
+
+import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.messages.Message
+import org.session.libsession.messaging.sending_receiving.MessageReceiveExecutor
+import org.session.libsession.messaging.sending_receiving.MessageReceiveMetrics
+import org.session.libsession.messaging.sending_receiving.MessageReceiver
+import org.session.libsession.messaging.sending_receiving.handle
+import org.session.libsignal.service.internal.push.SignalServiceProtos
+import org.session.libsignal.utilities.logging.Log
+
+/**
+ * Receives all messages of a single poll response at once. The envelopes are decoded, decrypted and parsed in parallel,
+ * after which the messages are handled in a single database transaction. Each message is handled within its own
+ * savepoint, so that a message that fails halfway through is rolled back without affecting the others.
+ *
+ * Messages that fail with a retryable error are split off into individual `MessageReceiveJob`s so that they go
+ * through the usual retry mechanism.
+ */
+class BatchMessageReceiveJob(val messages: List<ByteArray>, val isBackgroundPoll: Boolean, val openGroupID: String? = null) : Job {
+
+    override var delegate: JobDelegate? = null
+    override var id: String? = null
+    override var failureCount: Int = 0
+
+    // Settings
+    override val maxFailureCount: Int = 10
+    companion object {
+        val TAG = BatchMessageReceiveJob::class.qualifiedName
+        val KEY: String = "BatchMessageReceiveJob"
+
+        private const val savepointName = "batch_message"
+
+        //keys used for database storage purpose
+        private val KEY_MESSAGE_COUNT = "message_count"
+        private val KEY_MESSAGE = "message_"
+        private val KEY_IS_BACKGROUND_POLL = "is_background_poll"
+        private val KEY_OPEN_GROUP_ID = "open_group_id"
+    }
+
+    private class ParsingResult(val data: ByteArray, val message: Message?, val proto: SignalServiceProtos.Content?, val error: Exception?)
+
+    override fun execute() {
+        val storage = MessagingConfiguration.shared.storage
+        val isRetry: Boolean = failureCount != 0
+        // Decode, decrypt and parse in parallel
+        val results = messages.map { data ->
+            MessageReceiveExecutor.submit { parse(data, isRetry) }
+        }.map { it.get() }
+        val failures = mutableListOf<Pair<ByteArray, Exception>>()
+        fun handleError(data: ByteArray, e: Exception) {
+            if (!isRetryable(e)) {
+                Log.d(TAG, "Couldn't receive message due to error: $e.")
+            } else {
+                failures.add(Pair(data, e))
+            }
+        }
+        val receivedMessages = mutableSetOf<Pair<Long?, String?>>()
+        val handledMessages = mutableListOf<ByteArray>()
+        fun handle(message: Message, proto: SignalServiceProtos.Content, data: ByteArray) {
+            // The envelopes were parsed concurrently, so duplicates within the batch haven't been filtered out yet
+            if (!receivedMessages.add(Pair(message.sentTimestamp, message.sender))) {
+                Log.d(TAG, "Couldn't receive message due to error: ${MessageReceiver.Error.DuplicateMessage}.")
+                return
+            }
+            storage.setSavepoint(savepointName)
+            try {
+                MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Handle) { MessageReceiver.handle(message, proto, openGroupID) }
+                storage.releaseSavepoint(savepointName)
+                handledMessages.add(data)
+            } catch (e: Exception) {
+                // Undo whatever the failed message wrote, without affecting the messages handled before it
+                storage.rollbackToSavepoint(savepointName)
+                handleError(data, e)
+            }
+        }
+        // Handle all messages in one transaction
+        var isCommitted = false
+        storage.beginTransaction()
+        try {
+            val unparsedMessages = mutableListOf<ParsingResult>()
+            for (result in results) {
+                val message = result.message
+                val proto = result.proto
+                if (message == null || proto == null) {
+                    unparsedMessages.add(result)
+                    continue
+                }
+                handle(message, proto, result.data)
+            }
+            // A message that was handled above can make it possible to decrypt one that failed to parse (e.g. a closed
+            // group's new encryption key pair and the messages encrypted with it arriving in the same poll), so those are
+            // parsed again before scheduling retries. This happens on the current thread as it holds the transaction the
+            // key pair was stored in.
+            val isReparseNeeded = handledMessages.isNotEmpty()
+            for (result in unparsedMessages) {
+                val error = result.error ?: MessageReceiver.Error.InvalidMessage
+                val retryResult = if (isReparseNeeded && isRetryable(error)) parse(result.data, isRetry) else result
+                val message = retryResult.message
+                val proto = retryResult.proto
+                if (message == null || proto == null) {
+                    handleError(result.data, retryResult.error ?: error)
+                    continue
+                }
+                handle(message, proto, result.data)
+            }
+            handleSuccess()
+            storage.setTransactionSuccessful()
+        } finally {
+            isCommitted = MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Persist) { storage.endTransaction() }
+        }
+        if (!isCommitted) {
+            // A transaction nested within the batch failed and took the whole batch down with it, so there's no telling
+            // which message caused it. The messages that were handled are retried individually along with the failed ones.
+            Log.d(TAG, "Couldn't commit batch of ${messages.size} messages; retrying them individually.")
+            val error = Exception("Couldn't commit the batch the message was received in.")
+            handledMessages.forEach { failures.add(Pair(it, error)) }
+            handleSuccess()
+        }
+        // Retry failed messages individually
+        failures.forEach { (data, e) ->
+            Log.d(TAG, "Couldn't receive message due to error: $e; scheduling retry.")
+            val job = MessageReceiveJob(data, isBackgroundPoll, null, openGroupID)
+            JobQueue.shared.addWithoutExecuting(job)
+            JobQueue.shared.handleJobFailed(job, e)
+        }
+    }
+
+    private fun parse(data: ByteArray, isRetry: Boolean): ParsingResult {
+        return try {
+            val (message, proto) = MessageReceiver.parse(data, null, isRetry)
+            ParsingResult(data, message, proto, null)
+        } catch (e: Exception) {
+            ParsingResult(data, null, null, e)
+        }
+    }
+
+    private fun isRetryable(e: Exception): Boolean {
+        val error = e as? MessageReceiver.Error ?: return true
+        return error.isRetryable
+    }
+
+    private fun handleSuccess() {
+        delegate?.handleJobSucceeded(this)
+    }
+
+    //database functions
+
+    override fun serialize(): Data {
+        val builder = Data.Builder().putInt(KEY_MESSAGE_COUNT, messages.size)
+                .putBoolean(KEY_IS_BACKGROUND_POLL, isBackgroundPoll)
+        messages.forEachIndexed { index, data -> builder.putByteArray("$KEY_MESSAGE$index", data) }
+        openGroupID?.let { builder.putString(KEY_OPEN_GROUP_ID, openGroupID) }
+        return builder.build()
+    }
+
+    override fun getFactoryKey(): String {
+        return KEY
+    }
+
+    class Factory: Job.Factory<BatchMessageReceiveJob> {
+        override fun create(data: Data): BatchMessageReceiveJob {
+            val messages = (0 until data.getInt(KEY_MESSAGE_COUNT)).map { data.getByteArray("$KEY_MESSAGE$it") }
+            val openGroupID = if (data.hasString(KEY_OPEN_GROUP_ID)) data.getString(KEY_OPEN_GROUP_ID) else null
+            return BatchMessageReceiveJob(messages, data.getBoolean(KEY_IS_BACKGROUND_POLL), openGroupID)
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.session.libsession.messaging.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes {@link Data} in a compact, versioned binary format.
+ *
+ * The encoding starts with a version byte, followed by one section per value type (in the order in which they're
+ * declared in {@link Data}). Each section consists of the number of entries followed by the entries themselves.
+ * Strings are length prefixed UTF-8 and arrays are length prefixed sequences of their elements. All numbers are
+ * big-endian.
+ *
+ * Byte arrays (which is where jobs keep message envelopes, attachments, etc.) are stored as-is rather than being
+ * Base64 encoded, and aren't copied out of the serialized buffer until they're accessed.
+ */
+public final class BinaryDataSerializer implements Data.BinarySerializer {
+
+    private static final Charset UTF_8   = Charset.forName("UTF-8");
+    private static final byte    VERSION = 1;
+
+    @Override
+    public @NonNull byte[] serialize(@NonNull Data data) {
+        try {
+            ByteArrayOutputStream baos   = new ByteArrayOutputStream(getEstimatedSize(data));
+            DataOutputStream      output = new DataOutputStream(baos);
+
+            output.writeByte(VERSION);
+
+            output.writeInt(data.strings.size());
+            for (Map.Entry<String, String> entry : data.strings.entrySet()) {
+                writeString(output, entry.getKey());
+                writeString(output, entry.getValue());
+            }
+
+            output.writeInt(data.stringArrays.size());
+            for (Map.Entry<String, String[]> entry : data.stringArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (String value : entry.getValue()) writeString(output, value);
+            }
+
+            output.writeInt(data.integers.size());
+            for (Map.Entry<String, Integer> entry : data.integers.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+
+            output.writeInt(data.integerArrays.size());
+            for (Map.Entry<String, int[]> entry : data.integerArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (int value : entry.getValue()) output.writeInt(value);
+            }
+
+            output.writeInt(data.longs.size());
+            for (Map.Entry<String, Long> entry : data.longs.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+
+            output.writeInt(data.longArrays.size());
+            for (Map.Entry<String, long[]> entry : data.longArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (long value : entry.getValue()) output.writeLong(value);
+            }
+
+            output.writeInt(data.floats.size());
+            for (Map.Entry<String, Float> entry : data.floats.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeFloat(entry.getValue());
+            }
+
+            output.writeInt(data.floatArrays.size());
+            for (Map.Entry<String, float[]> entry : data.floatArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (float value : entry.getValue()) output.writeFloat(value);
+            }
+
+            output.writeInt(data.doubles.size());
+            for (Map.Entry<String, Double> entry : data.doubles.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeDouble(entry.getValue());
+            }
+
+            output.writeInt(data.doubleArrays.size());
+            for (Map.Entry<String, double[]> entry : data.doubleArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (double value : entry.getValue()) output.writeDouble(value);
+            }
+
+            output.writeInt(data.booleans.size());
+            for (Map.Entry<String, Boolean> entry : data.booleans.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeBoolean(entry.getValue());
+            }
+
+            output.writeInt(data.booleanArrays.size());
+            for (Map.Entry<String, boolean[]> entry : data.booleanArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                for (boolean value : entry.getValue()) output.writeBoolean(value);
+            }
+
+            output.writeInt(data.byteArrays.size());
+            for (Map.Entry<String, byte[]> entry : data.byteArrays.entrySet()) {
+                writeString(output, entry.getKey());
+                output.writeInt(entry.getValue().length);
+                output.write(entry.getValue());
+            }
+
+            output.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public @NonNull Data deserialize(@NonNull byte[] serialized) {
+        try {
+            ByteBuffer input   = ByteBuffer.wrap(serialized);
+            byte       version = input.get();
+
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version: " + version + ".");
+            }
+
+            Map<String, String> strings = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                strings.put(readString(input), readString(input));
+            }
+
+            Map<String, String[]> stringArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String   key   = readString(input);
+                String[] value = new String[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = readString(input);
+                stringArrays.put(key, value);
+            }
+
+            Map<String, Integer> integers = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                integers.put(readString(input), input.getInt());
+            }
+
+            Map<String, int[]> integerArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String key   = readString(input);
+                int[]  value = new int[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = input.getInt();
+                integerArrays.put(key, value);
+            }
+
+            Map<String, Long> longs = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                longs.put(readString(input), input.getLong());
+            }
+
+            Map<String, long[]> longArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String key   = readString(input);
+                long[] value = new long[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = input.getLong();
+                longArrays.put(key, value);
+            }
+
+            Map<String, Float> floats = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                floats.put(readString(input), input.getFloat());
+            }
+
+            Map<String, float[]> floatArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String  key   = readString(input);
+                float[] value = new float[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = input.getFloat();
+                floatArrays.put(key, value);
+            }
+
+            Map<String, Double> doubles = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                doubles.put(readString(input), input.getDouble());
+            }
+
+            Map<String, double[]> doubleArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String   key   = readString(input);
+                double[] value = new double[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = input.getDouble();
+                doubleArrays.put(key, value);
+            }
+
+            Map<String, Boolean> booleans = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                booleans.put(readString(input), input.get() != 0);
+            }
+
+            Map<String, boolean[]> booleanArrays = new HashMap<>();
+            for (int i = input.getInt(); i > 0; i--) {
+                String    key   = readString(input);
+                boolean[] value = new boolean[readLength(input)];
+                for (int j = 0; j < value.length; j++) value[j] = input.get() != 0;
+                booleanArrays.put(key, value);
+            }
+
+            LazyByteArrayMap byteArrays = new LazyByteArrayMap(serialized);
+            for (int i = input.getInt(); i > 0; i--) {
+                String key    = readString(input);
+                int    length = readLength(input);
+                byteArrays.putSlice(key, input.position(), length);
+                input.position(input.position() + length);
+            }
+
+            return new Data(strings, stringArrays, integers, integerArrays, longs, longArrays, floats, floatArrays,
+                            doubles, doubleArrays, booleans, booleanArrays, byteArrays);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated data.", e);
+        }
+    }
+
+    private static int getEstimatedSize(@NonNull Data data) {
+        int size = 256;
+        for (byte[] value : data.byteArrays.values()) size += value.length;
+        return size;
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string, or a length of -1 for {@code null}.
+     */
+    private static void writeString(@NonNull DataOutputStream output, @Nullable String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static @Nullable String readString(@NonNull ByteBuffer input) {
+        int length = input.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > input.remaining()) throw new BufferUnderflowException();
+        String value = new String(input.array(), input.position(), length, UTF_8);
+        input.position(input.position() + length);
+        return value;
+    }
+
+    private static int readLength(@NonNull ByteBuffer input) {
+        int length = input.getInt();
+        if (length < 0 || length > input.remaining()) throw new BufferUnderflowException();
+        return length;
+    }
+
+    /**
+     * A read-only map of byte arrays that are backed by slices of the serialized buffer. Values are copied out of the
+     * buffer when they're accessed, so callers are free to modify them.
+     */
+    private static final class LazyByteArrayMap extends AbstractMap<String, byte[]> {
+
+        private final byte[]             buffer;
+        private final Map<String, int[]> slices = new HashMap<>();
+
+        LazyByteArrayMap(@NonNull byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        void putSlice(@NonNull String key, int offset, int length) {
+            slices.put(key, new int[] { offset, length });
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return slices.containsKey(key);
+        }
+
+        @Override
+        public byte[] get(Object key) {
+            int[] slice = slices.get(key);
+            if (slice == null) return null;
+            return Arrays.copyOfRange(buffer, slice[0], slice[0] + slice[1]);
+        }
+
+        @Override
+        public int size() {
+            return slices.size();
+        }
+
+        @Override
+        public @NonNull Set<Entry<String, byte[]>> entrySet() {
+            return new AbstractSet<Entry<String, byte[]>>() {
+                @Override
+                public @NonNull Iterator<Entry<String, byte[]>> iterator() {
+                    Iterator<String> keys = slices.keySet().iterator();
+                    return new Iterator<Entry<String, byte[]>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, byte[]> next() {
+                            String key = keys.next();
+                            return new SimpleImmutableEntry<>(key, get(key));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return slices.size();
+                }
+            };
+        }
+    }
+}
@@ -2,57 +2,182 @@ package org.session.libsession.messaging.jobs
 
 import kotlin.math.min
 import kotlin.math.pow
-import java.util.Timer
 
 import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.StorageProtocol
 
 import org.session.libsignal.utilities.logging.Log
-import kotlin.concurrent.schedule
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.roundToLong
 
 
-class JobQueue : JobDelegate {
+class JobQueue internal constructor(
+    private val storageProvider: () -> StorageProtocol = { MessagingConfiguration.shared.storage }
+) : JobDelegate {
     private var hasResumedPendingJobs = false // Just for debugging
+    private val sequenceNumber = AtomicLong()
+    private val lastJobID = AtomicLong(0)
+    /**
+     * A bounded pool of workers that picks up the highest priority job first.
+     */
+    private val executor = ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS, PriorityBlockingQueue())
+    /**
+     * Attachment jobs get their own workers, so that slow uploads and downloads can never take up the workers that
+     * sending and receiving messages depend on.
+     */
+    private val attachmentExecutor = ThreadPoolExecutor(attachmentWorkerCount, attachmentWorkerCount, 60, TimeUnit.SECONDS, PriorityBlockingQueue())
+    /**
+     * The shared delay queue used for backing off before retrying failed jobs.
+     */
+    private val retryScheduler = ScheduledThreadPoolExecutor(1)
+    private val runningJobCounts = mutableMapOf<Class<out Job>, Int>()
+    private val waitingJobs = mutableMapOf<Class<out Job>, ArrayDeque<Job>>()
 
+    init {
+        executor.allowCoreThreadTimeOut(true)
+        attachmentExecutor.allowCoreThreadTimeOut(true)
+    }
+
+    // region Settings
     companion object {
         val shared: JobQueue by lazy { JobQueue() }
+
+        private val workerCount = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+        /**
+         * The maximum number of jobs of a given type that may execute at the same time. Types that aren't listed are
+         * only limited by the number of workers.
+         */
+        private val maxConcurrentJobCounts: Map<Class<out Job>, Int> = mapOf(
+            AttachmentDownloadJob::class.java to 2,
+            AttachmentUploadJob::class.java to 2
+        )
+        private val attachmentJobTypes: Set<Class<out Job>> = setOf( AttachmentDownloadJob::class.java, AttachmentUploadJob::class.java )
+        private val attachmentWorkerCount = attachmentJobTypes.sumBy { maxConcurrentJobCounts[it] ?: 1 }
+
+        /**
+         * Lower values are executed first.
+         */
+        private fun getPriority(job: Job): Int {
+            return when (job) {
+                is MessageSendJob -> 0
+                is BatchMessageReceiveJob, is MessageReceiveJob -> 1
+                is AttachmentUploadJob, is NotifyPNServerJob -> 2
+                else -> 3
+            }
+        }
+    }
+    // endregion
+
+    private inner class QueuedJob(val job: Job) : Runnable, Comparable<QueuedJob> {
+        private val priority = getPriority(job)
+        private val sequenceNumber = this@JobQueue.sequenceNumber.getAndIncrement()
+
+        override fun compareTo(other: QueuedJob): Int {
+            return compareValuesBy(this, other, { it.priority }, { it.sequenceNumber })
+        }
+
+        override fun run() {
+            val type = job.javaClass
+            if (!tryStart(type)) { return }
+            try {
+                job.execute()
+            } catch (e: Exception) {
+                Log.e("Jobs", "${job::class.simpleName} threw an exception.", e)
+                handleJobFailed(job, e)
+            } finally {
+                finish(type)
+            }
+        }
+
+        /**
+         * Returns `false` and parks the job if the concurrency limit for its type was reached.
+         */
+        private fun tryStart(type: Class<out Job>): Boolean {
+            synchronized(runningJobCounts) {
+                val runningJobCount = runningJobCounts[type] ?: 0
+                val maxConcurrentJobCount = maxConcurrentJobCounts[type]
+                if (maxConcurrentJobCount != null && runningJobCount >= maxConcurrentJobCount) {
+                    waitingJobs.getOrPut(type) { ArrayDeque() }.addLast(job)
+                    return false
+                }
+                runningJobCounts[type] = runningJobCount + 1
+                return true
+            }
+        }
+
+        private fun finish(type: Class<out Job>) {
+            val nextJob = synchronized(runningJobCounts) {
+                runningJobCounts[type] = (runningJobCounts[type] ?: 1) - 1
+                waitingJobs[type]?.removeFirstOrNull()
+            }
+            if (nextJob != null) { enqueue(nextJob) }
+        }
     }
 
     fun add(job: Job) {
         addWithoutExecuting(job)
-        job.execute()
+        enqueue(job)
     }
 
     fun addWithoutExecuting(job: Job) {
-        job.id = System.currentTimeMillis().toString()
-        MessagingConfiguration.shared.storage.persistJob(job)
+        job.id = generateJobID().toString()
+        storageProvider().persistJob(job)
         job.delegate = this
     }
 
+    /**
+     * Queues a job that was loaded from the database for execution, without persisting it again.
+     */
+    fun resume(job: Job) {
+        job.delegate = this
+        enqueue(job)
+    }
+
+    /**
+     * Returns a unique, strictly increasing job ID. IDs are based on the current time in microseconds so that they
+     * keep increasing across app restarts, and are bumped past the previous ID if several jobs are created within the
+     * same microsecond.
+     */
+    private fun generateJobID(): Long {
+        while (true) {
+            val lastJobID = lastJobID.get()
+            val jobID = maxOf(System.currentTimeMillis() * 1000, lastJobID + 1)
+            if (this.lastJobID.compareAndSet(lastJobID, jobID)) { return jobID }
+        }
+    }
+
+    private fun enqueue(job: Job) {
+        val executor = if (attachmentJobTypes.contains(job.javaClass)) attachmentExecutor else this.executor
+        executor.execute(QueuedJob(job))
+    }
+
     fun resumePendingJobs() {
         if (hasResumedPendingJobs) {
             Log.d("Loki", "resumePendingJobs() should only be called once.")
             return
         }
         hasResumedPendingJobs = true
-        val allJobTypes = listOf(AttachmentDownloadJob.KEY, AttachmentDownloadJob.KEY, MessageReceiveJob.KEY, MessageSendJob.KEY, NotifyPNServerJob.KEY)
+        val allJobTypes = listOf(AttachmentUploadJob.KEY, AttachmentDownloadJob.KEY, BatchMessageReceiveJob.KEY, MessageReceiveJob.KEY, MessageSendJob.KEY, NotifyPNServerJob.KEY)
         allJobTypes.forEach { type ->
-            val allPendingJobs = MessagingConfiguration.shared.storage.getAllPendingJobs(type)
-            allPendingJobs.sortedBy { it.id }.forEach { job ->
+            val allPendingJobs = storageProvider().getAllPendingJobs(type)
+            allPendingJobs.sortedBy { it.id?.toLongOrNull() }.forEach { job ->
                 Log.i("Jobs", "Resuming pending job of type: ${job::class.simpleName}.")
-                job.delegate = this
-                job.execute()
+                resume(job)
             }
         }
     }
 
     override fun handleJobSucceeded(job: Job) {
-        MessagingConfiguration.shared.storage.markJobAsSucceeded(job)
+        storageProvider().markJobAsSucceeded(job)
     }
 
     override fun handleJobFailed(job: Job, error: Exception) {
         job.failureCount += 1
-        val storage = MessagingConfiguration.shared.storage
+        val storage = storageProvider()
         if (storage.isJobCanceled(job)) { return Log.i("Jobs", "${job::class.simpleName} canceled.")}
         storage.persistJob(job)
         if (job.failureCount == job.maxFailureCount) {
@@ -60,16 +185,16 @@ class JobQueue : JobDelegate {
         } else {
             val retryInterval = getRetryInterval(job)
             Log.i("Jobs", "${job::class.simpleName} failed; scheduling retry (failure count is ${job.failureCount}).")
-            Timer().schedule(delay = retryInterval) {
+            retryScheduler.schedule({
                 Log.i("Jobs", "Retrying ${job::class.simpleName}.")
-                job.execute()
-            }
+                enqueue(job)
+            }, retryInterval, TimeUnit.MILLISECONDS)
         }
     }
 
     override fun handleJobFailedPermanently(job: Job, error: Exception) {
         job.failureCount += 1
-        val storage = MessagingConfiguration.shared.storage
+        val storage = storageProvider()
         storage.persistJob(job)
         storage.markJobAsFailed(job)
     }
@@ -85,4 +210,4 @@ class JobQueue : JobDelegate {
         val maxBackoff = (10 * 60).toDouble() // 10 minutes
         return (1000 * 0.25 * min(maxBackoff, (2.0).pow(job.failureCount))).roundToLong()
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,9 @@ package org.session.libsession.messaging.jobs
 
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.deferred
+import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.sending_receiving.MessageReceiveExecutor
+import org.session.libsession.messaging.sending_receiving.MessageReceiveMetrics
 import org.session.libsession.messaging.sending_receiving.MessageReceiver
 import org.session.libsession.messaging.sending_receiving.handle
 import org.session.libsignal.utilities.logging.Log
@@ -16,7 +19,7 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
     override val maxFailureCount: Int = 10
     companion object {
         val TAG = MessageReceiveJob::class.qualifiedName
-        val KEY: String = "AttachmentUploadJob"
+        val KEY: String = "MessageReceiveJob"
 
         //keys used for database storage purpose
         private val KEY_DATA = "data"
@@ -25,18 +28,42 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
         private val KEY_OPEN_GROUP_ID = "open_group_id"
     }
 
+    /**
+     * Hands the message over to `MessageReceiveExecutor` rather than waiting for it to be received, so that the thread
+     * that executes the job is free to pick up other work in the meantime.
+     */
     override fun execute() {
-        executeAsync().get()
+        executeAsync()
     }
 
     fun executeAsync(): Promise<Unit, Exception> {
         val deferred = deferred<Unit, Exception>()
+        MessageReceiveExecutor.execute {
+            try {
+                receive()
+            } finally {
+                deferred.resolve(Unit) // The promise is just used to keep track of when we're done
+            }
+        }
+        return deferred.promise
+    }
+
+    private fun receive() {
+        val storage = MessagingConfiguration.shared.storage
         try {
             val isRetry: Boolean = failureCount != 0
             val (message, proto) = MessageReceiver.parse(this.data, this.openGroupMessageServerID, isRetry)
-            MessageReceiver.handle(message, proto, this.openGroupID)
+            // Handle the message in a transaction, so that it's written in one go when the transaction commits
+            var isCommitted = false
+            storage.beginTransaction()
+            try {
+                MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Handle) { MessageReceiver.handle(message, proto, this.openGroupID) }
+                storage.setTransactionSuccessful()
+            } finally {
+                isCommitted = MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Persist) { storage.endTransaction() }
+            }
+            if (!isCommitted) { throw Exception("Couldn't commit the received message.") }
             this.handleSuccess()
-            deferred.resolve(Unit)
         } catch (e: Exception) {
             Log.d(TAG, "Couldn't receive message due to error: $e.")
             val error = e as? MessageReceiver.Error
@@ -47,9 +74,7 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
                 Log.d("Loki", "Couldn't receive message due to error: $e.")
                 this.handleFailure(e)
             }
-            deferred.resolve(Unit) // The promise is just used to keep track of when we're done
         }
-        return deferred.promise
     }
 
     private fun handleSuccess() {
@@ -75,7 +100,7 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<MessageReceiveJob> {
@@ -93,7 +93,7 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<MessageSendJob> {
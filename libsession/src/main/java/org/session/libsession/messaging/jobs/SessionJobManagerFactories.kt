@@ -9,6 +9,7 @@ class SessionJobManagerFactories {
             return mapOf(
                 AttachmentDownloadJob.KEY to AttachmentDownloadJob.Factory(),
                 AttachmentUploadJob.KEY to AttachmentUploadJob.Factory(),
+                BatchMessageReceiveJob.KEY to BatchMessageReceiveJob.Factory(),
                 MessageReceiveJob.KEY to MessageReceiveJob.Factory(),
                 MessageSendJob.KEY to MessageSendJob.Factory(),
                 NotifyPNServerJob.KEY to NotifyPNServerJob.Factory()
@@ -18,6 +18,7 @@ import org.session.libsignal.utilities.Base64
 import java.io.ByteArrayOutputStream
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.Callable
 
 object OpenGroupAPI: DotNetAPI() {
 
@@ -29,6 +30,18 @@ object OpenGroupAPI: DotNetAPI() {
     private val maxRetryCount = 8
     // endregion
 
+    private val messageParsingExecutor by lazy { ThreadUtils.newDynamicExecutor(Runtime.getRuntime().availableProcessors().coerceIn(1, 4)) }
+    // SimpleDateFormat isn't thread safe
+    private val dateFormat = object : ThreadLocal<SimpleDateFormat>() {
+        override fun initialValue(): SimpleDateFormat {
+            val format = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US)
+            format.timeZone = TimeZone.getTimeZone("GMT")
+            return format
+        }
+    }
+
+    private class MessageParsingResult(val serverID: Long?, val message: OpenGroupMessage?)
+
     // region Convenience
     private val channelInfoType = "net.patter-app.settings"
     private val attachmentType = "net.app.core.oembed"
@@ -64,90 +77,17 @@ object OpenGroupAPI: DotNetAPI() {
         return execute(HTTPVerb.GET, server, "channels/$channel/messages", parameters = parameters).then(sharedContext) { json ->
             try {
                 val data = json["data"] as List<Map<*, *>>
-                val messages = data.mapNotNull { message ->
-                    try {
-                        val isDeleted = message["is_deleted"] as? Boolean ?: false
-                        if (isDeleted) { return@mapNotNull null }
-                        // Ignore messages without annotations
-                        if (message["annotations"] == null) { return@mapNotNull null }
-                        val annotation = (message["annotations"] as List<Map<*, *>>).find {
-                            ((it["type"] as? String ?: "") == openGroupMessageType) && it["value"] != null
-                        } ?: return@mapNotNull null
-                        val value = annotation["value"] as Map<*, *>
-                        val serverID = message["id"] as? Long ?: (message["id"] as? Int)?.toLong() ?: (message["id"] as String).toLong()
-                        val user = message["user"] as Map<*, *>
-                        val publicKey = user["username"] as String
-                        val displayName = user["name"] as? String ?: "Anonymous"
-                        var profilePicture: OpenGroupMessage.ProfilePicture? = null
-                        if (user["annotations"] != null) {
-                            val profilePictureAnnotation = (user["annotations"] as List<Map< *, *>>).find {
-                                ((it["type"] as? String ?: "") == profilePictureType) && it["value"] != null
-                            }
-                            val profilePictureAnnotationValue = profilePictureAnnotation?.get("value") as? Map<*, *>
-                            if (profilePictureAnnotationValue != null && profilePictureAnnotationValue["profileKey"] != null && profilePictureAnnotationValue["url"] != null) {
-                                try {
-                                    val profileKey = Base64.decode(profilePictureAnnotationValue["profileKey"] as String)
-                                    val url = profilePictureAnnotationValue["url"] as String
-                                    profilePicture = OpenGroupMessage.ProfilePicture(profileKey, url)
-                                } catch (e: Exception) {}
-                            }
-                        }
-                        @Suppress("NAME_SHADOWING") val body = message["text"] as String
-                        val timestamp = value["timestamp"] as? Long ?: (value["timestamp"] as? Int)?.toLong() ?: (value["timestamp"] as String).toLong()
-                        var quote: OpenGroupMessage.Quote? = null
-                        if (value["quote"] != null) {
-                            val replyTo = message["reply_to"] as? Long ?: (message["reply_to"] as? Int)?.toLong() ?: (message["reply_to"] as String).toLong()
-                            val quoteAnnotation = value["quote"] as? Map<*, *>
-                            val quoteTimestamp = quoteAnnotation?.get("id") as? Long ?: (quoteAnnotation?.get("id") as? Int)?.toLong() ?: (quoteAnnotation?.get("id") as? String)?.toLong() ?: 0L
-                            val author = quoteAnnotation?.get("author") as? String
-                            val text = quoteAnnotation?.get("text") as? String
-                            quote = if (quoteTimestamp > 0L && author != null && text != null) OpenGroupMessage.Quote(quoteTimestamp, author, text, replyTo) else null
-                        }
-                        val attachmentsAsJSON = (message["annotations"] as List<Map<*, *>>).filter {
-                            ((it["type"] as? String ?: "") == attachmentType) && it["value"] != null
-                        }
-                        val attachments = attachmentsAsJSON.mapNotNull { it["value"] as? Map<*, *> }.mapNotNull { attachmentAsJSON ->
-                            try {
-                                val kindAsString = attachmentAsJSON["lokiType"] as String
-                                val kind = OpenGroupMessage.Attachment.Kind.values().first { it.rawValue == kindAsString }
-                                val id = attachmentAsJSON["id"] as? Long ?: (attachmentAsJSON["id"] as? Int)?.toLong() ?: (attachmentAsJSON["id"] as String).toLong()
-                                val contentType = attachmentAsJSON["contentType"] as String
-                                val size = attachmentAsJSON["size"] as? Int ?: (attachmentAsJSON["size"] as? Long)?.toInt() ?: (attachmentAsJSON["size"] as String).toInt()
-                                val fileName = attachmentAsJSON["fileName"] as String
-                                val flags = 0
-                                val url = attachmentAsJSON["url"] as String
-                                val caption = attachmentAsJSON["caption"] as? String
-                                val linkPreviewURL = attachmentAsJSON["linkPreviewUrl"] as? String
-                                val linkPreviewTitle = attachmentAsJSON["linkPreviewTitle"] as? String
-                                if (kind == OpenGroupMessage.Attachment.Kind.LinkPreview && (linkPreviewURL == null || linkPreviewTitle == null)) {
-                                    null
-                                } else {
-                                    OpenGroupMessage.Attachment(kind, server, id, contentType, size, fileName, flags, 0, 0, caption, url, linkPreviewURL, linkPreviewTitle)
-                                }
-                            } catch (e: Exception) {
-                                Log.d("Loki","Couldn't parse attachment due to error: $e.")
-                                null
-                            }
-                        }
-                        // Set the last message server ID here to avoid the situation where a message doesn't have a valid signature and this function is called over and over
-                        @Suppress("NAME_SHADOWING") val lastMessageServerID = storage.getLastMessageServerID(channel, server)
-                        if (serverID > lastMessageServerID ?: 0) { storage.setLastMessageServerID(channel, server, serverID) }
-                        val hexEncodedSignature = value["sig"] as String
-                        val signatureVersion = value["sigver"] as? Long ?: (value["sigver"] as? Int)?.toLong() ?: (value["sigver"] as String).toLong()
-                        val signature = OpenGroupMessage.Signature(Hex.fromStringCondensed(hexEncodedSignature), signatureVersion)
-                        val format = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US)
-                        format.timeZone = TimeZone.getTimeZone("GMT")
-                        val dateAsString = message["created_at"] as String
-                        val serverTimestamp = format.parse(dateAsString).time
-                        // Verify the message
-                        val groupMessage = OpenGroupMessage(serverID, publicKey, displayName, body, timestamp, openGroupMessageType, quote, attachments.toMutableList(), profilePicture, signature, serverTimestamp)
-                        if (groupMessage.hasValidSignature()) groupMessage else null
-                    } catch (exception: Exception) {
-                        Log.d("Loki", "Couldn't parse message for open group with ID: $channel on server: $server from: ${JsonUtil.toJson(message)}. Exception: ${exception.message}")
-                        return@mapNotNull null
-                    }
-                }.sortedBy { it.serverTimestamp }
-                messages
+                // Decoding and signature verification are independent per message, so they're done in parallel
+                val results = data.map { message ->
+                    messageParsingExecutor.submit(Callable { parseMessage(message, channel, server) })
+                }.map { it.get() }
+                // Set the last message server ID here, including for messages that don't have a valid signature, to avoid
+                // the situation where such a message is fetched over and over
+                val maxServerID = results.mapNotNull { it.serverID }.maxOrNull()
+                if (maxServerID != null && maxServerID > lastMessageServerID ?: 0) {
+                    storage.setLastMessageServerID(channel, server, maxServerID)
+                }
+                results.mapNotNull { it.message }.sortedBy { it.serverTimestamp }
             } catch (exception: Exception) {
                 Log.d("Loki", "Couldn't parse messages for open group with ID: $channel on server: $server.")
                 throw exception
@@ -155,6 +95,90 @@ object OpenGroupAPI: DotNetAPI() {
         }
     }
 
+    /**
+     * Returns the server ID of `message` if it's an open group message, along with the parsed message if its signature
+     * is valid. Thread safe.
+     */
+    private fun parseMessage(message: Map<*, *>, channel: Long, server: String): MessageParsingResult {
+        var serverID: Long? = null
+        try {
+            val isDeleted = message["is_deleted"] as? Boolean ?: false
+            if (isDeleted) { return MessageParsingResult(null, null) }
+            // Ignore messages without annotations
+            if (message["annotations"] == null) { return MessageParsingResult(null, null) }
+            val annotation = (message["annotations"] as List<Map<*, *>>).find {
+                ((it["type"] as? String ?: "") == openGroupMessageType) && it["value"] != null
+            } ?: return MessageParsingResult(null, null)
+            val value = annotation["value"] as Map<*, *>
+            serverID = message["id"] as? Long ?: (message["id"] as? Int)?.toLong() ?: (message["id"] as String).toLong()
+            val user = message["user"] as Map<*, *>
+            val publicKey = user["username"] as String
+            val displayName = user["name"] as? String ?: "Anonymous"
+            var profilePicture: OpenGroupMessage.ProfilePicture? = null
+            if (user["annotations"] != null) {
+                val profilePictureAnnotation = (user["annotations"] as List<Map< *, *>>).find {
+                    ((it["type"] as? String ?: "") == profilePictureType) && it["value"] != null
+                }
+                val profilePictureAnnotationValue = profilePictureAnnotation?.get("value") as? Map<*, *>
+                if (profilePictureAnnotationValue != null && profilePictureAnnotationValue["profileKey"] != null && profilePictureAnnotationValue["url"] != null) {
+                    try {
+                        val profileKey = Base64.decode(profilePictureAnnotationValue["profileKey"] as String)
+                        val url = profilePictureAnnotationValue["url"] as String
+                        profilePicture = OpenGroupMessage.ProfilePicture(profileKey, url)
+                    } catch (e: Exception) {}
+                }
+            }
+            val body = message["text"] as String
+            val timestamp = value["timestamp"] as? Long ?: (value["timestamp"] as? Int)?.toLong() ?: (value["timestamp"] as String).toLong()
+            var quote: OpenGroupMessage.Quote? = null
+            if (value["quote"] != null) {
+                val replyTo = message["reply_to"] as? Long ?: (message["reply_to"] as? Int)?.toLong() ?: (message["reply_to"] as String).toLong()
+                val quoteAnnotation = value["quote"] as? Map<*, *>
+                val quoteTimestamp = quoteAnnotation?.get("id") as? Long ?: (quoteAnnotation?.get("id") as? Int)?.toLong() ?: (quoteAnnotation?.get("id") as? String)?.toLong() ?: 0L
+                val author = quoteAnnotation?.get("author") as? String
+                val text = quoteAnnotation?.get("text") as? String
+                quote = if (quoteTimestamp > 0L && author != null && text != null) OpenGroupMessage.Quote(quoteTimestamp, author, text, replyTo) else null
+            }
+            val attachmentsAsJSON = (message["annotations"] as List<Map<*, *>>).filter {
+                ((it["type"] as? String ?: "") == attachmentType) && it["value"] != null
+            }
+            val attachments = attachmentsAsJSON.mapNotNull { it["value"] as? Map<*, *> }.mapNotNull { attachmentAsJSON ->
+                try {
+                    val kindAsString = attachmentAsJSON["lokiType"] as String
+                    val kind = OpenGroupMessage.Attachment.Kind.values().first { it.rawValue == kindAsString }
+                    val id = attachmentAsJSON["id"] as? Long ?: (attachmentAsJSON["id"] as? Int)?.toLong() ?: (attachmentAsJSON["id"] as String).toLong()
+                    val contentType = attachmentAsJSON["contentType"] as String
+                    val size = attachmentAsJSON["size"] as? Int ?: (attachmentAsJSON["size"] as? Long)?.toInt() ?: (attachmentAsJSON["size"] as String).toInt()
+                    val fileName = attachmentAsJSON["fileName"] as String
+                    val flags = 0
+                    val url = attachmentAsJSON["url"] as String
+                    val caption = attachmentAsJSON["caption"] as? String
+                    val linkPreviewURL = attachmentAsJSON["linkPreviewUrl"] as? String
+                    val linkPreviewTitle = attachmentAsJSON["linkPreviewTitle"] as? String
+                    if (kind == OpenGroupMessage.Attachment.Kind.LinkPreview && (linkPreviewURL == null || linkPreviewTitle == null)) {
+                        null
+                    } else {
+                        OpenGroupMessage.Attachment(kind, server, id, contentType, size, fileName, flags, 0, 0, caption, url, linkPreviewURL, linkPreviewTitle)
+                    }
+                } catch (e: Exception) {
+                    Log.d("Loki","Couldn't parse attachment due to error: $e.")
+                    null
+                }
+            }
+            val hexEncodedSignature = value["sig"] as String
+            val signatureVersion = value["sigver"] as? Long ?: (value["sigver"] as? Int)?.toLong() ?: (value["sigver"] as String).toLong()
+            val signature = OpenGroupMessage.Signature(Hex.fromStringCondensed(hexEncodedSignature), signatureVersion)
+            val dateAsString = message["created_at"] as String
+            val serverTimestamp = dateFormat.get()!!.parse(dateAsString)!!.time
+            // Verify the message
+            val groupMessage = OpenGroupMessage(serverID, publicKey, displayName, body, timestamp, openGroupMessageType, quote, attachments.toMutableList(), profilePicture, signature, serverTimestamp)
+            return MessageParsingResult(serverID, if (groupMessage.hasValidSignature()) groupMessage else null)
+        } catch (exception: Exception) {
+            Log.d("Loki", "Couldn't parse message for open group with ID: $channel on server: $server from: ${JsonUtil.toJson(message)}. Exception: ${exception.message}")
+            return MessageParsingResult(serverID, null)
+        }
+    }
+
     fun getDeletedMessageServerIDs(channel: Long, server: String): Promise<List<Long>, Exception> {
         Log.d("Loki", "Getting deleted messages for open group with ID: $channel on server: $server.")
         val storage = MessagingConfiguration.shared.storage
@@ -205,10 +229,8 @@ object OpenGroupAPI: DotNetAPI() {
                             val data = json["data"] as Map<*, *>
                             val serverID = (data["id"] as? Long) ?: (data["id"] as? Int)?.toLong() ?: (data["id"] as String).toLong()
                             val text = data["text"] as String
-                            val format = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US)
-                            format.timeZone = TimeZone.getTimeZone("GMT")
                             val dateAsString = data["created_at"] as String
-                            val timestamp = format.parse(dateAsString).time
+                            val timestamp = dateFormat.get()!!.parse(dateAsString)!!.time
                             @Suppress("NAME_SHADOWING") val message = OpenGroupMessage(serverID, userKeyPair.first, userDisplayName, text, timestamp, openGroupMessageType, message.quote, message.attachments, null, signedMessage.signature, timestamp)
                             message
                         } catch (exception: Exception) {
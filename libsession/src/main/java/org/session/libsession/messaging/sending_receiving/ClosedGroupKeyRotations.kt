@@ -0,0 +1,93 @@
+package org.session.libsession.messaging.sending_receiving
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.session.libsignal.libsignal.ecc.Curve
+import org.session.libsignal.libsignal.ecc.ECKeyPair
+import org.session.libsignal.utilities.ThreadUtils
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps track of the closed group encryption key pair rotations that are in flight, without blocking.
+ *
+ * At most one rotation per group is in flight at a time. Its key pair is the group's pending key pair until it has
+ * been sent out and stored. A rotation that's requested while another one is in flight is chained onto the promise of
+ * that rotation rather than waited for; once the rotation in flight finishes, the chained rotations for the group
+ * (however many there were) are run once, for the members of the latest request.
+ */
+object ClosedGroupKeyRotations {
+    private val pendingKeyPairs = ConcurrentHashMap<String, ECKeyPair>()
+    private val rotations = mutableMapOf<String, Rotation>()
+
+    /**
+     * A group's rotation in flight. `next` and `distributeNext` are set if another rotation was requested meanwhile.
+     */
+    private class Rotation {
+        var next: Deferred<Unit, Exception>? = null
+        var distributeNext: ((ECKeyPair) -> Promise<Unit, Exception>)? = null
+    }
+
+    fun getPendingKeyPair(groupPublicKey: String): ECKeyPair? {
+        return pendingKeyPairs[groupPublicKey]
+    }
+
+    /**
+     * Generates a new key pair for the group and hands it to `distribute`, which should send it out and store it. The
+     * returned promise is done once the promise returned by `distribute` is.
+     *
+     * If another rotation is in flight, this one is chained onto it and `distribute` is called from a background thread
+     * once it has finished.
+     */
+    fun rotate(groupPublicKey: String, distribute: (ECKeyPair) -> Promise<Unit, Exception>): Promise<Unit, Exception> {
+        synchronized(rotations) {
+            val rotation = rotations[groupPublicKey]
+            if (rotation != null) {
+                rotation.distributeNext = distribute // The latest request decides who the key pair is sent to
+                val next = rotation.next ?: deferred<Unit, Exception>().also { rotation.next = it }
+                return next.promise
+            }
+            rotations[groupPublicKey] = Rotation()
+        }
+        val deferred = deferred<Unit, Exception>()
+        start(groupPublicKey, distribute, deferred)
+        return deferred.promise
+    }
+
+    private fun start(groupPublicKey: String, distribute: (ECKeyPair) -> Promise<Unit, Exception>, deferred: Deferred<Unit, Exception>) {
+        val keyPair = Curve.generateKeyPair()
+        pendingKeyPairs[groupPublicKey] = keyPair
+        val promise = try {
+            distribute(keyPair)
+        } catch (exception: Exception) {
+            Promise.ofFail<Unit, Exception>(exception)
+        }
+        promise.success {
+            finish(groupPublicKey)
+            deferred.resolve(Unit)
+        }.fail {
+            finish(groupPublicKey)
+            deferred.reject(it)
+        }
+    }
+
+    /**
+     * Clears the group's pending key pair and starts the rotation that was chained onto the one that just finished, if
+     * any. This is called from Kovenant's callback thread, so the chained rotation is started on a background thread.
+     */
+    private fun finish(groupPublicKey: String) {
+        pendingKeyPairs.remove(groupPublicKey)
+        val (next, distribute) = synchronized(rotations) {
+            val rotation = rotations[groupPublicKey]
+            val next = rotation?.next
+            val distribute = rotation?.distributeNext
+            if (next == null || distribute == null) {
+                rotations.remove(groupPublicKey)
+                return
+            }
+            rotations[groupPublicKey] = Rotation()
+            Pair(next, distribute)
+        }
+        ThreadUtils.queue { start(groupPublicKey, distribute, next) }
+    }
+}
@@ -0,0 +1,40 @@
+package org.session.libsession.messaging.sending_receiving
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * The bounded pool on which received messages are decrypted and processed.
+ *
+ * Decryption is CPU bound, so the pool has a thread per core (up to 4) and never runs on the threads that deliver
+ * network responses. The queue in front of it is bounded as well: once it's full, whoever hands over the next message
+ * processes it on its own thread, which slows down the producer rather than letting the backlog grow without limit.
+ * Pollers check `isBackedUp` to hold off on fetching more messages until the pool has caught up.
+ */
+object MessageReceiveExecutor {
+    private val threadCount = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+    private val maxQueuedTaskCount = 64
+
+    private val executor = ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+        ArrayBlockingQueue(maxQueuedTaskCount), ThreadPoolExecutor.CallerRunsPolicy()).apply { allowCoreThreadTimeOut(true) }
+
+    val queueDepth: Int
+        get() = executor.queue.size
+
+    val isBackedUp: Boolean
+        get() = executor.queue.remainingCapacity() == 0
+
+    fun execute(task: () -> Unit) {
+        executor.execute(task)
+        MessageReceiveMetrics.recordQueueDepth(queueDepth)
+    }
+
+    fun <T> submit(task: () -> T): Future<T> {
+        val future = executor.submit(Callable(task))
+        MessageReceiveMetrics.recordQueueDepth(queueDepth)
+        return future
+    }
+}
@@ -0,0 +1,83 @@
+package org.session.libsession.messaging.sending_receiving
+
+import org.session.libsignal.utilities.logging.Log
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Keeps track of how long each stage of receiving a message takes, and of how far `MessageReceiveExecutor` is
+ * lagging behind. A summary is logged at most once every `logInterval` while messages are coming in.
+ */
+object MessageReceiveMetrics {
+    private val totalDurations = AtomicLongArray(Stage.values().size)
+    private val counts = AtomicLongArray(Stage.values().size)
+    private val maxQueueDepth = AtomicInteger(0)
+    private val lastLogDate = AtomicLong(System.currentTimeMillis())
+
+    // region Settings
+    private val logInterval: Long = 60 * 1000
+    // endregion
+
+    enum class Stage {
+        /** Parsing the envelope and the content proto. */
+        Parse,
+        /** Decrypting the envelope's content. */
+        Decrypt,
+        /** Handling the parsed message. */
+        Handle,
+        /** Committing the results to the database. */
+        Persist
+    }
+
+    class StageSnapshot(val count: Long, val averageDuration: Double)
+
+    class Snapshot(val stages: Map<Stage, StageSnapshot>, val queueDepth: Int, val maxQueueDepth: Int)
+
+    // region Public API
+    inline fun <T> measure(stage: Stage, block: () -> T): T {
+        val startTime = System.nanoTime()
+        val result = block()
+        record(stage, System.nanoTime() - startTime)
+        return result
+    }
+
+    fun record(stage: Stage, duration: Long) {
+        totalDurations.addAndGet(stage.ordinal, duration)
+        counts.incrementAndGet(stage.ordinal)
+        logIfNeeded()
+    }
+
+    fun recordQueueDepth(queueDepth: Int) {
+        while (true) {
+            val maxQueueDepth = this.maxQueueDepth.get()
+            if (queueDepth <= maxQueueDepth || this.maxQueueDepth.compareAndSet(maxQueueDepth, queueDepth)) { return }
+        }
+    }
+
+    /**
+     * Returns the average duration of each stage (in milliseconds) since the app was started.
+     */
+    fun getSnapshot(): Snapshot {
+        val stages = Stage.values().associate { stage ->
+            val count = counts.get(stage.ordinal)
+            val averageDuration = if (count > 0) totalDurations.get(stage.ordinal).toDouble() / count / 1_000_000 else 0.0
+            Pair(stage, StageSnapshot(count, averageDuration))
+        }
+        return Snapshot(stages, MessageReceiveExecutor.queueDepth, maxQueueDepth.get())
+    }
+    // endregion
+
+    // region Private API
+    private fun logIfNeeded() {
+        val now = System.currentTimeMillis()
+        val lastLogDate = this.lastLogDate.get()
+        if (now - lastLogDate < logInterval || !this.lastLogDate.compareAndSet(lastLogDate, now)) { return }
+        val snapshot = getSnapshot()
+        val stages = snapshot.stages.entries.joinToString(", ") { (stage, stats) ->
+            "$stage: ${stats.count} in %.2f ms avg".format(stats.averageDuration)
+        }
+        Log.d("Loki", "Message receive metrics - $stages; queue depth: ${snapshot.queueDepth} (max ${snapshot.maxQueueDepth}).")
+    }
+    // endregion
+}
@@ -6,6 +6,7 @@ import org.session.libsession.messaging.messages.control.*
 import org.session.libsession.messaging.messages.visible.VisibleMessage
 
 import org.session.libsignal.service.internal.push.SignalServiceProtos
+import org.session.libsignal.service.loki.api.crypto.SessionProtocolUtilities
 
 object MessageReceiver {
 
@@ -43,10 +44,11 @@ object MessageReceiver {
 
     internal fun parse(data: ByteArray, openGroupServerID: Long?, isRetry: Boolean = false): Pair<Message, SignalServiceProtos.Content> {
         val storage = MessagingConfiguration.shared.storage
-        val userPublicKey = storage.getUserPublicKey()
         val isOpenGroupMessage = openGroupServerID != null
         // Parse the envelope
+        var parseStartTime = System.nanoTime()
         val envelope = SignalServiceProtos.Envelope.parseFrom(data)
+        var parseDuration = System.nanoTime() - parseStartTime
         // If the message failed to process the first time around we retry it later (if the error is retryable). In this case the timestamp
         // will already be in the database but we don't want to treat the message as a duplicate. The isRetry flag is a simple workaround
         // for this issue.
@@ -57,6 +59,7 @@ object MessageReceiver {
         var plaintext: ByteArray? = null
         var sender: String? = null
         var groupPublicKey: String? = null
+        val decryptionStartTime = System.nanoTime()
         if (isOpenGroupMessage) {
             plaintext = envelope.content.toByteArray()
             sender = envelope.source
@@ -75,25 +78,13 @@ object MessageReceiver {
                     }
                     val encryptionKeyPairs = MessagingConfiguration.shared.storage.getClosedGroupEncryptionKeyPairs(hexEncodedGroupPublicKey)
                     if (encryptionKeyPairs.isEmpty()) { throw Error.NoGroupKeyPair }
-                    // Loop through all known group key pairs in reverse order (i.e. try the latest key pair first (which'll more than
-                    // likely be the one we want) but try older ones in case that didn't work)
-                    var encryptionKeyPair = encryptionKeyPairs.removeLast()
-                    fun decrypt() {
-                        try {
-                            val decryptionResult = MessageReceiverDecryption.decryptWithSessionProtocol(ciphertext.toByteArray(), encryptionKeyPair)
-                            plaintext = decryptionResult.first
-                            sender = decryptionResult.second
-                        } catch (e: Exception) {
-                            if (encryptionKeyPairs.isNotEmpty()) {
-                                encryptionKeyPair = encryptionKeyPairs.removeLast()
-                                decrypt()
-                            } else {
-                                throw e
-                            }
-                        }
-                    }
                     groupPublicKey = envelope.source
-                    decrypt()
+                    val ciphertextAsByteArray = ciphertext.toByteArray()
+                    val decryptionResult = SessionProtocolUtilities.decryptWithClosedGroupEncryptionKeyPairs(hexEncodedGroupPublicKey, encryptionKeyPairs) {
+                        MessageReceiverDecryption.decryptWithSessionProtocol(ciphertextAsByteArray, it)
+                    }
+                    plaintext = decryptionResult.first
+                    sender = decryptionResult.second
 //                    try {
 //                        decrypt()
 //                    } catch(error: Exception) {
@@ -112,10 +103,33 @@ object MessageReceiver {
                 else -> throw Error.UnknownEnvelopeType
             }
         }
+        MessageReceiveMetrics.record(MessageReceiveMetrics.Stage.Decrypt, System.nanoTime() - decryptionStartTime)
         // Don't process the envelope any further if the sender is blocked
         if (isBlock(sender!!)) throw Error.SenderBlocked
         // Parse the proto
+        parseStartTime = System.nanoTime()
         val proto = SignalServiceProtos.Content.parseFrom(plaintext)
+        val message = parse(proto, sender!!, groupPublicKey, envelope.timestamp, openGroupServerID)
+        parseDuration += System.nanoTime() - parseStartTime
+        MessageReceiveMetrics.record(MessageReceiveMetrics.Stage.Parse, parseDuration)
+        return Pair(message, proto)
+    }
+
+    /**
+     * Parses an open group message whose content was built directly from the server's response, rather than being
+     * serialized into an envelope first and parsed back out by `parse(data, openGroupServerID)`.
+     */
+    internal fun parseOpenGroupMessage(proto: SignalServiceProtos.Content, sender: String, sentTimestamp: Long, openGroupServerID: Long): Message {
+        val storage = MessagingConfiguration.shared.storage
+        if (storage.isMessageDuplicated(sentTimestamp, sender)) throw Error.DuplicateMessage
+        storage.addReceivedMessageTimestamp(sentTimestamp)
+        if (isBlock(sender)) throw Error.SenderBlocked
+        return parse(proto, sender, null, sentTimestamp, openGroupServerID)
+    }
+
+    private fun parse(proto: SignalServiceProtos.Content, sender: String, groupPublicKey: String?, sentTimestamp: Long, openGroupServerID: Long?): Message {
+        val userPublicKey = MessagingConfiguration.shared.storage.getUserPublicKey()
+        val isOpenGroupMessage = openGroupServerID != null
         // Parse the message
         val message: Message = ReadReceipt.fromProto(proto) ?:
                                TypingIndicator.fromProto(proto) ?:
@@ -130,7 +144,7 @@ object MessageReceiver {
         // Finish parsing
         message.sender = sender
         message.recipient = userPublicKey
-        message.sentTimestamp = envelope.timestamp
+        message.sentTimestamp = sentTimestamp
         message.receivedTimestamp = System.currentTimeMillis()
         message.groupPublicKey = groupPublicKey
         message.openGroupServerMessageID = openGroupServerID
@@ -139,6 +153,6 @@ object MessageReceiver {
         if (message is VisibleMessage && !isValid && proto.dataMessage.attachmentsCount == 0) { isValid = true }
         if (!isValid) { throw Error.InvalidMessage }
         // Return
-        return Pair(message, proto)
+        return message
     }
 }
\ No newline at end of file
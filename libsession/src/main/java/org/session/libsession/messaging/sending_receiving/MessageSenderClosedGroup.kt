@@ -5,6 +5,7 @@ package org.session.libsession.messaging.sending_receiving
 import com.google.protobuf.ByteString
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.deferred
+import nl.komponents.kovenant.functional.map
 
 import org.session.libsession.messaging.MessagingConfiguration
 import org.session.libsession.messaging.messages.control.ClosedGroupControlMessage
@@ -15,17 +16,13 @@ import org.session.libsession.utilities.GroupUtil
 import org.session.libsignal.utilities.Hex
 
 import org.session.libsignal.libsignal.ecc.Curve
-import org.session.libsignal.libsignal.ecc.ECKeyPair
-import org.session.libsignal.libsignal.util.guava.Optional
 import org.session.libsignal.service.internal.push.SignalServiceProtos
+import org.session.libsignal.service.loki.api.crypto.SessionProtocolUtilities
 import org.session.libsignal.service.loki.utilities.hexEncodedPublicKey
 import org.session.libsignal.service.loki.utilities.removing05PrefixIfNeeded
 import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.utilities.logging.Log
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-
-private val pendingKeyPair = ConcurrentHashMap<String, Optional<ECKeyPair>>()
 
 fun MessageSender.createClosedGroup(name: String, members: Collection<String>): Promise<String, Exception> {
     val deferred = deferred<String, Exception>()
@@ -222,28 +219,26 @@ fun MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey: String, ta
         Log.d("Loki", "Can't distribute new encryption key pair as non-admin.")
         throw Error.InvalidClosedGroupUpdate
     }
-    // Generate the new encryption key pair
-    val newKeyPair = Curve.generateKeyPair()
-    // replace call will not succeed if no value already set
-    pendingKeyPair.putIfAbsent(groupPublicKey,Optional.absent())
-    do {
-        // make sure we set the pendingKeyPair or wait until it is not null
-    } while (!pendingKeyPair.replace(groupPublicKey,Optional.absent(),Optional.fromNullable(newKeyPair)))
-    // Distribute it
-    val proto = SignalServiceProtos.KeyPair.newBuilder()
-    proto.publicKey = ByteString.copyFrom(newKeyPair.publicKey.serialize().removing05PrefixIfNeeded())
-    proto.privateKey = ByteString.copyFrom(newKeyPair.privateKey.serialize())
-    val plaintext = proto.build().toByteArray()
-    val wrappers = targetMembers.map { publicKey ->
-        val ciphertext = MessageSenderEncryption.encryptWithSessionProtocol(plaintext, publicKey)
-        ClosedGroupControlMessage.KeyPairWrapper(publicKey, ByteString.copyFrom(ciphertext))
-    }
-    val kind = ClosedGroupControlMessage.Kind.EncryptionKeyPair(null, wrappers)
-    val closedGroupControlMessage = ClosedGroupControlMessage(kind)
-    sendNonDurably(closedGroupControlMessage, Address.fromSerialized(groupID)).success {
-        // Store it * after * having sent out the message to the group
-        storage.addClosedGroupEncryptionKeyPair(newKeyPair, groupPublicKey)
-        pendingKeyPair[groupPublicKey] = Optional.absent()
+    // Generate the new encryption key pair and distribute it, after any rotation that's in flight
+    ClosedGroupKeyRotations.rotate(groupPublicKey) { newKeyPair ->
+        val proto = SignalServiceProtos.KeyPair.newBuilder()
+        proto.publicKey = ByteString.copyFrom(newKeyPair.publicKey.serialize().removing05PrefixIfNeeded())
+        proto.privateKey = ByteString.copyFrom(newKeyPair.privateKey.serialize())
+        val plaintext = proto.build().toByteArray()
+        // Seal the key pair for all members in parallel
+        val targetMemberList = targetMembers.toList()
+        val ciphertexts = SessionProtocolUtilities.encryptForRecipients(plaintext, targetMemberList, MessagingConfiguration.shared.sessionProtocol)
+        val wrappers = targetMemberList.zip(ciphertexts).map { (publicKey, ciphertext) ->
+            ClosedGroupControlMessage.KeyPairWrapper(publicKey, ByteString.copyFrom(ciphertext))
+        }
+        val kind = ClosedGroupControlMessage.Kind.EncryptionKeyPair(null, wrappers)
+        val closedGroupControlMessage = ClosedGroupControlMessage(kind)
+        sendNonDurably(closedGroupControlMessage, Address.fromSerialized(groupID)).map {
+            // Store it * after * having sent out the message to the group
+            storage.addClosedGroupEncryptionKeyPair(newKeyPair, groupPublicKey)
+        }
+    }.fail {
+        Log.d("Loki", "Couldn't rotate encryption key pair due to error: $it.")
     }
 }
 
@@ -275,7 +270,7 @@ fun MessageSender.sendLatestEncryptionKeyPair(publicKey: String, groupPublicKey:
         return
     }
     // Get the latest encryption key pair
-    val encryptionKeyPair = pendingKeyPair[groupPublicKey]?.orNull()
+    val encryptionKeyPair = ClosedGroupKeyRotations.getPendingKeyPair(groupPublicKey)
             ?: storage.getLatestClosedGroupEncryptionKeyPair(groupPublicKey) ?: return
     // Send it
     val proto = SignalServiceProtos.KeyPair.newBuilder()
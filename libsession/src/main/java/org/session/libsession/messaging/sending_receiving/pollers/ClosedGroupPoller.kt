@@ -1,13 +1,13 @@
 package org.session.libsession.messaging.sending_receiving.pollers
 
-import android.os.Handler
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 
 import org.session.libsession.messaging.MessagingConfiguration
 import org.session.libsession.messaging.jobs.JobQueue
-import org.session.libsession.messaging.jobs.MessageReceiveJob
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
+import org.session.libsession.messaging.sending_receiving.MessageReceiveExecutor
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsignal.utilities.successBackground
@@ -15,22 +15,36 @@ import org.session.libsignal.utilities.successBackground
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.service.loki.utilities.getRandomElementOrNull
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import kotlin.math.min
+import kotlin.math.roundToLong
 
 class ClosedGroupPoller {
-    private var isPolling = false
-    private val handler: Handler by lazy { Handler() }
+    @Volatile private var isPolling = false
+    private var future: ScheduledFuture<*>? = null
+    /**
+     * Incremented every time polling is started, so that a tick that was still underway when polling was stopped
+     * doesn't keep a second loop going alongside the new one.
+     */
+    @Volatile private var generation = 0
+    private val pollStates = ConcurrentHashMap<String, PollState>()
 
-    private val task = object : Runnable {
-
-        override fun run() {
-            poll()
-            handler.postDelayed(this, ClosedGroupPoller.pollInterval)
-        }
+    /**
+     * Groups that just received messages are polled every `minPollInterval`. Each poll that comes back empty makes the
+     * interval grow by `backoffFactor`, up to `maxPollInterval`, so that quiet groups cost next to nothing.
+     */
+    private class PollState {
+        var interval = minPollInterval
+        var nextPollDate = 0L
+        var isPolling = false
     }
 
     // region Settings
     companion object {
-        private val pollInterval: Long = 2 * 1000
+        private val minPollInterval: Long = 2 * 1000
+        private val maxPollInterval: Long = 30 * 1000
+        private val backoffFactor = 1.5
     }
     // endregion
 
@@ -41,49 +55,94 @@ class ClosedGroupPoller {
 
     // region Public API
     public fun startIfNeeded() {
-        if (isPolling) { return }
-        isPolling = true
-        task.run()
+        val generation = synchronized(this) {
+            if (isPolling) { return }
+            isPolling = true
+            ++this.generation
+        }
+        tick(generation)
     }
 
     public fun pollOnce(): List<Promise<Unit, Exception>> {
         if (isPolling) { return listOf() }
         isPolling = true
-        return poll()
+        val publicKeys = MessagingConfiguration.shared.storage.getAllClosedGroupPublicKeys()
+        return publicKeys.map { poll(it) }
     }
 
     public fun stopIfNeeded() {
-        isPolling = false
-        handler.removeCallbacks(task)
+        synchronized(this) {
+            isPolling = false
+            future?.cancel(false)
+            future = null
+        }
+        pollStates.clear() // Poll every group right away when polling is resumed
     }
     // endregion
 
     // region Private API
-    private fun poll(): List<Promise<Unit, Exception>> {
-        if (!isPolling) { return listOf() }
+    private fun tick(generation: Int) {
+        if (!isPolling || this.generation != generation) { return }
+        try {
+            pollDueGroups()
+        } catch (exception: Exception) {
+            Log.d("Loki", "Failed to poll closed groups due to error: $exception.")
+        }
+        synchronized(this) {
+            if (isPolling && this.generation == generation) { future = PollingScheduler.schedule(minPollInterval) { tick(generation) } }
+        }
+    }
+
+    private fun pollDueGroups() {
+        if (MessageReceiveExecutor.isBackedUp) { return } // Let the messages that were already received be processed first
+        val now = System.currentTimeMillis()
         val publicKeys = MessagingConfiguration.shared.storage.getAllClosedGroupPublicKeys()
-        return publicKeys.map { publicKey ->
-            val promise = SnodeAPI.getSwarm(publicKey).bind { swarm ->
-                val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
-                if (!isPolling) { throw PollingCanceledException() }
-                SnodeAPI.getRawMessages(snode, publicKey).map {SnodeAPI.parseRawMessagesResponse(it, snode, publicKey) }
+        pollStates.keys.retainAll(publicKeys)
+        val dueGroupPublicKeys = publicKeys.filter { publicKey ->
+            val state = pollStates.getOrPut(publicKey) { PollState() }
+            synchronized(state) {
+                val isDue = !state.isPolling && state.nextPollDate <= now
+                if (isDue) { state.isPolling = true }
+                isDue
             }
-            promise.successBackground { messages ->
-                if (messages.isNotEmpty()) {
-                    Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
-                }
-                messages.forEach { message ->
-                    val rawMessageAsJSON = message as? Map<*, *>
-                    val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-                    val data = base64EncodedData?.let { Base64.decode(it) } ?: return@forEach
-                    val job = MessageReceiveJob(MessageWrapper.unwrap(data), false)
-                    JobQueue.shared.add(job)
-                }
+        }
+        dueGroupPublicKeys.forEach { poll(it) }
+    }
+
+    private fun poll(publicKey: String): Promise<Unit, Exception> {
+        val promise = SnodeAPI.getSwarm(publicKey).bind { swarm ->
+            val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
+            if (!isPolling) { throw PollingCanceledException() }
+            SnodeAPI.getRawMessages(snode, publicKey).map {SnodeAPI.parseRawMessagesResponse(it, snode, publicKey) }
+        }
+        promise.successBackground { messages ->
+            if (messages.isNotEmpty()) {
+                Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
+            }
+            val envelopes = messages.mapNotNull { message ->
+                val rawMessageAsJSON = message as? Map<*, *>
+                val base64EncodedData = rawMessageAsJSON?.get("data") as? String
+                val data = base64EncodedData?.let { Base64.decode(it) } ?: return@mapNotNull null
+                MessageWrapper.unwrap(data)
             }
-            promise.fail {
-                Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+            if (envelopes.isNotEmpty()) {
+                JobQueue.shared.add(BatchMessageReceiveJob(envelopes, false))
             }
-            promise.map { Unit }
+            updatePollState(publicKey, messages.isNotEmpty())
+        }
+        promise.fail {
+            Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+            updatePollState(publicKey, false)
+        }
+        return promise.map { Unit }
+    }
+
+    private fun updatePollState(publicKey: String, didReceiveMessages: Boolean) {
+        val state = pollStates[publicKey] ?: return
+        synchronized(state) {
+            state.interval = if (didReceiveMessages) minPollInterval else min(maxPollInterval, (state.interval * backoffFactor).roundToLong())
+            state.nextPollDate = System.currentTimeMillis() + state.interval
+            state.isPolling = false
         }
     }
     // endregion
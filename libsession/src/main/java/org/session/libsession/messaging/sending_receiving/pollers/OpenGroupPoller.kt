@@ -1,6 +1,5 @@
 package org.session.libsession.messaging.sending_receiving.pollers
 
-import android.os.Handler
 import com.google.protobuf.ByteString
 
 import nl.komponents.kovenant.Promise
@@ -11,17 +10,28 @@ import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.opengroups.OpenGroup
 import org.session.libsession.messaging.opengroups.OpenGroupAPI
 import org.session.libsession.messaging.opengroups.OpenGroupMessage
+import org.session.libsession.messaging.sending_receiving.MessageReceiveMetrics
+import org.session.libsession.messaging.sending_receiving.MessageReceiver
+import org.session.libsession.messaging.sending_receiving.handle
 
 import org.session.libsignal.utilities.successBackground
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.service.internal.push.SignalServiceProtos.*
 
 import java.util.*
+import java.util.concurrent.ScheduledFuture
+import kotlin.math.min
+import kotlin.math.roundToLong
 
 class OpenGroupPoller(private val openGroup: OpenGroup) {
-    private val handler by lazy { Handler() }
-    private var hasStarted = false
-    private var isPollOngoing = false
+    @Volatile private var hasStarted = false
+    @Volatile private var isPollOngoing = false
+    private var future: ScheduledFuture<*>? = null
+    /**
+     * Incremented on every start, so that ticks from before the last stop end their loop instead of running alongside
+     * the new one.
+     */
+    @Volatile private var generation = 0
     public var isCaughtUp = false
 
     // region Convenience
@@ -29,65 +39,91 @@ class OpenGroupPoller(private val openGroup: OpenGroup) {
     private var displayNameUpdatees = setOf<String>()
     // endregion
 
-    // region Tasks
-    private val pollForNewMessagesTask = object : Runnable {
-
-        override fun run() {
-            pollForNewMessages()
-            handler.postDelayed(this, pollForNewMessagesInterval)
-        }
-    }
-
-    private val pollForDeletedMessagesTask = object : Runnable {
-
-        override fun run() {
-            pollForDeletedMessages()
-            handler.postDelayed(this, pollForDeletedMessagesInterval)
-        }
-    }
-
-    private val pollForModeratorsTask = object : Runnable {
-
-        override fun run() {
-            pollForModerators()
-            handler.postDelayed(this, pollForModeratorsInterval)
-        }
-    }
-
-    private val pollForDisplayNamesTask = object : Runnable {
-
-        override fun run() {
-            pollForDisplayNames()
-            handler.postDelayed(this, pollForDisplayNamesInterval)
-        }
-    }
+    // region Scheduling
+    /**
+     * All queries are driven by a single tick on the shared `PollingScheduler` rather than by four timers on the main
+     * thread. Rooms that just received messages are polled every `minPollForNewMessagesInterval`; each poll that comes
+     * back empty makes the interval grow by `backoffFactor`, up to `maxPollForNewMessagesInterval`.
+     */
+    @Volatile private var pollForNewMessagesInterval = minPollForNewMessagesInterval
+    @Volatile private var nextPollForNewMessagesDate = 0L
+    private var nextPollForDeletedMessagesDate = 0L
+    private var nextPollForModeratorsDate = 0L
+    private var nextPollForDisplayNamesDate = 0L
     // endregion
 
     // region Settings
     companion object {
-        private val pollForNewMessagesInterval: Long = 4 * 1000
+        private val tickInterval: Long = 1000
+        private val minPollForNewMessagesInterval: Long = 4 * 1000
+        private val maxPollForNewMessagesInterval: Long = 16 * 1000
+        private val backoffFactor = 1.5
         private val pollForDeletedMessagesInterval: Long = 60 * 1000
         private val pollForModeratorsInterval: Long = 10 * 60 * 1000
         private val pollForDisplayNamesInterval: Long = 60 * 1000
+        private val savepointName = "open_group_message"
     }
     // endregion
 
     // region Lifecycle
     fun startIfNeeded() {
-        if (hasStarted) return
-        pollForNewMessagesTask.run()
-        pollForDeletedMessagesTask.run()
-        pollForModeratorsTask.run()
-        pollForDisplayNamesTask.run()
-        hasStarted = true
+        val generation = synchronized(this) {
+            if (hasStarted) { return }
+            hasStarted = true
+            ++this.generation
+        }
+        tick(generation)
     }
 
     fun stop() {
-        handler.removeCallbacks(pollForNewMessagesTask)
-        handler.removeCallbacks(pollForDeletedMessagesTask)
-        handler.removeCallbacks(pollForModeratorsTask)
-        handler.removeCallbacks(pollForDisplayNamesTask)
-        hasStarted = false
+        synchronized(this) {
+            hasStarted = false
+            future?.cancel(false)
+            future = null
+        }
+        pollForNewMessagesInterval = minPollForNewMessagesInterval
+        nextPollForNewMessagesDate = 0L // Poll right away when polling is resumed
+    }
+
+    private fun tick(generation: Int) {
+        if (!hasStarted || this.generation != generation) { return }
+        val now = System.currentTimeMillis()
+        try {
+            pollIfNeeded(now)
+        } catch (exception: Exception) {
+            Log.d("Loki", "Failed to poll group chat with ID: ${openGroup.channel} on server: ${openGroup.server} due to error: $exception.")
+        }
+        // A stop can't slip in between the check and scheduling, as it takes the same lock
+        synchronized(this) {
+            if (hasStarted && this.generation == generation) { future = PollingScheduler.schedule(tickInterval) { tick(generation) } }
+        }
+    }
+
+    private fun pollIfNeeded(now: Long) {
+        if (!isPollOngoing && now >= nextPollForNewMessagesDate) {
+            pollForNewMessages()
+        }
+        if (now >= nextPollForDeletedMessagesDate) {
+            nextPollForDeletedMessagesDate = now + pollForDeletedMessagesInterval
+            pollForDeletedMessages()
+        }
+        if (now >= nextPollForModeratorsDate) {
+            nextPollForModeratorsDate = now + pollForModeratorsInterval
+            pollForModerators()
+        }
+        if (now >= nextPollForDisplayNamesDate) {
+            nextPollForDisplayNamesDate = now + pollForDisplayNamesInterval
+            pollForDisplayNames()
+        }
+    }
+
+    private fun updatePollForNewMessagesInterval(didReceiveMessages: Boolean) {
+        pollForNewMessagesInterval = if (didReceiveMessages) {
+            minPollForNewMessagesInterval
+        } else {
+            min(maxPollForNewMessagesInterval, (pollForNewMessagesInterval * backoffFactor).roundToLong())
+        }
+        nextPollForNewMessagesDate = System.currentTimeMillis() + pollForNewMessagesInterval
     }
     // endregion
 
@@ -103,120 +139,175 @@ class OpenGroupPoller(private val openGroup: OpenGroup) {
         // Kovenant propagates a context to chained promises, so OpenGroupAPI.sharedContext should be used for all of the below
         OpenGroupAPI.getMessages(openGroup.channel, openGroup.server).successBackground { messages ->
             // Process messages in the background
-            messages.forEach { message ->
-                val senderPublicKey = message.senderPublicKey
-                val wasSentByCurrentUser = (senderPublicKey == userHexEncodedPublicKey)
-                fun generateDisplayName(rawDisplayName: String): String {
-                    return "${rawDisplayName} (${senderPublicKey.takeLast(8)})"
-                }
-                val senderDisplayName = MessagingConfiguration.shared.storage.getOpenGroupDisplayName(senderPublicKey, openGroup.channel, openGroup.server) ?: generateDisplayName("Anonymous")
-                val id = openGroup.id.toByteArray()
-                // Main message
-                val dataMessageProto = DataMessage.newBuilder()
-                val body = if (message.body == message.timestamp.toString()) { "" } else { message.body }
-                dataMessageProto.setBody(body)
-                dataMessageProto.setTimestamp(message.timestamp)
-                // Attachments
-                val attachmentProtos = message.attachments.mapNotNull { attachment ->
-                    if (attachment.kind != OpenGroupMessage.Attachment.Kind.Attachment) { return@mapNotNull null }
-                    val attachmentProto = AttachmentPointer.newBuilder()
-                    attachmentProto.setId(attachment.serverID)
-                    attachmentProto.setContentType(attachment.contentType)
-                    attachmentProto.setSize(attachment.size)
-                    attachmentProto.setFileName(attachment.fileName)
-                    attachmentProto.setFlags(attachment.flags)
-                    attachmentProto.setWidth(attachment.width)
-                    attachmentProto.setHeight(attachment.height)
-                    attachment.caption.let { attachmentProto.setCaption(it) }
-                    attachmentProto.setUrl(attachment.url)
-                    attachmentProto.build()
-                }
-                dataMessageProto.addAllAttachments(attachmentProtos)
-                // Link preview
-                val linkPreview = message.attachments.firstOrNull { it.kind == OpenGroupMessage.Attachment.Kind.LinkPreview }
-                if (linkPreview != null) {
-                    val linkPreviewProto = DataMessage.Preview.newBuilder()
-                    linkPreviewProto.setUrl(linkPreview.linkPreviewURL!!)
-                    linkPreviewProto.setTitle(linkPreview.linkPreviewTitle!!)
-                    val attachmentProto = AttachmentPointer.newBuilder()
-                    attachmentProto.setId(linkPreview.serverID)
-                    attachmentProto.setContentType(linkPreview.contentType)
-                    attachmentProto.setSize(linkPreview.size)
-                    attachmentProto.setFileName(linkPreview.fileName)
-                    attachmentProto.setFlags(linkPreview.flags)
-                    attachmentProto.setWidth(linkPreview.width)
-                    attachmentProto.setHeight(linkPreview.height)
-                    linkPreview.caption.let { attachmentProto.setCaption(it) }
-                    attachmentProto.setUrl(linkPreview.url)
-                    linkPreviewProto.setImage(attachmentProto.build())
-                    dataMessageProto.addPreview(linkPreviewProto.build())
-                }
-                // Quote
-                val quote = message.quote
-                if (quote != null) {
-                    val quoteProto = DataMessage.Quote.newBuilder()
-                    quoteProto.setId(quote.quotedMessageTimestamp)
-                    quoteProto.setAuthor(quote.quoteePublicKey)
-                    if (quote.quotedMessageBody != quote.quotedMessageTimestamp.toString()) { quoteProto.setText(quote.quotedMessageBody) }
-                    dataMessageProto.setQuote(quoteProto.build())
-                }
-                val messageServerID = message.serverID
-                // Profile
-                val profileProto = DataMessage.LokiProfile.newBuilder()
-                profileProto.setDisplayName(message.displayName)
-                val profilePicture = message.profilePicture
-                if (profilePicture != null) {
-                    profileProto.setProfilePicture(profilePicture.url)
-                    dataMessageProto.setProfileKey(ByteString.copyFrom(profilePicture.profileKey))
-                }
-                dataMessageProto.setProfile(profileProto.build())
-                /* TODO: the signal service proto needs to be synced with iOS
-                // Open group info
-                if (messageServerID != null) {
-                    val openGroupProto = PublicChatInfo.newBuilder()
-                    openGroupProto.setServerID(messageServerID)
-                    dataMessageProto.setPublicChatInfo(openGroupProto.build())
-                }
-                */
-                // Signal group context
-                val groupProto = GroupContext.newBuilder()
-                groupProto.setId(ByteString.copyFrom(id))
-                groupProto.setType(GroupContext.Type.DELIVER)
-                groupProto.setName(openGroup.displayName)
-                dataMessageProto.setGroup(groupProto.build())
-                // Sync target
-                if (wasSentByCurrentUser) {
-                    dataMessageProto.setSyncTarget(openGroup.id)
-                }
-                // Content
-                val content = Content.newBuilder()
-                content.setDataMessage(dataMessageProto.build())
-                // Envelope
-                val builder = Envelope.newBuilder()
-                builder.type = Envelope.Type.UNIDENTIFIED_SENDER
-                builder.source = senderPublicKey
-                builder.sourceDevice = 1
-                builder.setContent(content.build().toByteString())
-                builder.serverTimestamp = message.serverTimestamp
-                val envelope = builder.build()
-                val job = MessageReceiveJob(envelope.toByteArray(), isBackgroundPoll, messageServerID, openGroup.id)
-                if (isBackgroundPoll) {
-                    job.executeAsync().success { deferred.resolve(Unit) }.fail { deferred.resolve(Unit) }
-                    // The promise is just used to keep track of when we're done
-                } else {
-                    JobQueue.shared.add(job)
-                    deferred.resolve(Unit)
-                }
+            try {
+                handleNewMessages(messages, isBackgroundPoll)
+            } catch (exception: Exception) {
+                Log.d("Loki", "Failed to handle messages for group chat with ID: ${openGroup.channel} on server: ${openGroup.server} due to error: $exception.")
             }
             isCaughtUp = true
+            updatePollForNewMessagesInterval(messages.isNotEmpty())
             isPollOngoing = false
+            deferred.resolve(Unit)
         }.fail {
             Log.d("Loki", "Failed to get messages for group chat with ID: ${openGroup.channel} on server: ${openGroup.server}.")
+            updatePollForNewMessagesInterval(false)
             isPollOngoing = false
+            deferred.reject(it)
         }
         return deferred.promise
     }
 
+    /**
+     * Feeds the messages straight into `MessageReceiver` rather than serializing each of them into an envelope and
+     * going through a `MessageReceiveJob`. The messages are handled in a single transaction, each within its own
+     * savepoint, so that a message that fails halfway through is rolled back without affecting the others. Messages
+     * that fail with a retryable error fall back to a `MessageReceiveJob` that's scheduled for retry as usual.
+     */
+    private fun handleNewMessages(messages: List<OpenGroupMessage>, isBackgroundPoll: Boolean) {
+        if (messages.isEmpty()) { return }
+        val storage = MessagingConfiguration.shared.storage
+        val failedMessages = mutableListOf<Triple<OpenGroupMessage, Content, Exception>>()
+        val handledMessages = mutableListOf<Pair<OpenGroupMessage, Content>>()
+        var isCommitted = false
+        storage.beginTransaction()
+        try {
+            for (message in messages) {
+                val serverID = message.serverID ?: continue
+                val content = getContent(message)
+                storage.setSavepoint(savepointName)
+                try {
+                    val parsedMessage = MessageReceiver.parseOpenGroupMessage(content, message.senderPublicKey, message.timestamp, serverID)
+                    MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Handle) { MessageReceiver.handle(parsedMessage, content, openGroup.id) }
+                    storage.releaseSavepoint(savepointName)
+                    handledMessages.add(Pair(message, content))
+                } catch (e: Exception) {
+                    // Undo whatever the failed message wrote, without affecting the messages handled before it
+                    storage.rollbackToSavepoint(savepointName)
+                    val error = e as? MessageReceiver.Error
+                    if (error != null && !error.isRetryable) {
+                        Log.d("Loki", "Couldn't receive open group message due to error: $error.")
+                    } else {
+                        failedMessages.add(Triple(message, content, e))
+                    }
+                }
+            }
+            storage.setTransactionSuccessful()
+        } finally {
+            isCommitted = MessageReceiveMetrics.measure(MessageReceiveMetrics.Stage.Persist) { storage.endTransaction() }
+        }
+        if (!isCommitted) {
+            // A transaction nested within the batch failed and took the whole batch down with it, so the messages that
+            // were handled are retried along with the failed ones
+            Log.d("Loki", "Couldn't commit batch of ${messages.size} open group messages; retrying them individually.")
+            val error = Exception("Couldn't commit the batch the open group message was received in.")
+            handledMessages.forEach { (message, content) -> failedMessages.add(Triple(message, content, error)) }
+        }
+        failedMessages.forEach { (message, content, e) ->
+            Log.d("Loki", "Couldn't receive open group message due to error: $e; scheduling retry.")
+            val job = MessageReceiveJob(getEnvelope(message, content).toByteArray(), isBackgroundPoll, message.serverID, openGroup.id)
+            // Schedule a retry rather than running the job right away (as `BatchMessageReceiveJob` does), so that it
+            // backs off and runs as a retry
+            JobQueue.shared.addWithoutExecuting(job)
+            JobQueue.shared.handleJobFailed(job, e)
+        }
+    }
+
+    private fun getContent(message: OpenGroupMessage): Content {
+        val wasSentByCurrentUser = (message.senderPublicKey == userHexEncodedPublicKey)
+        val id = openGroup.id.toByteArray()
+        // Main message
+        val dataMessageProto = DataMessage.newBuilder()
+        val body = if (message.body == message.timestamp.toString()) { "" } else { message.body }
+        dataMessageProto.setBody(body)
+        dataMessageProto.setTimestamp(message.timestamp)
+        // Attachments
+        val attachmentProtos = message.attachments.mapNotNull { attachment ->
+            if (attachment.kind != OpenGroupMessage.Attachment.Kind.Attachment) { return@mapNotNull null }
+            val attachmentProto = AttachmentPointer.newBuilder()
+            attachmentProto.setId(attachment.serverID)
+            attachmentProto.setContentType(attachment.contentType)
+            attachmentProto.setSize(attachment.size)
+            attachmentProto.setFileName(attachment.fileName)
+            attachmentProto.setFlags(attachment.flags)
+            attachmentProto.setWidth(attachment.width)
+            attachmentProto.setHeight(attachment.height)
+            attachment.caption.let { attachmentProto.setCaption(it) }
+            attachmentProto.setUrl(attachment.url)
+            attachmentProto.build()
+        }
+        dataMessageProto.addAllAttachments(attachmentProtos)
+        // Link preview
+        val linkPreview = message.attachments.firstOrNull { it.kind == OpenGroupMessage.Attachment.Kind.LinkPreview }
+        if (linkPreview != null) {
+            val linkPreviewProto = DataMessage.Preview.newBuilder()
+            linkPreviewProto.setUrl(linkPreview.linkPreviewURL!!)
+            linkPreviewProto.setTitle(linkPreview.linkPreviewTitle!!)
+            val attachmentProto = AttachmentPointer.newBuilder()
+            attachmentProto.setId(linkPreview.serverID)
+            attachmentProto.setContentType(linkPreview.contentType)
+            attachmentProto.setSize(linkPreview.size)
+            attachmentProto.setFileName(linkPreview.fileName)
+            attachmentProto.setFlags(linkPreview.flags)
+            attachmentProto.setWidth(linkPreview.width)
+            attachmentProto.setHeight(linkPreview.height)
+            linkPreview.caption.let { attachmentProto.setCaption(it) }
+            attachmentProto.setUrl(linkPreview.url)
+            linkPreviewProto.setImage(attachmentProto.build())
+            dataMessageProto.addPreview(linkPreviewProto.build())
+        }
+        // Quote
+        val quote = message.quote
+        if (quote != null) {
+            val quoteProto = DataMessage.Quote.newBuilder()
+            quoteProto.setId(quote.quotedMessageTimestamp)
+            quoteProto.setAuthor(quote.quoteePublicKey)
+            if (quote.quotedMessageBody != quote.quotedMessageTimestamp.toString()) { quoteProto.setText(quote.quotedMessageBody) }
+            dataMessageProto.setQuote(quoteProto.build())
+        }
+        // Profile
+        val profileProto = DataMessage.LokiProfile.newBuilder()
+        profileProto.setDisplayName(message.displayName)
+        val profilePicture = message.profilePicture
+        if (profilePicture != null) {
+            profileProto.setProfilePicture(profilePicture.url)
+            dataMessageProto.setProfileKey(ByteString.copyFrom(profilePicture.profileKey))
+        }
+        dataMessageProto.setProfile(profileProto.build())
+        /* TODO: the signal service proto needs to be synced with iOS
+        // Open group info
+        if (messageServerID != null) {
+            val openGroupProto = PublicChatInfo.newBuilder()
+            openGroupProto.setServerID(messageServerID)
+            dataMessageProto.setPublicChatInfo(openGroupProto.build())
+        }
+        */
+        // Signal group context
+        val groupProto = GroupContext.newBuilder()
+        groupProto.setId(ByteString.copyFrom(id))
+        groupProto.setType(GroupContext.Type.DELIVER)
+        groupProto.setName(openGroup.displayName)
+        dataMessageProto.setGroup(groupProto.build())
+        // Sync target
+        if (wasSentByCurrentUser) {
+            dataMessageProto.setSyncTarget(openGroup.id)
+        }
+        // Content
+        val content = Content.newBuilder()
+        content.setDataMessage(dataMessageProto.build())
+        return content.build()
+    }
+
+    private fun getEnvelope(message: OpenGroupMessage, content: Content): Envelope {
+        val builder = Envelope.newBuilder()
+        builder.type = Envelope.Type.UNIDENTIFIED_SENDER
+        builder.source = message.senderPublicKey
+        builder.sourceDevice = 1
+        builder.setContent(content.toByteString())
+        builder.timestamp = message.timestamp
+        builder.serverTimestamp = message.serverTimestamp
+        return builder.build()
+    }
+
     private fun pollForDisplayNames() {
         if (displayNameUpdatees.isEmpty()) { return }
         val hexEncodedPublicKeys = displayNameUpdatees
@@ -5,81 +5,111 @@ import nl.komponents.kovenant.functional.bind
 
 import org.session.libsession.messaging.MessagingConfiguration
 import org.session.libsession.messaging.jobs.JobQueue
-import org.session.libsession.messaging.jobs.MessageReceiveJob
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
+import org.session.libsession.messaging.sending_receiving.MessageReceiveExecutor
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.Snode
 import org.session.libsession.snode.SnodeAPI
-import org.session.libsession.snode.SnodeConfiguration
 
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
 
 import java.security.SecureRandom
-import java.util.*
+import java.util.concurrent.ScheduledFuture
+import kotlin.math.min
 
 private class PromiseCanceledException : Exception("Promise canceled.")
 
 class Poller {
     private val userPublicKey = MessagingConfiguration.shared.storage.getUserPublicKey() ?: ""
-    private var hasStarted: Boolean = false
+    @Volatile private var hasStarted: Boolean = false
+    /**
+     * Incremented every time polling is started, so that a polling loop that was still underway when polling was
+     * stopped notices it's stale rather than keep running alongside the new one.
+     */
+    @Volatile private var generation = 0
+    private var future: ScheduledFuture<*>? = null
     private val usedSnodes: MutableSet<Snode> = mutableSetOf()
     public var isCaughtUp = false
 
     // region Settings
     companion object {
         private val retryInterval: Long = 1 * 1000
+        /**
+         * The number of swarm snodes that are long polled at the same time.
+         */
+        private val maxConcurrentSnodeCount = 2
+        /**
+         * How long to wait before polling again while `MessageReceiveExecutor` is backed up.
+         */
+        private val backPressureInterval: Long = 500
     }
     // endregion
 
     // region Public API
     fun startIfNeeded() {
-        if (hasStarted) { return }
+        val generation = synchronized(this) {
+            if (hasStarted) { return }
+            hasStarted = true
+            ++this.generation
+        }
         Log.d("Loki", "Started polling.")
-        hasStarted = true
-        setUpPolling()
+        setUpPolling(generation)
     }
 
     fun stopIfNeeded() {
         Log.d("Loki", "Stopped polling.")
-        hasStarted = false
-        usedSnodes.clear()
+        synchronized(this) {
+            hasStarted = false
+            future?.cancel(false)
+            future = null
+        }
+        synchronized(usedSnodes) { usedSnodes.clear() }
     }
     // endregion
 
     // region Private API
-    private fun setUpPolling() {
-        if (!hasStarted) { return; }
-        val thread = Thread.currentThread()
-        SnodeAPI.getSwarm(userPublicKey).bind(SnodeAPI.messagePollingContext) {
-            usedSnodes.clear()
-            val deferred = deferred<Unit, Exception>(SnodeAPI.messagePollingContext)
-            pollNextSnode(deferred)
-            deferred.promise
-        }.always {
-            Timer().schedule(object : TimerTask() {
+    private fun isActive(generation: Int): Boolean {
+        return hasStarted && this.generation == generation
+    }
 
-                override fun run() {
-                    thread.run { setUpPolling() }
-                }
-            }, retryInterval)
+    private fun setUpPolling(generation: Int) {
+        if (!isActive(generation)) { return; }
+        SnodeAPI.getSwarm(userPublicKey).bind(SnodeAPI.messagePollingContext) { swarm ->
+            if (!isActive(generation)) { throw PromiseCanceledException() }
+            synchronized(usedSnodes) { usedSnodes.clear() }
+            // Long poll several snodes at once so that a slow or unresponsive snode doesn't delay incoming messages
+            val promises = (0 until min(maxConcurrentSnodeCount, swarm.size).coerceAtLeast(1)).map {
+                val deferred = deferred<Unit, Exception>(SnodeAPI.messagePollingContext)
+                pollNextSnode(deferred, generation)
+                deferred.promise
+            }
+            all(promises, SnodeAPI.messagePollingContext, false)
+        }.always {
+            // Checked under the same lock as stopIfNeeded() so that a stop can't slip in between the check and scheduling
+            synchronized(this) {
+                if (isActive(generation)) { future = PollingScheduler.schedule(retryInterval) { setUpPolling(generation) } }
+            }
         }
     }
 
-    private fun pollNextSnode(deferred: Deferred<Unit, Exception>) {
-        val swarm = SnodeConfiguration.shared.storage.getSwarm(userPublicKey) ?: setOf()
-        val unusedSnodes = swarm.subtract(usedSnodes)
-        if (unusedSnodes.isNotEmpty()) {
-            val index = SecureRandom().nextInt(unusedSnodes.size)
-            val nextSnode = unusedSnodes.elementAt(index)
-            usedSnodes.add(nextSnode)
+    private fun pollNextSnode(deferred: Deferred<Unit, Exception>, generation: Int) {
+        val swarm = SnodeAPI.database.getSwarm(userPublicKey) ?: setOf()
+        val nextSnode = synchronized(usedSnodes) { // The concurrent polling loops must never pick the same snode
+            val unusedSnodes = swarm.subtract(usedSnodes)
+            val nextSnode = if (unusedSnodes.isNotEmpty()) unusedSnodes.elementAt(SecureRandom().nextInt(unusedSnodes.size)) else null
+            nextSnode?.let { usedSnodes.add(it) }
+            nextSnode
+        }
+        if (nextSnode != null) {
             Log.d("Loki", "Polling $nextSnode.")
-            poll(nextSnode, deferred).fail { exception ->
+            poll(nextSnode, deferred, generation).fail { exception ->
                 if (exception is PromiseCanceledException) {
                     Log.d("Loki", "Polling $nextSnode canceled.")
                 } else {
                     Log.d("Loki", "Polling $nextSnode failed; dropping it and switching to next snode.")
                     SnodeAPI.dropSnodeFromSwarmIfNeeded(nextSnode, userPublicKey)
-                    pollNextSnode(deferred)
+                    pollNextSnode(deferred, generation)
                 }
             }
         } else {
@@ -88,24 +118,39 @@ class Poller {
         }
     }
 
-    private fun poll(snode: Snode, deferred: Deferred<Unit, Exception>): Promise<Unit, Exception> {
-        if (!hasStarted) { return Promise.ofFail(PromiseCanceledException()) }
+    private fun poll(snode: Snode, deferred: Deferred<Unit, Exception>, generation: Int): Promise<Unit, Exception> {
+        if (!isActive(generation)) { return Promise.ofFail(PromiseCanceledException()) }
         return SnodeAPI.getRawMessages(snode, userPublicKey).bind(SnodeAPI.messagePollingContext) { rawResponse ->
             isCaughtUp = true
             if (deferred.promise.isDone()) {
                 task { Unit } // The long polling connection has been canceled; don't recurse
             } else {
                 val messages = SnodeAPI.parseRawMessagesResponse(rawResponse, snode, userPublicKey)
-                messages.forEach { message ->
+                val envelopes = messages.mapNotNull { message ->
                     val rawMessageAsJSON = message as? Map<*, *>
                     val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-                    val data = base64EncodedData?.let { Base64.decode(it) } ?: return@forEach
-                    val job = MessageReceiveJob(MessageWrapper.unwrap(data), false)
-                    JobQueue.shared.add(job)
+                    val data = base64EncodedData?.let { Base64.decode(it) } ?: return@mapNotNull null
+                    MessageWrapper.unwrap(data)
+                }
+                if (envelopes.isNotEmpty()) {
+                    JobQueue.shared.add(BatchMessageReceiveJob(envelopes, false))
+                }
+                if (MessageReceiveExecutor.isBackedUp) {
+                    // Let the messages that were already received be processed before fetching more
+                    pollAfterBackPressureInterval(snode, deferred, generation)
+                } else {
+                    poll(snode, deferred, generation)
                 }
-                poll(snode, deferred)
             }
         }
     }
+
+    private fun pollAfterBackPressureInterval(snode: Snode, pollingDeferred: Deferred<Unit, Exception>, generation: Int): Promise<Unit, Exception> {
+        val result = deferred<Unit, Exception>()
+        PollingScheduler.schedule(backPressureInterval) {
+            poll(snode, pollingDeferred, generation).success { result.resolve(it) }.fail { result.reject(it) }
+        }
+        return result.promise
+    }
     // endregion
 }
@@ -0,0 +1,20 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * The single background scheduler that drives polling of our own swarm, all closed group swarms and open groups.
+ *
+ * Scheduled tasks only kick off network requests (which run on `SnodeAPI`'s contexts), so one thread is enough no
+ * matter how many swarms and rooms are being polled, and neither the main thread nor a fresh `Timer` thread is
+ * needed to reschedule a poll.
+ */
+object PollingScheduler {
+    private val executor = ScheduledThreadPoolExecutor(1).apply { removeOnCancelPolicy = true }
+
+    fun schedule(delay: Long, task: () -> Unit): ScheduledFuture<*> {
+        return executor.schedule(task, delay, TimeUnit.MILLISECONDS)
+    }
+}
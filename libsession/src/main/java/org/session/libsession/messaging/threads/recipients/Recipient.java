@@ -47,6 +47,7 @@ import org.session.libsession.utilities.ProfilePictureModifiedEvent;
 import org.session.libsession.utilities.FutureTaskListener;
 import org.session.libsession.utilities.ListenableFutureTask;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -106,6 +107,14 @@ public class Recipient implements RecipientModifiedListener {
     return provider.getRecipient(context, address, settings, groupRecord, asynchronous);
   }
 
+  /**
+   * Resolves the given recipients up front with a single query, so that {@link #from} finds them
+   * in the cache. Must not be called on the main thread.
+   */
+  public static void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    provider.prefetch(context, addresses);
+  }
+
   public static void applyCached(@NonNull Address address, Consumer<Recipient> consumer) {
     Optional<Recipient> recipient = provider.getCached(address);
     if (recipient.isPresent()) consumer.accept(recipient.get());
@@ -33,11 +33,15 @@ import org.session.libsession.messaging.threads.recipients.Recipient.RegisteredS
 import org.session.libsession.messaging.threads.recipients.Recipient.UnidentifiedAccessMode;
 import org.session.libsession.messaging.threads.recipients.Recipient.VibrateState;
 import org.session.libsession.utilities.ListenableFutureTask;
-import org.session.libsession.utilities.SoftHashMap;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.Util;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -51,8 +55,10 @@ class RecipientProvider {
   @SuppressWarnings("unused")
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final int RESOLVER_THREAD_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static final RecipientCache<Address, Recipient> recipientCache         = new RecipientCache<>();
+  private static final ExecutorService                    asyncRecipientResolver = Util.newLifoExecutor(RESOLVER_THREAD_COUNT);
 
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", null, false, false, null, null));
@@ -61,20 +67,32 @@ class RecipientProvider {
   @NonNull Recipient getRecipient(@NonNull Context context, @NonNull Address address, @NonNull Optional<RecipientSettings> settings, @NonNull Optional<GroupRecord> groupRecord, boolean asynchronous) {
     Recipient cachedRecipient = recipientCache.get(address);
 
-    if (cachedRecipient != null && (asynchronous || !cachedRecipient.isResolving()) && ((!groupRecord.isPresent() && !settings.isPresent()) || !cachedRecipient.isResolving() || cachedRecipient.getName() != null)) {
+    if (isUsable(cachedRecipient, settings, groupRecord, asynchronous)) {
       return cachedRecipient;
     }
 
     Optional<RecipientDetails> prefetchedRecipientDetails = createPrefetchedRecipientDetails(context, address, settings, groupRecord);
+    Recipient                  recipient;
 
     if (asynchronous) {
-      cachedRecipient = new Recipient(context, address, cachedRecipient, prefetchedRecipientDetails, getRecipientDetailsAsync(context, address, settings, groupRecord));
+      recipient = new Recipient(context, address, cachedRecipient, prefetchedRecipientDetails, getRecipientDetailsAsync(context, address, settings, groupRecord));
     } else {
-      cachedRecipient = new Recipient(context, address, getRecipientDetailsSync(context, address, settings, groupRecord, false));
+      recipient = new Recipient(context, address, getRecipientDetailsSync(context, address, settings, groupRecord, false));
+    }
+
+    // Another thread may have cached a recipient for the address while this one was being created
+    Recipient currentRecipient = recipientCache.replace(address, cachedRecipient, recipient);
+
+    if (currentRecipient != recipient && isUsable(currentRecipient, settings, groupRecord, asynchronous)) {
+      return currentRecipient;
     }
 
-    recipientCache.set(address, cachedRecipient);
-    return cachedRecipient;
+    recipientCache.set(address, recipient);
+    return recipient;
+  }
+
+  private boolean isUsable(@Nullable Recipient cachedRecipient, @NonNull Optional<RecipientSettings> settings, @NonNull Optional<GroupRecord> groupRecord, boolean asynchronous) {
+    return cachedRecipient != null && (asynchronous || !cachedRecipient.isResolving()) && ((!groupRecord.isPresent() && !settings.isPresent()) || !cachedRecipient.isResolving() || cachedRecipient.getName() != null);
   }
 
   @NonNull Optional<Recipient> getCached(@NonNull Address address) {
@@ -85,12 +103,35 @@ class RecipientProvider {
     return recipientCache.remove(address);
   }
 
+  /**
+   * Resolves the given individual recipients that aren't cached yet, loading their settings with a
+   * single query rather than one query per recipient.
+   */
+  void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    List<Address> uncachedAddresses = new ArrayList<>();
+
+    for (Address address : addresses) {
+      if (!address.isGroup() && recipientCache.get(address) == null) {
+        uncachedAddresses.add(address);
+      }
+    }
+
+    if (uncachedAddresses.isEmpty()) return;
+
+    Map<Address, RecipientSettings> settings = MessagingConfiguration.shared.getStorage().getRecipientSettings(uncachedAddresses);
+
+    for (Address address : uncachedAddresses) {
+      RecipientDetails details = getIndividualRecipientDetails(context, address, Optional.fromNullable(settings.get(address)), true);
+      recipientCache.setIfAbsent(address, new Recipient(context, address, details));
+    }
+  }
+
   private @NonNull Optional<RecipientDetails> createPrefetchedRecipientDetails(@NonNull Context context, @NonNull Address address,
                                                                                @NonNull Optional<RecipientSettings> settings,
                                                                                @NonNull Optional<GroupRecord> groupRecord)
   {
     if (address.isGroup() && settings.isPresent() && groupRecord.isPresent()) {
-      return Optional.of(getGroupRecipientDetails(context, address, groupRecord, settings, true));
+      return Optional.of(getGroupRecipientDetails(context, address, groupRecord, settings, true, false));
     } else if (!address.isGroup() && settings.isPresent()) {
       boolean isLocalNumber = address.serialize().equals(TextSecurePreferences.getLocalNumber(context));
       return Optional.of(new RecipientDetails(null, null, !TextUtils.isEmpty(settings.get().getSystemDisplayName()), isLocalNumber, settings.get(), null));
@@ -109,12 +150,12 @@ class RecipientProvider {
   }
 
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, @NonNull Address address, Optional<RecipientSettings> settings, Optional<GroupRecord> groupRecord, boolean nestedAsynchronous) {
-    if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous);
-    else                   return getIndividualRecipientDetails(context, address, settings);
+    if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous, true);
+    else                   return getIndividualRecipientDetails(context, address, settings, false);
   }
 
-  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings) {
-    if (!settings.isPresent()) {
+  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings, boolean settingsLoaded) {
+    if (!settings.isPresent() && !settingsLoaded) {
       settings = Optional.fromNullable(MessagingConfiguration.shared.getStorage().getRecipientSettings(address));
     }
 
@@ -127,7 +168,7 @@ class RecipientProvider {
     }
   }
 
-  private @NonNull RecipientDetails getGroupRecipientDetails(Context context, Address groupId, Optional<GroupRecord> groupRecord, Optional<RecipientSettings> settings, boolean asynchronous) {
+  private @NonNull RecipientDetails getGroupRecipientDetails(Context context, Address groupId, Optional<GroupRecord> groupRecord, Optional<RecipientSettings> settings, boolean asynchronous, boolean prefetchMembers) {
 
     if (!groupRecord.isPresent()) {
       groupRecord = Optional.fromNullable(MessagingConfiguration.shared.getStorage().getGroup(groupId.toGroupString()));
@@ -144,6 +185,10 @@ class RecipientProvider {
       List<Recipient> members         = new LinkedList<>();
       Long            avatarId        = null;
 
+      if (prefetchMembers) {
+        prefetch(context, memberAddresses);
+      }
+
       for (Address memberAddress : memberAddresses) {
         members.add(getRecipient(context, memberAddress, Optional.absent(), Optional.absent(), asynchronous));
       }
@@ -223,20 +268,134 @@ class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
+  /**
+   * A size bounded cache that evicts the least recently used recipients. It's split into stripes
+   * that are locked separately, so that the resolver threads don't contend on a single lock. An
+   * address always maps to the same stripe.
+   *
+   * Evicted recipients are only weakly referenced, rather than dropped, so that a recipient that's
+   * still in use elsewhere is found again instead of being created a second time.
+   */
+  /**
+   * A striped LRU cache. Entries that are evicted are kept as weak references for as long as
+   * they're in use elsewhere, so that an address never ends up with two instances at once.
+   */
+  static class RecipientCache<K, V> {
+
+    static final int STRIPE_COUNT = 16;
+    static final int MAX_SIZE     = 1000;
+
+    private final List<Stripe<K, V>> stripes;
+
+    RecipientCache() {
+      this(STRIPE_COUNT, MAX_SIZE);
+    }
 
-    private final Map<Address,Recipient> cache = new SoftHashMap<>(1000);
+    RecipientCache(int stripeCount, int maxSize) {
+      this.stripes = new ArrayList<>(stripeCount);
+      for (int i = 0; i < stripeCount; i++) {
+        stripes.add(new Stripe<>(maxSize / stripeCount));
+      }
+    }
 
-    public synchronized Recipient get(Address address) {
-      return cache.get(address);
+    public V get(K key) {
+      Stripe<K, V> stripe = getStripe(key);
+      synchronized (stripe) {
+        return stripe.get(key);
+      }
     }
 
-    public synchronized void set(Address address, Recipient recipient) {
-      cache.put(address, recipient);
+    public void set(K key, V value) {
+      Stripe<K, V> stripe = getStripe(key);
+      synchronized (stripe) {
+        stripe.put(key, value);
+      }
     }
 
-    public synchronized boolean remove(Address address) {
-      return cache.remove(address) != null;
+    public void setIfAbsent(K key, V value) {
+      Stripe<K, V> stripe = getStripe(key);
+      synchronized (stripe) {
+        if (stripe.get(key) == null) stripe.put(key, value);
+      }
+    }
+
+    /**
+     * Caches {@code value} if the cached value for the key is still {@code expected}, and returns
+     * whichever value is cached afterwards.
+     */
+    public V replace(K key, @Nullable V expected, V value) {
+      Stripe<K, V> stripe = getStripe(key);
+      synchronized (stripe) {
+        V current = stripe.get(key);
+        if (current != null && current != expected) return current;
+        stripe.put(key, value);
+        return value;
+      }
+    }
+
+    public boolean remove(K key) {
+      Stripe<K, V> stripe = getStripe(key);
+      synchronized (stripe) {
+        return stripe.remove(key);
+      }
+    }
+
+    private Stripe<K, V> getStripe(K key) {
+      return stripes.get((key.hashCode() & Integer.MAX_VALUE) % stripes.size());
+    }
+
+  }
+
+  private static class Stripe<K, V> {
+
+    private final int                      maxSize;
+    private final Map<K, V>                values;
+    private final Map<K, WeakReference<V>> evictedValues = new HashMap<>();
+    private       int                      purgeThreshold;
+
+    Stripe(int maxSize) {
+      this.maxSize        = maxSize;
+      this.purgeThreshold = maxSize;
+      this.values         = new LinkedHashMap<K, V>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+          if (size() <= Stripe.this.maxSize) return false;
+          evict(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+      };
+    }
+
+    @Nullable V get(K key) {
+      V value = values.get(key);
+      if (value != null) return value;
+
+      WeakReference<V> reference = evictedValues.remove(key);
+      value = reference != null ? reference.get() : null;
+      if (value != null) values.put(key, value);
+
+      return value;
+    }
+
+    void put(K key, V value) {
+      evictedValues.remove(key);
+      values.put(key, value);
+    }
+
+    boolean remove(K key) {
+      WeakReference<V> reference = evictedValues.remove(key);
+      return values.remove(key) != null || (reference != null && reference.get() != null);
+    }
+
+    private void evict(K key, V value) {
+      if (evictedValues.size() >= purgeThreshold) {
+        Iterator<WeakReference<V>> iterator = evictedValues.values().iterator();
+        while (iterator.hasNext()) {
+          if (iterator.next().get() == null) iterator.remove();
+        }
+        purgeThreshold = Math.max(maxSize, evictedValues.size() * 2);
+      }
+      evictedValues.put(key, new WeakReference<>(value));
     }
 
   }
@@ -31,6 +31,7 @@ import org.session.libsignal.utilities.Base64
 
 import java.io.File
 import java.io.FileOutputStream
+import java.io.FilterOutputStream
 import java.io.OutputStream
 import java.util.*
 
@@ -192,6 +193,7 @@ open class DotNetAPI {
         while (remainingAttempts > 0) {
             remainingAttempts -= 1
             try {
+                outputStream.channel.truncate(0) // Discard anything written by a failed attempt
                 downloadFile(outputStream, url, maxSize, listener)
                 exception = null
                 break
@@ -221,31 +223,31 @@ open class DotNetAPI {
         try {
             val serverPublicKey = if (newPrefixedHost.contains(FileServerAPI.shared.server)) FileServerAPI.fileServerPublicKey
             else FileServerAPI.shared.getPublicKeyForOpenGroupServer(newPrefixedHost).get()
-            val json = OnionRequestAPI.sendOnionRequest(request.build(), newPrefixedHost, serverPublicKey, isJSONRequired = false).get()
-            val result = json["result"] as? String
-            if (result == null) {
-                Log.d("Loki", "Couldn't parse attachment from: $json.")
-                throw PushNetworkException("Missing response body.")
-            }
-            val body = Base64.decode(result)
-            if (body.size > maxSize) {
-                Log.d("Loki", "Attachment size limit exceeded.")
-                throw PushNetworkException("Max response size exceeded.")
-            }
-            val input = body.inputStream()
-            val buffer = ByteArray(32768)
-            var count = 0
-            var bytes = input.read(buffer)
-            while (bytes >= 0) {
-                outputStream.write(buffer, 0, bytes)
-                count += bytes
-                if (count > maxSize) {
-                    Log.d("Loki", "Attachment size limit exceeded.")
-                    throw PushNetworkException("Max response size exceeded.")
+            // The attachment is decoded straight into the output stream rather than being copied out of the response
+            val limitedOutputStream = object : FilterOutputStream(outputStream) {
+                var count = 0L
+
+                override fun write(b: Int) {
+                    write(byteArrayOf(b.toByte()), 0, 1)
                 }
-                listener?.onAttachmentProgress(body.size.toLong(), count.toLong())
-                bytes = input.read(buffer)
+
+                override fun write(b: ByteArray, off: Int, len: Int) {
+                    count += len
+                    if (count > maxSize) {
+                        Log.d("Loki", "Attachment size limit exceeded.")
+                        throw PushNetworkException("Max response size exceeded.")
+                    }
+                    out.write(b, off, len)
+                }
+            }
+            // Progress is reported as the attachment is written, with the final report below giving the exact size
+            val progressListener = listener?.let { it::onAttachmentProgress }
+            val count = OnionRequestAPI.sendOnionRequest(request.build(), newPrefixedHost, serverPublicKey, limitedOutputStream, progressListener = progressListener).get()
+            if (count == 0L) {
+                Log.d("Loki", "Couldn't parse attachment.")
+                throw PushNetworkException("Missing response body.")
             }
+            listener?.onAttachmentProgress(count, count)
         } catch (e: Exception) {
             Log.d("Loki", "Couldn't download attachment due to error: $e.")
             throw if (e is NonSuccessfulResponseCodeException) e else PushNetworkException(e)
@@ -5,7 +5,9 @@ import nl.komponents.kovenant.all
 import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
+import com.fasterxml.jackson.core.JsonToken
 import okhttp3.Request
+import okhttp3.ResponseBody
 import org.session.libsession.utilities.AESGCM
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
@@ -18,6 +20,10 @@ import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsession.utilities.getBodyForOnionRequest
 import org.session.libsession.utilities.getHeadersForOnionRequest
 import org.session.libsignal.service.loki.utilities.*
+import java.io.FilterOutputStream
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
 private typealias Path = List<Snode>
 
@@ -27,6 +33,10 @@ private typealias Path = List<Snode>
 object OnionRequestAPI {
     private val pathFailureCount = mutableMapOf<Path, Int>()
     private val snodeFailureCount = mutableMapOf<Snode, Int>()
+    private val pathStats = ConcurrentHashMap<Path, PathStats>()
+    private val sparePathLock = Any()
+    private var sparePaths = listOf<Path>() // Kept in memory only; they're cheap to rebuild
+    private val isBuildingSparePath = AtomicBoolean(false)
     var guardSnodes = setOf<Snode>()
     var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
         get() = SnodeAPI.database.getOnionRequestPaths()
@@ -61,6 +71,23 @@ object OnionRequestAPI {
      */
     private val targetGuardSnodeCount
         get() = targetPathCount // One per path
+    /**
+     * The number of spare paths to keep ready, so that a failed path can be replaced without waiting for a new one to
+     * be built and tested.
+     */
+    private const val targetSparePathCount = 1
+    /**
+     * The number of guard snodes to try when building a spare path before giving up until the next opportunity.
+     */
+    private const val maxSpareGuardSnodeAttemptCount = 3
+    /**
+     * The weight of the latest request in a path's latency and success rate averages.
+     */
+    private const val pathStatsSmoothingFactor = 0.2
+    /**
+     * The number of bytes between progress reports when streaming a response body.
+     */
+    private const val progressInterval = 32 * 1024
     // endregion
 
     class HTTPRequestFailedAtDestinationException(val statusCode: Int, val json: Map<*, *>)
@@ -68,11 +95,37 @@ object OnionRequestAPI {
     class InsufficientSnodesException : Exception("Couldn't find enough snodes to build a path.")
 
     private data class OnionBuildingResult(
+        val path: Path,
         val guardSnode: Snode,
         val finalEncryptionResult: EncryptionResult,
         val destinationSymmetricKey: ByteArray
     )
 
+    /**
+     * Exponentially weighted moving averages of the latency and success rate of the requests sent over a path.
+     */
+    private class PathStats {
+        private var latency = 0.0 // Milliseconds
+        private var successRate = 1.0
+        private var hasLatency = false
+
+        @Synchronized
+        fun update(isSuccess: Boolean, latency: Long) {
+            val alpha = pathStatsSmoothingFactor
+            successRate = alpha * (if (isSuccess) 1.0 else 0.0) + (1 - alpha) * successRate
+            if (!isSuccess) { return } // Failures often time out, which says little about the path's latency
+            this.latency = if (hasLatency) alpha * latency + (1 - alpha) * this.latency else latency.toDouble()
+            hasLatency = true
+        }
+
+        /**
+         * Higher is better. Paths that haven't been used yet score highest so that they get a chance to prove
+         * themselves.
+         */
+        val score: Double
+            @Synchronized get() = successRate * 1000 / (1000 + latency)
+    }
+
     internal sealed class Destination {
         class Snode(val snode: org.session.libsession.snode.Snode) : Destination()
         class Server(val host: String, val target: String, val x25519PublicKey: String) : Destination()
@@ -114,7 +167,7 @@ object OnionRequestAPI {
         } else {
             Log.d("Loki", "Populating guard snode cache.")
             return SnodeAPI.getRandomSnode().bind(SnodeAPI.sharedContext) { // Just used to populate the snode pool
-                var unusedSnodes = SnodeAPI.snodePool.minus(reusableGuardSnodes)
+                var unusedSnodes = SnodeAPI.snodePool.minus(reusableGuardSnodes).minus(getSparePathSnodes())
                 val reusableGuardSnodeCount = reusableGuardSnodes.count()
                 if (unusedSnodes.count() < (targetGuardSnodeCount - reusableGuardSnodeCount)) { throw InsufficientSnodesException() }
                 fun getGuardSnode(): Promise<Snode, Exception> {
@@ -157,7 +210,7 @@ object OnionRequestAPI {
         return SnodeAPI.getRandomSnode().bind(SnodeAPI.sharedContext) { // Just used to populate the snode pool
             val reusableGuardSnodes = reusablePaths.map { it[0] }
             getGuardSnodes(reusableGuardSnodes).map(SnodeAPI.sharedContext) { guardSnodes ->
-                var unusedSnodes = SnodeAPI.snodePool.minus(guardSnodes).minus(reusablePaths.flatten())
+                var unusedSnodes = SnodeAPI.snodePool.minus(guardSnodes).minus(reusablePaths.flatten()).minus(getSparePathSnodes())
                 val reusableGuardSnodeCount = reusableGuardSnodes.count()
                 val pathSnodeCount = (targetGuardSnodeCount - reusableGuardSnodeCount) * pathSize - (targetGuardSnodeCount - reusableGuardSnodeCount)
                 if (unusedSnodes.count() < pathSnodeCount) { throw InsufficientSnodesException() }
@@ -174,17 +227,102 @@ object OnionRequestAPI {
             }.map { paths ->
                 OnionRequestAPI.paths = paths + reusablePaths
                 SnodeAPI.broadcaster.broadcast("pathsBuilt")
+                // Get the TLS handshakes with the guard snodes out of the way before the first request needs them
+                HTTP.warmUpConnections(paths.map { "${it[0].address}:${it[0].port}/get_stats/v1" })
+                buildSparePathIfNeeded()
                 paths
             }
         }
     }
 
+    private fun getSparePathSnodes(): List<Snode> {
+        return synchronized(sparePathLock) { sparePaths.flatten() }
+    }
+
+    /**
+     * Builds a spare path in the background if there are fewer than `targetSparePathCount`. Like any other path, a
+     * spare path's guard snode is tested before it's used, but its other snodes aren't.
+     */
+    private fun buildSparePathIfNeeded() {
+        if (synchronized(sparePathLock) { sparePaths.count() } >= targetSparePathCount) { return }
+        if (!isBuildingSparePath.compareAndSet(false, true)) { return }
+        val usedSnodes = paths.flatten().toSet() + guardSnodes + getSparePathSnodes()
+        buildSparePath(SnodeAPI.snodePool.minus(usedSnodes), maxSpareGuardSnodeAttemptCount).success { path ->
+            Log.d("Loki", "Built spare onion request path: $path.")
+            synchronized(sparePathLock) { sparePaths = sparePaths + listOf( path ) }
+            isBuildingSparePath.set(false)
+            buildSparePathIfNeeded()
+        }.fail { exception ->
+            Log.d("Loki", "Couldn't build spare onion request path due to error: $exception.")
+            isBuildingSparePath.set(false)
+        }
+    }
+
+    private fun buildSparePath(unusedSnodes: Set<Snode>, remainingAttemptCount: Int): Promise<Path, Exception> {
+        if (unusedSnodes.count() < pathSize) { return Promise.ofFail(InsufficientSnodesException()) }
+        val guardSnode = unusedSnodes.getRandomElement()
+        val deferred = deferred<Path, Exception>()
+        testSnode(guardSnode).success {
+            var pathSnodes = unusedSnodes.minus(guardSnode)
+            // Don't test path snodes as this would reveal the user's IP to them
+            val path = listOf( guardSnode ) + (0 until (pathSize - 1)).map {
+                val pathSnode = pathSnodes.getRandomElement()
+                pathSnodes = pathSnodes.minus(pathSnode)
+                pathSnode
+            }
+            deferred.resolve(path)
+        }.fail { exception ->
+            if (remainingAttemptCount <= 1) { return@fail deferred.reject(exception) }
+            buildSparePath(unusedSnodes.minus(guardSnode), remainingAttemptCount - 1).success {
+                deferred.resolve(it)
+            }.fail {
+                deferred.reject(it)
+            }
+        }
+        return deferred.promise
+    }
+
+    /**
+     * Moves spare paths into use until there are `targetPathCount` paths, and returns the resulting paths.
+     */
+    private fun promoteSparePathsIfNeeded(): List<Path> {
+        val paths = this.paths
+        val missingPathCount = targetPathCount - paths.count()
+        if (missingPathCount <= 0) { return paths }
+        val promotedPaths = synchronized(sparePathLock) {
+            val result = sparePaths.take(missingPathCount)
+            sparePaths = sparePaths.drop(result.count())
+            result
+        }
+        if (promotedPaths.isEmpty()) { return paths }
+        Log.d("Loki", "Promoting spare onion request path(s): $promotedPaths.")
+        val newPaths = paths + promotedPaths
+        this.paths = newPaths
+        SnodeAPI.broadcaster.broadcast("pathsBuilt")
+        buildSparePathIfNeeded()
+        return newPaths
+    }
+
+    private fun getPathStats(path: Path): PathStats {
+        return pathStats.getOrPut(path) { PathStats() }
+    }
+
+    /**
+     * Returns the healthiest of `paths` that doesn't contain `snodeToExclude`. Ties are broken randomly.
+     */
+    private fun selectPath(paths: List<Path>, snodeToExclude: Snode?): Path {
+        val candidates = if (snodeToExclude != null) paths.filter { !it.contains(snodeToExclude) } else paths
+        val scores = candidates.associateWith { getPathStats(it).score }
+        val bestScore = scores.values.maxOrNull() ?: throw InsufficientSnodesException()
+        return candidates.filter { scores[it]!! >= bestScore }.getRandomElement()
+    }
+
     /**
      * Returns a `Path` to be used for building an onion request. Builds new paths as needed.
      */
     private fun getPath(snodeToExclude: Snode?): Promise<Path, Exception> {
         if (pathSize < 1) { throw Exception("Can't build path of size zero.") }
-        val paths = this.paths
+        val paths = promoteSparePathsIfNeeded()
         val guardSnodes = mutableSetOf<Snode>()
         if (paths.isNotEmpty()) {
             guardSnodes.add(paths[0][0])
@@ -194,13 +332,10 @@ object OnionRequestAPI {
         }
         OnionRequestAPI.guardSnodes = guardSnodes
         fun getPath(paths: List<Path>): Path {
-            if (snodeToExclude != null) {
-                return paths.filter { !it.contains(snodeToExclude) }.getRandomElement()
-            } else {
-                return paths.getRandomElement()
-            }
+            return selectPath(paths, snodeToExclude)
         }
         if (paths.count() >= targetPathCount) {
+            buildSparePathIfNeeded() // Paths restored from the database don't come with a spare
             return Promise.of(getPath(paths))
         } else if (paths.isNotEmpty()) {
             if (paths.any { !it.contains(snodeToExclude) }) {
@@ -234,11 +369,11 @@ object OnionRequestAPI {
         val snodeIndex = path.indexOf(snode)
         if (snodeIndex == -1) { return }
         path.removeAt(snodeIndex)
-        val unusedSnodes = SnodeAPI.snodePool.minus(oldPaths.flatten())
+        val unusedSnodes = SnodeAPI.snodePool.minus(oldPaths.flatten()).minus(getSparePathSnodes())
         if (unusedSnodes.isEmpty()) { throw InsufficientSnodesException() }
         path.add(unusedSnodes.getRandomElement())
         // Don't test the new snode as this would reveal the user's IP
-        oldPaths.removeAt(pathIndex)
+        pathStats.remove(oldPaths.removeAt(pathIndex))
         val newPaths = oldPaths + listOf( path )
         paths = newPaths
     }
@@ -249,52 +384,47 @@ object OnionRequestAPI {
         val pathIndex = paths.indexOf(path)
         if (pathIndex == -1) { return }
         paths.removeAt(pathIndex)
+        pathStats.remove(path)
         OnionRequestAPI.paths = paths
+        promoteSparePathsIfNeeded() // Replace the path right away if possible
     }
 
     /**
      * Builds an onion around `payload` and returns the result.
      */
     private fun buildOnionForDestination(payload: Map<*, *>, destination: Destination): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
-        lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
-        lateinit var encryptionResult: EncryptionResult
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
         return getPath(snodeToExclude).bind(SnodeAPI.sharedContext) { path ->
-            guardSnode = path.first()
-            // Encrypt in reverse order, i.e. the destination first
-            OnionRequestEncryption.encryptPayloadForDestination(payload, destination).bind(SnodeAPI.sharedContext) { r ->
-                destinationSymmetricKey = r.symmetricKey
-                // Recursively encrypt the layers of the onion (again in reverse order)
-                encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
-                var rhs = destination
-                fun addLayer(): Promise<EncryptionResult, Exception> {
-                    if (path.isEmpty()) {
-                        return Promise.of(encryptionResult)
-                    } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
-                        return OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).bind(SnodeAPI.sharedContext) { r ->
-                            encryptionResult = r
-                            rhs = lhs
-                            addLayer()
-                        }
-                    }
-                }
-                addLayer()
+            val guardSnode = path.first()
+            // Encrypt in reverse order, i.e. the destination first, building all layers in a single task
+            OnionRequestEncryption.encryptOnion(payload, destination, path).map(SnodeAPI.sharedContext) { (destinationResult, finalEncryptionResult) ->
+                // The destination symmetric key is needed to decrypt the response sent back by the destination
+                OnionBuildingResult(path, guardSnode, finalEncryptionResult, destinationResult.symmetricKey)
             }
-        }.map(SnodeAPI.sharedContext) { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+        }
     }
 
     /**
      * Sends an onion request to `destination`. Builds new paths as needed.
      */
     private fun sendOnionRequest(destination: Destination, payload: Map<*, *>, isJSONRequired: Boolean = true): Promise<Map<*, *>, Exception> {
-        val deferred = deferred<Map<*, *>, Exception>()
+        return sendOnionRequest(destination, payload) { plaintext -> parseResponse(plaintext, isJSONRequired) }
+    }
+
+    /**
+     * Sends an onion request to `destination` and hands the decrypted response to `handleResponse`. Builds new paths
+     * as needed.
+     *
+     * The base64 encoded response is decoded straight from the response stream into a single buffer, which is then
+     * decrypted without further copies. Decoding, decryption and `handleResponse` all run on the HTTP client's
+     * dispatcher threads, so that responses are processed in parallel rather than one at a time on Kovenant's callback
+     * thread.
+     */
+    private fun <T> sendOnionRequest(destination: Destination, payload: Map<*, *>, handleResponse: (ByteArray) -> T): Promise<T, Exception> {
+        val deferred = deferred<T, Exception>()
         lateinit var guardSnode: Snode
         buildOnionForDestination(payload, destination).success { result ->
             guardSnode = result.guardSnode
@@ -314,53 +444,28 @@ object OnionRequestAPI {
                 return@success deferred.reject(exception)
             }
             val destinationSymmetricKey = result.destinationSymmetricKey
-            ThreadUtils.queue {
+            val stats = getPathStats(result.path)
+            val startTime = System.currentTimeMillis()
+            HTTP.executeAsync(HTTP.Verb.POST, url, body) { responseBody ->
+                val (ivAndCiphertext, length) = decodeResponse(responseBody)
+                // Errors past this point come from the destination rather than the path
                 try {
-                    val json = HTTP.execute(HTTP.Verb.POST, url, body)
-                    val base64EncodedIVAndCiphertext = json["result"] as? String ?: return@queue deferred.reject(Exception("Invalid JSON"))
-                    val ivAndCiphertext = Base64.decode(base64EncodedIVAndCiphertext)
-                    try {
-                        val plaintext = AESGCM.decrypt(ivAndCiphertext, destinationSymmetricKey)
-                        try {
-                            @Suppress("NAME_SHADOWING") val json = JsonUtil.fromJson(plaintext.toString(Charsets.UTF_8), Map::class.java)
-                            val statusCode = json["status"] as Int
-                            if (statusCode == 406) {
-                                @Suppress("NAME_SHADOWING") val body = mapOf( "result" to "Your clock is out of sync with the service node network." )
-                                val exception = HTTPRequestFailedAtDestinationException(statusCode, body)
-                                return@queue deferred.reject(exception)
-                            } else if (json["body"] != null) {
-                                @Suppress("NAME_SHADOWING") val body: Map<*, *>
-                                if (json["body"] is Map<*, *>) {
-                                    body = json["body"] as Map<*, *>
-                                } else {
-                                    val bodyAsString = json["body"] as String
-                                    if (!isJSONRequired) {
-                                        body = mapOf( "result" to bodyAsString )
-                                    } else {
-                                        body = JsonUtil.fromJson(bodyAsString, Map::class.java)
-                                    }
-                                }
-                                if (statusCode != 200) {
-                                    val exception = HTTPRequestFailedAtDestinationException(statusCode, body)
-                                    return@queue deferred.reject(exception)
-                                }
-                                deferred.resolve(body)
-                            } else {
-                                if (statusCode != 200) {
-                                    val exception = HTTPRequestFailedAtDestinationException(statusCode, json)
-                                    return@queue deferred.reject(exception)
-                                }
-                                deferred.resolve(json)
-                            }
-                        } catch (exception: Exception) {
-                            deferred.reject(Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}."))
-                        }
-                    } catch (exception: Exception) {
-                        deferred.reject(exception)
-                    }
+                    val plaintext = AESGCM.decrypt(ivAndCiphertext, 0, length, destinationSymmetricKey)
+                    HandledResponse(handleResponse(plaintext), null)
                 } catch (exception: Exception) {
-                    deferred.reject(exception)
+                    HandledResponse(null, exception)
+                }
+            }.success { response ->
+                stats.update(true, System.currentTimeMillis() - startTime)
+                if (response.exception != null) {
+                    deferred.reject(response.exception)
+                } else {
+                    @Suppress("UNCHECKED_CAST")
+                    deferred.resolve(response.value as T)
                 }
+            }.fail { exception ->
+                stats.update(false, System.currentTimeMillis() - startTime)
+                deferred.reject(exception)
             }
         }.fail { exception ->
             deferred.reject(exception)
@@ -418,15 +523,132 @@ object OnionRequestAPI {
         }
         return promise
     }
+
+    private class HandledResponse<T>(val value: T?, val exception: Exception?)
+
+    /**
+     * Reports the number of bytes written to `out` every `progressInterval` bytes.
+     */
+    private class ProgressOutputStream(out: OutputStream, private val expectedByteCount: Long, private val listener: (Long, Long) -> Unit) : FilterOutputStream(out) {
+        private var byteCount = 0L
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+            val previousByteCount = byteCount
+            byteCount += len
+            if (byteCount / progressInterval != previousByteCount / progressInterval) {
+                listener(maxOf(expectedByteCount, byteCount), byteCount)
+            }
+        }
+    }
+
+    /**
+     * Base64 decodes the body of an onion response as it's read. Returns the buffer and the number of bytes in it.
+     */
+    private fun decodeResponse(body: ResponseBody): Pair<ByteArray, Int> {
+        val contentLength = body.contentLength()
+        val inputStream = Base64.InputStream(body.byteStream())
+        if (contentLength < 0) {
+            val result = inputStream.readBytes()
+            return Pair(result, result.size)
+        }
+        val buffer = ByteArray((contentLength * 3 / 4).toInt()) // An upper bound for the decoded size
+        var count = 0
+        while (count < buffer.size) {
+            val bytesRead = inputStream.read(buffer, count, buffer.size - count)
+            if (bytesRead < 0) { break }
+            count += bytesRead
+        }
+        return Pair(buffer, count)
+    }
+
+    private fun parseResponse(plaintext: ByteArray, isJSONRequired: Boolean): Map<*, *> {
+        val json: Map<*, *>
+        try {
+            json = JsonUtil.fromJson(plaintext, Map::class.java)
+        } catch (exception: Exception) {
+            throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+        }
+        val statusCode = json["status"] as Int
+        if (statusCode == 406) {
+            val body = mapOf( "result" to "Your clock is out of sync with the service node network." )
+            throw HTTPRequestFailedAtDestinationException(statusCode, body)
+        } else if (json["body"] != null) {
+            val body: Map<*, *>
+            if (json["body"] is Map<*, *>) {
+                body = json["body"] as Map<*, *>
+            } else {
+                val bodyAsString = json["body"] as String
+                if (!isJSONRequired) {
+                    body = mapOf( "result" to bodyAsString )
+                } else {
+                    try {
+                        body = JsonUtil.fromJson(bodyAsString, Map::class.java)
+                    } catch (exception: Exception) {
+                        throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+                    }
+                }
+            }
+            if (statusCode != 200) { throw HTTPRequestFailedAtDestinationException(statusCode, body) }
+            return body
+        } else {
+            if (statusCode != 200) { throw HTTPRequestFailedAtDestinationException(statusCode, json) }
+            return json
+        }
+    }
+
+    /**
+     * Base64 decodes the `body` of the decrypted response straight into `outputStream` using a streaming JSON parser,
+     * so that the body never has to be materialized as a `String`. Returns the number of bytes written.
+     *
+     * Called on one of the HTTP client's dispatcher threads (see `sendOnionRequest(destination, payload, handleResponse)`),
+     * never on Kovenant's callback thread, so a large download doesn't hold up the processing of other responses.
+     *
+     * `progressListener` is called with the expected and written number of bytes every `progressInterval` bytes. The body
+     * makes up nearly all of the response, so the expected number of bytes is what its base64 decoded size would be.
+     */
+    private fun writeResponseBody(plaintext: ByteArray, outputStream: OutputStream, progressListener: ((Long, Long) -> Unit)?): Long {
+        JsonUtil.getMapper().factory.createParser(plaintext).use { parser ->
+            if (parser.nextToken() != JsonToken.START_OBJECT) { throw Exception("Invalid JSON.") }
+            var statusCode: Int? = null
+            var byteCount = 0L
+            var errorBody: Map<*, *>? = null
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val fieldName = parser.currentName
+                val token = parser.nextToken()
+                when {
+                    fieldName == "status" -> statusCode = parser.intValue
+                    fieldName == "body" && token == JsonToken.VALUE_STRING && (statusCode == null || statusCode == 200) -> {
+                        val expectedByteCount = plaintext.size.toLong() * 3 / 4
+                        val sink = if (progressListener != null) ProgressOutputStream(outputStream, expectedByteCount, progressListener) else outputStream
+                        byteCount = parser.readBinaryValue(sink).toLong()
+                    }
+                    fieldName == "body" && token == JsonToken.VALUE_STRING -> errorBody = mapOf( "result" to parser.text )
+                    fieldName == "body" && token == JsonToken.START_OBJECT -> errorBody = parser.readValueAs(Map::class.java)
+                    else -> parser.skipChildren()
+                }
+            }
+            if (statusCode == 406) {
+                val body = mapOf( "result" to "Your clock is out of sync with the service node network." )
+                throw HTTPRequestFailedAtDestinationException(statusCode, body)
+            } else if (statusCode != 200) {
+                throw HTTPRequestFailedAtDestinationException(statusCode ?: 0, errorBody ?: mapOf<String, Any>())
+            }
+            return byteCount
+        }
+    }
     // endregion
 
     // region Internal API
     /**
      * Sends an onion request to `snode`. Builds new paths as needed.
      */
-    internal fun sendOnionRequest(method: Snode.Method, parameters: Map<*, *>, snode: Snode, publicKey: String): Promise<Map<*, *>, Exception> {
-        val payload = mapOf( "method" to method.rawValue, "params" to parameters )
-        return sendOnionRequest(Destination.Snode(snode), payload).recover { exception ->
+    internal fun sendOnionRequest(method: Snode.Method, parameters: Map<*, *>, snode: Snode, publicKey: String?): Promise<Map<*, *>, Exception> {
+        return sendOnionRequest(method, parameters, snode).recover { exception ->
             val httpRequestFailedException = exception as? HTTP.HTTPRequestFailedException
             if (httpRequestFailedException != null) {
                 val error = SnodeAPI.handleSnodeError(httpRequestFailedException.statusCode, httpRequestFailedException.json, snode, publicKey)
@@ -436,12 +658,34 @@ object OnionRequestAPI {
         }
     }
 
+    /**
+     * Like the above, but leaves handling errors returned by the snode to the caller.
+     */
+    internal fun sendOnionRequest(method: Snode.Method, parameters: Map<*, *>, snode: Snode): Promise<Map<*, *>, Exception> {
+        val payload = mapOf( "method" to method.rawValue, "params" to parameters )
+        return sendOnionRequest(Destination.Snode(snode), payload)
+    }
+
     /**
      * Sends an onion request to `server`. Builds new paths as needed.
      *
      * `publicKey` is the hex encoded public key of the user the call is associated with. This is needed for swarm cache maintenance.
      */
     fun sendOnionRequest(request: Request, server: String, x25519PublicKey: String, target: String = "/loki/v3/lsrpc", isJSONRequired: Boolean = true): Promise<Map<*, *>, Exception> {
+        return sendOnionRequest(request, server, x25519PublicKey, target) { plaintext -> parseResponse(plaintext, isJSONRequired) }
+    }
+
+    /**
+     * Like `sendOnionRequest(request, server, x25519PublicKey)`, but base64 decodes the body of the response straight
+     * into `outputStream` rather than returning it. Use this for large responses such as file downloads. The returned
+     * promise holds the number of bytes written, and is only fulfilled once all of them have been written.
+     * `progressListener` is called with the expected and written number of bytes as they're written.
+     */
+    fun sendOnionRequest(request: Request, server: String, x25519PublicKey: String, outputStream: OutputStream, target: String = "/loki/v3/lsrpc", progressListener: ((Long, Long) -> Unit)? = null): Promise<Long, Exception> {
+        return sendOnionRequest(request, server, x25519PublicKey, target) { plaintext -> writeResponseBody(plaintext, outputStream, progressListener) }
+    }
+
+    private fun <T> sendOnionRequest(request: Request, server: String, x25519PublicKey: String, target: String, handleResponse: (ByteArray) -> T): Promise<T, Exception> {
         val headers = request.getHeadersForOnionRequest()
         val url = request.url()
         val urlAsString = url.toString()
@@ -458,7 +702,7 @@ object OnionRequestAPI {
             "headers" to headers
         )
         val destination = Destination.Server(host, target, x25519PublicKey)
-        return sendOnionRequest(destination, payload, isJSONRequired).recover { exception ->
+        return sendOnionRequest(destination, payload, handleResponse).recover { exception ->
             Log.d("Loki", "Couldn't reach server: $urlAsString due to error: $exception.")
             throw exception
         }
@@ -7,49 +7,51 @@ import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsession.utilities.AESGCM
 import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.service.loki.utilities.toHexString
-import java.nio.Buffer
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 
 object OnionRequestEncryption {
 
+    /**
+     * A bounded pool dedicated to building onions. Each task builds every layer of an onion in one go, so a burst of
+     * requests queues up here rather than spawning a thread per layer.
+     */
+    private val encryptionExecutor by lazy {
+        ThreadUtils.newDynamicExecutor(Runtime.getRuntime().availableProcessors().coerceIn(1, 4))
+    }
+
     internal fun encode(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
         // The encoding of V2 onion requests looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
         val jsonAsData = JsonUtil.toJson(json).toByteArray()
         val ciphertextSize = ciphertext.size
-        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES)
+        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES + ciphertextSize + jsonAsData.size)
         buffer.order(ByteOrder.LITTLE_ENDIAN)
         buffer.putInt(ciphertextSize)
-        val ciphertextSizeAsData = ByteArray(buffer.capacity())
-        // Casting here avoids an issue where this gets compiled down to incorrect byte code. See
-        // https://github.com/eclipse/jetty.project/issues/3244 for more info
-        (buffer as Buffer).position(0)
-        buffer.get(ciphertextSizeAsData)
-        return ciphertextSizeAsData + ciphertext + jsonAsData
+        buffer.put(ciphertext)
+        buffer.put(jsonAsData)
+        return buffer.array()
     }
 
     /**
-     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     * Encrypts `payload` for `destination` and then wraps the result in a layer for each snode in `path` (in reverse
+     * order, i.e. the destination first). All layers are built in a single task on the onion encryption pool.
+     *
+     * The returned pair holds the result of encrypting for the destination (whose symmetric key is needed to decrypt
+     * the response) and the final (outermost) encryption result.
      */
-    internal fun encryptPayloadForDestination(payload: Map<*, *>, destination: OnionRequestAPI.Destination): Promise<EncryptionResult, Exception> {
-        val deferred = deferred<EncryptionResult, Exception>()
-        ThreadUtils.queue {
+    internal fun encryptOnion(payload: Map<*, *>, destination: OnionRequestAPI.Destination, path: List<Snode>): Promise<Pair<EncryptionResult, EncryptionResult>, Exception> {
+        val deferred = deferred<Pair<EncryptionResult, EncryptionResult>, Exception>()
+        encryptionExecutor.execute {
             try {
-                // Wrapping isn't needed for file server or open group onion requests
-                when (destination) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        val snodeX25519PublicKey = destination.snode.publicKeySet!!.x25519Key
-                        val payloadAsData = JsonUtil.toJson(payload).toByteArray()
-                        val plaintext = encode(payloadAsData, mapOf( "headers" to "" ))
-                        val result = AESGCM.encrypt(plaintext, snodeX25519PublicKey)
-                        deferred.resolve(result)
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        val plaintext = JsonUtil.toJson(payload).toByteArray()
-                        val result = AESGCM.encrypt(plaintext, destination.x25519PublicKey)
-                        deferred.resolve(result)
-                    }
+                val destinationResult = encryptPayloadForDestination(payload, destination)
+                var encryptionResult = destinationResult
+                var rhs = destination
+                for (snode in path.asReversed()) {
+                    val lhs = OnionRequestAPI.Destination.Snode(snode)
+                    encryptionResult = encryptHop(lhs, rhs, encryptionResult)
+                    rhs = lhs
                 }
+                deferred.resolve(Pair(destinationResult, encryptionResult))
             } catch (exception: Exception) {
                 deferred.reject(exception)
             }
@@ -57,39 +59,53 @@ object OnionRequestEncryption {
         return deferred.promise
     }
 
+    /**
+     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encryptPayloadForDestination(payload: Map<*, *>, destination: OnionRequestAPI.Destination): EncryptionResult {
+        // Wrapping isn't needed for file server or open group onion requests
+        return when (destination) {
+            is OnionRequestAPI.Destination.Snode -> {
+                val snodeX25519PublicKey = destination.snode.publicKeySet!!.x25519Key
+                val payloadAsData = JsonUtil.toJson(payload).toByteArray()
+                val plaintext = encode(payloadAsData, mapOf( "headers" to "" ))
+                AESGCM.encrypt(plaintext, snodeX25519PublicKey)
+            }
+            is OnionRequestAPI.Destination.Server -> {
+                val plaintext = JsonUtil.toJson(payload).toByteArray()
+                AESGCM.encrypt(plaintext, destination.x25519PublicKey)
+            }
+        }
+    }
+
     /**
      * Encrypts the previous encryption result (i.e. that of the hop after this one) for this hop. Use this to build the layers of an onion request.
+     *
+     * Sync. Don't call from the main thread.
      */
-    internal fun encryptHop(lhs: OnionRequestAPI.Destination, rhs: OnionRequestAPI.Destination, previousEncryptionResult: EncryptionResult): Promise<EncryptionResult, Exception> {
-        val deferred = deferred<EncryptionResult, Exception>()
-        Thread {
-            try {
-                val payload: MutableMap<String, Any>
-                when (rhs) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        payload = mutableMapOf( "destination" to rhs.snode.publicKeySet!!.ed25519Key )
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        payload = mutableMapOf( "host" to rhs.host, "target" to rhs.target, "method" to "POST" )
-                    }
-                }
-                payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
-                val x25519PublicKey: String
-                when (lhs) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        x25519PublicKey = lhs.snode.publicKeySet!!.x25519Key
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        x25519PublicKey = lhs.x25519PublicKey
-                    }
-                }
-                val plaintext = encode(previousEncryptionResult.ciphertext, payload)
-                val result = AESGCM.encrypt(plaintext, x25519PublicKey)
-                deferred.resolve(result)
-            } catch (exception: Exception) {
-                deferred.reject(exception)
+    internal fun encryptHop(lhs: OnionRequestAPI.Destination, rhs: OnionRequestAPI.Destination, previousEncryptionResult: EncryptionResult): EncryptionResult {
+        val payload: MutableMap<String, Any>
+        when (rhs) {
+            is OnionRequestAPI.Destination.Snode -> {
+                payload = mutableMapOf( "destination" to rhs.snode.publicKeySet!!.ed25519Key )
             }
-        }.start()
-        return deferred.promise
+            is OnionRequestAPI.Destination.Server -> {
+                payload = mutableMapOf( "host" to rhs.host, "target" to rhs.target, "method" to "POST" )
+            }
+        }
+        payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
+        val x25519PublicKey: String
+        when (lhs) {
+            is OnionRequestAPI.Destination.Snode -> {
+                x25519PublicKey = lhs.snode.publicKeySet!!.x25519Key
+            }
+            is OnionRequestAPI.Destination.Server -> {
+                x25519PublicKey = lhs.x25519PublicKey
+            }
+        }
+        val plaintext = encode(previousEncryptionResult.ciphertext, payload)
+        return AESGCM.encrypt(plaintext, x25519PublicKey)
     }
 }
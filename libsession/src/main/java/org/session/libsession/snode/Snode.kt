@@ -13,7 +13,11 @@ public class Snode(val address: String, val port: Int, val publicKeySet: KeySet?
          * Only supported by snode targets.
          */
         GetMessages("retrieve"),
-        SendMessage("store")
+        SendMessage("store"),
+        /**
+         * Wraps several requests in a single one. See `SnodeRequestBatcher`.
+         */
+        Batch("batch")
     }
 
     data class KeySet(val ed25519Key: String, val x25519Key: String)
@@ -15,9 +15,10 @@ import org.session.libsignal.service.loki.utilities.retryIfNeeded
 import org.session.libsignal.utilities.*
 
 import java.security.SecureRandom
+import java.util.Collections
 
 object SnodeAPI {
-    val database = SnodeConfiguration.shared.storage
+    val database: SnodeStorageProtocol = SnodeConfiguration.shared.storage
     val broadcaster = SnodeConfiguration.shared.broadcaster
     val sharedContext = Kovenant.createContext()
     val messageSendingContext = Kovenant.createContext()
@@ -27,6 +28,16 @@ object SnodeAPI {
     internal var snodePool: Set<Snode>
         get() = database.getSnodePool()
         set(newValue) { database.setSnodePool(newValue) }
+    /**
+     * A bounded, in-memory front for the received message hash values table, keyed by "$publicKey-$hashValue".
+     */
+    private val recentlyReceivedMessageHashValues: MutableSet<String> = Collections.synchronizedSet(Collections.newSetFromMap(object : LinkedHashMap<String, Boolean>() {
+
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>?): Boolean {
+            return size > maxRecentlyReceivedMessageHashValueCount
+        }
+    }))
+    private var lastReceivedMessageHashValuePruneDate = 0L
 
     // Settings
     private val maxRetryCount = 6
@@ -39,6 +50,12 @@ object SnodeAPI {
     private val useOnionRequests = true
 
     internal var powDifficulty = 1
+    private val maxRecentlyReceivedMessageHashValueCount = 2048
+    /**
+     * Used as the expiration date of received message hash values if the snode didn't provide one.
+     */
+    private val maxMessageTTL = 14 * 24 * 60 * 60 * 1000L
+    private val receivedMessageHashValuePruneInterval = 60 * 60 * 1000L
 
     // Error
     internal sealed class Error(val description: String) : Exception() {
@@ -169,7 +186,7 @@ object SnodeAPI {
     fun getRawMessages(snode: Snode, publicKey: String): RawResponsePromise {
         val lastHashValue = database.getLastMessageHashValue(snode, publicKey) ?: ""
         val parameters = mapOf( "pubKey" to publicKey, "lastHash" to lastHashValue )
-        return invoke(Snode.Method.GetMessages, snode, publicKey, parameters)
+        return SnodeRequestBatcher.shared.getMessages(snode, publicKey, parameters)
     }
 
     fun getMessages(publicKey: String): MessageListPromise {
@@ -260,20 +277,43 @@ object SnodeAPI {
     }
 
     private fun removeDuplicates(publicKey: String, rawMessages: List<*>): List<*> {
-        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey)?.toMutableSet() ?: mutableSetOf()
-        return rawMessages.filter { rawMessage ->
+        // Swarm snodes are polled concurrently and return overlapping messages, so checking and recording hash values
+        // has to happen atomically
+        synchronized(recentlyReceivedMessageHashValues) {
+            return removeDuplicatesInternal(publicKey, rawMessages)
+        }
+    }
+
+    private fun removeDuplicatesInternal(publicKey: String, rawMessages: List<*>): List<*> {
+        val now = System.currentTimeMillis()
+        val hashValues = rawMessages.mapNotNull { (it as? Map<*, *>)?.get("hash") as? String }
+        // Only hit the database for hashes that weren't seen recently
+        val candidates = hashValues.filter { !recentlyReceivedMessageHashValues.contains("$publicKey-$it") }
+        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey, candidates)
+        val newHashValues = mutableMapOf<String, Long>()
+        val result = rawMessages.filter { rawMessage ->
             val rawMessageAsJSON = rawMessage as? Map<*, *>
             val hashValue = rawMessageAsJSON?.get("hash") as? String
             if (hashValue != null) {
-                val isDuplicate = receivedMessageHashValues.contains(hashValue)
-                receivedMessageHashValues.add(hashValue)
-                database.setReceivedMessageHashValues(publicKey, receivedMessageHashValues)
+                val isDuplicate = recentlyReceivedMessageHashValues.contains("$publicKey-$hashValue")
+                    || receivedMessageHashValues.contains(hashValue) || newHashValues.containsKey(hashValue)
+                if (!isDuplicate) {
+                    val expiration = (rawMessageAsJSON["expiration"] as? Number)?.toLong() ?: (now + maxMessageTTL)
+                    newHashValues[hashValue] = expiration
+                }
                 !isDuplicate
             } else {
                 Log.d("Loki", "Missing hash value for message: ${rawMessage?.prettifiedDescription()}.")
                 false
             }
         }
+        database.addReceivedMessageHashValues(publicKey, newHashValues)
+        hashValues.forEach { recentlyReceivedMessageHashValues.add("$publicKey-$it") }
+        if (now - lastReceivedMessageHashValuePruneDate > receivedMessageHashValuePruneInterval) {
+            lastReceivedMessageHashValuePruneDate = now
+            database.pruneReceivedMessageHashValues(now)
+        }
+        return result
     }
 
     // Error Handling
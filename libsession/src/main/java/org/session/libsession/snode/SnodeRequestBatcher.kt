@@ -0,0 +1,145 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import org.session.libsignal.service.loki.api.utilities.HTTP
+import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.logging.Log
+import java.util.Collections
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Coalesces `GetMessages` calls that are aimed at the same snode into a single onion request.
+ *
+ * Calls made within `batchWindow` of each other (e.g. all closed groups that are due in the same polling tick) are
+ * wrapped in one `Batch` request, so the onion is built and sent once for all of them. The snode's response contains
+ * one result per sub-request, in order, which is fanned out to the individual callers. Snodes that don't support
+ * batching are remembered and sent individual requests from then on.
+ */
+internal class SnodeRequestBatcher(private val transport: Transport) {
+    private val pendingRequests = mutableMapOf<Snode, MutableList<PendingRequest>>()
+    private val snodesWithoutBatchSupport: MutableSet<Snode> = Collections.synchronizedSet(mutableSetOf())
+    private val scheduler = ScheduledThreadPoolExecutor(1)
+
+    // Settings
+    private val batchWindow: Long = 25
+    private val maxBatchSize = 16
+
+    private class PendingRequest(val publicKey: String, val parameters: Map<String, String>, val deferred: Deferred<RawResponse, Exception>)
+
+    /**
+     * The way requests reach the snode. `sendBatch` must leave errors returned by the snode unhandled, so that the
+     * batcher can tell a snode that doesn't support batching apart from one that's failing.
+     */
+    interface Transport {
+        fun sendBatch(snode: Snode, requests: List<Map<*, *>>): Promise<Map<*, *>, Exception>
+        fun send(snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise
+        fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String?): Exception?
+    }
+
+    private object OnionRequestTransport : Transport {
+
+        override fun sendBatch(snode: Snode, requests: List<Map<*, *>>): Promise<Map<*, *>, Exception> {
+            return OnionRequestAPI.sendOnionRequest(Snode.Method.Batch, mapOf( "requests" to requests ), snode)
+        }
+
+        override fun send(snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise {
+            return SnodeAPI.invoke(Snode.Method.GetMessages, snode, publicKey, parameters)
+        }
+
+        override fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String?): Exception? {
+            return SnodeAPI.handleSnodeError(statusCode, json, snode, publicKey)
+        }
+    }
+
+    companion object {
+        val shared = SnodeRequestBatcher(OnionRequestTransport)
+    }
+
+    // Public API
+    fun getMessages(snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise {
+        if (snodesWithoutBatchSupport.contains(snode)) {
+            return transport.send(snode, publicKey, parameters)
+        }
+        val request = PendingRequest(publicKey, parameters, deferred())
+        var isFirstRequest = false
+        var fullBatch: List<PendingRequest>? = null
+        synchronized(pendingRequests) {
+            val requests = pendingRequests.getOrPut(snode) { mutableListOf() }
+            requests.add(request)
+            isFirstRequest = (requests.size == 1)
+            if (requests.size >= maxBatchSize) { fullBatch = pendingRequests.remove(snode) }
+        }
+        val batch = fullBatch
+        if (batch != null) {
+            send(snode, batch)
+        } else if (isFirstRequest) {
+            scheduler.schedule({ flush(snode) }, batchWindow, TimeUnit.MILLISECONDS)
+        }
+        return request.deferred.promise
+    }
+
+    // Private API
+    private fun flush(snode: Snode) {
+        val batch = synchronized(pendingRequests) { pendingRequests.remove(snode) } ?: return
+        send(snode, batch)
+    }
+
+    private fun send(snode: Snode, batch: List<PendingRequest>) {
+        if (batch.size == 1 || snodesWithoutBatchSupport.contains(snode)) {
+            return batch.forEach { sendIndividually(snode, it) }
+        }
+        val requests = batch.map { mapOf( "method" to Snode.Method.GetMessages.rawValue, "params" to it.parameters ) }
+        transport.sendBatch(snode, requests).success { json ->
+            val results = json["results"] as? List<*>
+            if (results == null || results.size != batch.size) {
+                Log.d("Loki", "Got an invalid batch response from: $snode.")
+                return@success batch.forEach { it.deferred.reject(SnodeAPI.Error.Generic) }
+            }
+            batch.zip(results).forEach { (request, result) -> handleResult(snode, request, result as? Map<*, *>) }
+        }.fail { exception ->
+            // Check the status code before the snode gets penalized for it; an older snode rejecting the batch isn't at fault
+            val statusCode = when (exception) {
+                is HTTP.HTTPRequestFailedException -> exception.statusCode
+                is OnionRequestAPI.HTTPRequestFailedAtDestinationException -> exception.statusCode
+                else -> null
+            }
+            if (statusCode == 400 || statusCode == 404) {
+                Log.d("Loki", "$snode doesn't support batch requests; falling back to individual requests.")
+                snodesWithoutBatchSupport.add(snode)
+                batch.forEach { sendIndividually(snode, it) }
+            } else {
+                val httpRequestFailedException = exception as? HTTP.HTTPRequestFailedException
+                val error = httpRequestFailedException?.let { transport.handleError(it.statusCode, it.json, snode, null) }
+                batch.forEach { it.deferred.reject(error ?: exception) }
+            }
+        }
+    }
+
+    private fun sendIndividually(snode: Snode, request: PendingRequest) {
+        transport.send(snode, request.publicKey, request.parameters).success {
+            request.deferred.resolve(it)
+        }.fail {
+            request.deferred.reject(it)
+        }
+    }
+
+    private fun handleResult(snode: Snode, request: PendingRequest, result: Map<*, *>?) {
+        val statusCode = result?.get("code") as? Int ?: 0
+        val rawBody = result?.get("body")
+        val body = if (rawBody is String) {
+            try { JsonUtil.fromJson(rawBody, Map::class.java) } catch (exception: Exception) { null }
+        } else {
+            rawBody as? Map<*, *>
+        }
+        if (statusCode == 200 && body != null) {
+            request.deferred.resolve(body)
+        } else {
+            val exception = HTTP.HTTPRequestFailedException(statusCode, body)
+            val error = transport.handleError(statusCode, body, snode, request.publicKey)
+            request.deferred.reject(error ?: exception)
+        }
+    }
+}
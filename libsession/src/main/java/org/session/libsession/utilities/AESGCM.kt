@@ -1,7 +1,6 @@
 package org.session.libsession.utilities
 
 import org.whispersystems.curve25519.Curve25519
-import org.session.libsignal.libsignal.util.ByteUtil
 import org.session.libsignal.service.internal.util.Util
 import org.session.libsignal.utilities.Hex
 import javax.crypto.Cipher
@@ -20,25 +19,60 @@ internal object AESGCM {
     internal val gcmTagSize = 128
     internal val ivSize = 12
 
+    // Looking these up through the provider machinery is relatively expensive, so they are reused. Cipher and Mac
+    // aren't thread safe, so each thread keeps its own instances.
+    private val curve by lazy { Curve25519.getInstance(Curve25519.BEST) }
+    private val cipher = object : ThreadLocal<Cipher>() {
+        override fun initialValue(): Cipher = Cipher.getInstance("AES/GCM/NoPadding")
+    }
+    private val hmac = object : ThreadLocal<Mac>() {
+        override fun initialValue(): Mac {
+            val mac = Mac.getInstance("HmacSHA256")
+            mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
+            return mac
+        }
+    }
+
     /**
      * Sync. Don't call from the main thread.
      */
     internal fun decrypt(ivAndCiphertext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = ivAndCiphertext.sliceArray(0 until ivSize)
-        val ciphertext = ivAndCiphertext.sliceArray(ivSize until ivAndCiphertext.count())
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
-        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-        return cipher.doFinal(ciphertext)
+        return decrypt(ivAndCiphertext, 0, ivAndCiphertext.size, symmetricKey)
+    }
+
+    /**
+     * Decrypts the IV and ciphertext stored in `ivAndCiphertext` from `offset` to `offset + length`, so that callers
+     * decoding into a larger buffer don't need to copy it first.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun decrypt(ivAndCiphertext: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): ByteArray {
+        val cipher = cipher.get()!!
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, ivAndCiphertext, offset, ivSize))
+        return cipher.doFinal(ivAndCiphertext, offset + ivSize, length - ivSize)
     }
 
     /**
      * Sync. Don't call from the main thread.
      */
     internal fun encrypt(plaintext: ByteArray, symmetricKey: ByteArray): ByteArray {
+        return encrypt(plaintext, 0, plaintext.size, symmetricKey)
+    }
+
+    /**
+     * Encrypts `plaintext` from `offset` to `offset + length`. The IV and ciphertext are written straight into the
+     * returned buffer.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encrypt(plaintext: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): ByteArray {
         val iv = Util.getSecretBytes(ivSize)
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        val cipher = cipher.get()!!
         cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-        return ByteUtil.combine(iv, cipher.doFinal(plaintext))
+        val result = ByteArray(ivSize + cipher.getOutputSize(length))
+        System.arraycopy(iv, 0, result, 0, ivSize)
+        cipher.doFinal(plaintext, offset, length, result, ivSize)
+        return result
     }
 
     /**
@@ -46,10 +80,9 @@ internal object AESGCM {
      */
     internal fun encrypt(plaintext: ByteArray, hexEncodedX25519PublicKey: String): EncryptionResult {
         val x25519PublicKey = Hex.fromStringCondensed(hexEncodedX25519PublicKey)
-        val ephemeralKeyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
-        val ephemeralSharedSecret = Curve25519.getInstance(Curve25519.BEST).calculateAgreement(x25519PublicKey, ephemeralKeyPair.privateKey)
-        val mac = Mac.getInstance("HmacSHA256")
-        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
+        val ephemeralKeyPair = curve.generateKeyPair()
+        val ephemeralSharedSecret = curve.calculateAgreement(x25519PublicKey, ephemeralKeyPair.privateKey)
+        val mac = hmac.get()!!
         val symmetricKey = mac.doFinal(ephemeralSharedSecret)
         val ciphertext = encrypt(plaintext, symmetricKey)
         return EncryptionResult(ciphertext, symmetricKey, ephemeralKeyPair.publicKey)
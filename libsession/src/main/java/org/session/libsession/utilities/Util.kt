@@ -20,6 +20,7 @@ import java.text.DecimalFormat
 import java.util.*
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutorService
+import java.util.concurrent.ThreadFactory
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 
@@ -124,6 +125,12 @@ object Util {
         return executor
     }
 
+    @JvmStatic
+    fun newLifoExecutor(threadCount: Int): ExecutorService {
+        val threadFactory = ThreadFactory { runnable -> Thread(runnable).apply { priority = Thread.MIN_PRIORITY } }
+        return ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, LinkedBlockingLifoQueue<Runnable>(), threadFactory)
+    }
+
     @JvmStatic
     fun join(list: Array<String?>, delimiter: String?): String {
         return join(Arrays.asList(*list), delimiter)
@@ -0,0 +1,85 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.messaging.StorageProtocol
+import java.lang.reflect.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class JobQueueTest {
+    // Stands in for the session job table: a job is persisted while its row exists, and canceled once it's gone
+    private val persistedJobs = ConcurrentHashMap<String, Job>()
+
+    private val storage = Proxy.newProxyInstance(StorageProtocol::class.java.classLoader, arrayOf(StorageProtocol::class.java)) { _, method, args ->
+        val job = args?.firstOrNull() as? Job
+        when (method.name) {
+            "persistJob" -> persistedJobs.put(job!!.id!!, job)
+            "markJobAsSucceeded", "markJobAsFailed" -> persistedJobs.remove(job!!.id!!)
+            "isJobCanceled" -> !persistedJobs.containsKey(job!!.id!!)
+            else -> throw UnsupportedOperationException(method.name)
+        }
+    } as StorageProtocol
+
+    private val jobQueue = JobQueue { storage }
+
+    private class FlakyJob(private val failuresBeforeSuccess: Int, private val onFirstExecution: () -> Unit = {}) : Job {
+        override var delegate: JobDelegate? = null
+        override var id: String? = null
+        override var failureCount = 0
+        override val maxFailureCount = 3
+        val executionCount = AtomicInteger()
+        val succeeded = CountDownLatch(1)
+
+        override fun execute() {
+            val count = executionCount.incrementAndGet()
+            if (count == 1) { onFirstExecution() }
+            if (count <= failuresBeforeSuccess) {
+                delegate?.handleJobFailed(this, Exception("Execution $count failed."))
+            } else {
+                delegate?.handleJobSucceeded(this)
+                succeeded.countDown()
+            }
+        }
+
+        override fun serialize(): Data {
+            return Data.Builder().build()
+        }
+
+        override fun getFactoryKey(): String {
+            return "FlakyJob"
+        }
+    }
+
+    @Test
+    fun testFailedJobIsPersistedAndRetried() {
+        val job = FlakyJob(1)
+        jobQueue.add(job)
+        assertTrue(job.succeeded.await(5, TimeUnit.SECONDS))
+        assertEquals(2, job.executionCount.get())
+        assertEquals(1, job.failureCount)
+        assertTrue(persistedJobs.isEmpty())
+    }
+
+    @Test
+    fun testCanceledJobIsNotRetried() {
+        lateinit var job: FlakyJob
+        job = FlakyJob(1) { persistedJobs.remove(job.id!!) }
+        jobQueue.add(job)
+        Thread.sleep(2000)
+        assertEquals(1, job.executionCount.get())
+        assertTrue(persistedJobs.isEmpty())
+    }
+
+    @Test
+    fun testJobIsDroppedAfterMaxFailures() {
+        val job = FlakyJob(Int.MAX_VALUE)
+        jobQueue.add(job)
+        Thread.sleep(4000)
+        assertEquals(job.maxFailureCount, job.executionCount.get())
+        assertTrue(persistedJobs.isEmpty())
+    }
+}
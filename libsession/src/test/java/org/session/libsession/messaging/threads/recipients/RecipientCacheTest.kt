@@ -0,0 +1,123 @@
+package org.session.libsession.messaging.threads.recipients
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.ref.WeakReference
+
+class RecipientCacheTest {
+    // A single stripe, so that which entry is evicted doesn't depend on how the keys hash
+    private val cache = RecipientProvider.RecipientCache<String, Any>(1, 2)
+
+    private class Value(val name: String) {
+        override fun toString(): String { return name }
+    }
+
+    /**
+     * Waits for a garbage collection that cleared an unreachable object, which the values that are only weakly
+     * referenced by the cache should've been cleared along with.
+     */
+    private fun collectGarbage() {
+        val probe = WeakReference(Any())
+        for (attempt in 0 until 100) {
+            System.gc()
+            if (probe.get() == null) { return }
+            Thread.sleep(10)
+        }
+    }
+
+    @Test
+    fun testLeastRecentlyUsedEntryIsEvictedAboveLimit() {
+        cache.set("a", Value("a"))
+        cache.set("b", Value("b"))
+        cache.get("a")
+        cache.set("c", Value("c")) // Evicts "b", the least recently used entry
+        collectGarbage()
+        assertNull(cache.get("b"))
+        assertNotNull(cache.get("a"))
+        assertNotNull(cache.get("c"))
+    }
+
+    @Test
+    fun testEvictedEntryIsPromotedBackWhenRequested() {
+        val a = Value("a")
+        cache.set("a", a)
+        cache.set("b", Value("b"))
+        cache.set("c", Value("c")) // Evicts "a"
+        // "a" was evicted, but is still in use here, so the cache hands back the same instance
+        assertSame(a, cache.get("a"))
+        // Now that "a" is cached again, caching a new instance for it replaces it rather than keeping both around
+        val newA = Value("a")
+        cache.set("a", newA)
+        assertSame(newA, cache.get("a"))
+    }
+
+    @Test
+    fun testSetIfAbsentKeepsEvictedInstanceThatIsStillAlive() {
+        val a = Value("a")
+        cache.set("a", a)
+        cache.set("b", Value("b"))
+        cache.set("c", Value("c")) // Evicts "a"
+        cache.setIfAbsent("a", Value("a"))
+        assertSame(a, cache.get("a"))
+    }
+
+    @Test
+    fun testReplaceCachesValueIfExpectedIsStillCached() {
+        val a = Value("a")
+        cache.set("a", a)
+        val newA = Value("a")
+        assertSame(newA, cache.replace("a", a, newA))
+        assertSame(newA, cache.get("a"))
+    }
+
+    @Test
+    fun testReplaceCachesValueIfNothingIsCached() {
+        val a = Value("a")
+        assertSame(a, cache.replace("a", null, a))
+        assertSame(a, cache.get("a"))
+    }
+
+    @Test
+    fun testReplaceKeepsConcurrentlyCachedValue() {
+        val stale = Value("a")
+        cache.set("a", stale)
+        val expected = cache.get("a")
+        // Another thread caches a different instance while this one is resolving the recipient
+        val concurrent = Value("a")
+        cache.set("a", concurrent)
+        val resolved = Value("a")
+        assertSame(concurrent, cache.replace("a", expected, resolved))
+        assertSame(concurrent, cache.get("a"))
+    }
+
+    @Test
+    fun testReplaceKeepsConcurrentlyCachedValueIfNothingWasExpected() {
+        val concurrent = Value("a")
+        cache.set("a", concurrent)
+        assertSame(concurrent, cache.replace("a", null, Value("a")))
+    }
+
+    @Test
+    fun testRemoveOfCachedEntry() {
+        cache.set("a", Value("a"))
+        assertTrue(cache.remove("a"))
+        assertNull(cache.get("a"))
+        assertFalse(cache.remove("a"))
+    }
+
+    @Test
+    fun testRemoveOfEvictedEntry() {
+        val a = Value("a")
+        cache.set("a", a)
+        cache.set("b", Value("b"))
+        cache.set("c", Value("c")) // Evicts "a"
+        assertTrue(cache.remove("a"))
+        // The instance is still alive, but it's no longer cached
+        assertNull(cache.get("a"))
+        assertFalse(cache.remove("a"))
+    }
+}
@@ -0,0 +1,103 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import org.session.libsignal.service.loki.api.utilities.HTTP
+import org.session.libsignal.utilities.JsonUtil
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+class SnodeRequestBatcherTest {
+    private val snode = Snode("https://127.0.0.1", 22021, null)
+
+    /**
+     * Stands in for a snode. Answers `GetMessages` requests with the public key they were made for, and rejects batch
+     * requests the way older snodes do if `supportsBatching` is false.
+     */
+    private class StandInSnode(private val supportsBatching: Boolean, private val failingPublicKeys: Set<String> = setOf()) : SnodeRequestBatcher.Transport {
+        val batchRequestCount = AtomicInteger()
+        val individualRequestCount = AtomicInteger()
+        val handledStatusCodes: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+
+        override fun sendBatch(snode: Snode, requests: List<Map<*, *>>): Promise<Map<*, *>, Exception> {
+            batchRequestCount.incrementAndGet()
+            if (!supportsBatching) {
+                return Promise.ofFail(OnionRequestAPI.HTTPRequestFailedAtDestinationException(404, mapOf<String, Any>()))
+            }
+            val results = requests.map { request ->
+                val parameters = request["params"] as Map<*, *>
+                val publicKey = parameters["pubKey"] as String
+                if (failingPublicKeys.contains(publicKey)) {
+                    mapOf( "code" to 500, "body" to null )
+                } else {
+                    mapOf( "code" to 200, "body" to JsonUtil.toJson(getMessages(publicKey)) )
+                }
+            }
+            return Promise.ofSuccess(mapOf( "results" to results ))
+        }
+
+        override fun send(snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise {
+            individualRequestCount.incrementAndGet()
+            return Promise.ofSuccess(getMessages(publicKey))
+        }
+
+        override fun handleError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String?): Exception? {
+            handledStatusCodes.add(statusCode)
+            return null
+        }
+
+        private fun getMessages(publicKey: String): Map<*, *> {
+            return mapOf( "pubKey" to publicKey, "messages" to listOf<Any>() )
+        }
+    }
+
+    private fun getMessages(batcher: SnodeRequestBatcher, publicKeys: List<String>): List<RawResponsePromise> {
+        return publicKeys.map { batcher.getMessages(snode, it, mapOf( "pubKey" to it, "lastHash" to "" )) }
+    }
+
+    @Test
+    fun testConcurrentRequestsAreBatched() {
+        val standInSnode = StandInSnode(true)
+        val batcher = SnodeRequestBatcher(standInSnode)
+        val publicKeys = listOf( "05a", "05b", "05c" )
+        val promises = getMessages(batcher, publicKeys)
+        publicKeys.zip(promises).forEach { (publicKey, promise) -> assertEquals(publicKey, promise.get()["pubKey"]) }
+        assertEquals(1, standInSnode.batchRequestCount.get())
+        assertEquals(0, standInSnode.individualRequestCount.get())
+    }
+
+    @Test
+    fun testFailedSubRequestOnlyFailsItsOwnCaller() {
+        val standInSnode = StandInSnode(true, setOf( "05b" ))
+        val batcher = SnodeRequestBatcher(standInSnode)
+        val promises = getMessages(batcher, listOf( "05a", "05b", "05c" ))
+        assertEquals("05a", promises[0].get()["pubKey"])
+        assertEquals("05c", promises[2].get()["pubKey"])
+        try {
+            promises[1].get()
+            fail("Expected the failed sub-request to be rejected.")
+        } catch (exception: HTTP.HTTPRequestFailedException) {
+            assertEquals(500, exception.statusCode)
+        }
+        assertEquals(listOf( 500 ), standInSnode.handledStatusCodes)
+    }
+
+    @Test
+    fun testFallsBackToIndividualRequestsWhenBatchingIsUnsupported() {
+        val standInSnode = StandInSnode(false)
+        val batcher = SnodeRequestBatcher(standInSnode)
+        val publicKeys = listOf( "05a", "05b", "05c" )
+        getMessages(batcher, publicKeys).zip(publicKeys).forEach { (promise, publicKey) -> assertEquals(publicKey, promise.get()["pubKey"]) }
+        assertEquals(1, standInSnode.batchRequestCount.get())
+        assertEquals(3, standInSnode.individualRequestCount.get())
+        // The snode shouldn't be penalized for not supporting batching
+        assertTrue(standInSnode.handledStatusCodes.isEmpty())
+        // Later requests go straight to the snode
+        getMessages(batcher, publicKeys).forEach { it.get() }
+        assertEquals(1, standInSnode.batchRequestCount.get())
+        assertEquals(6, standInSnode.individualRequestCount.get())
+    }
+}
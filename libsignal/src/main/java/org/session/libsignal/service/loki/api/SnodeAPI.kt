@@ -16,6 +16,7 @@ import org.session.libsignal.service.loki.utilities.*
 import org.session.libsignal.utilities.*
 import java.net.ConnectException
 import java.net.SocketTimeoutException
+import java.util.Collections
 
 class SnodeAPI private constructor(public var userPublicKey: String, public val database: LokiAPIDatabaseProtocol, public val broadcaster: Broadcaster) {
 
@@ -41,9 +42,26 @@ class SnodeAPI private constructor(public var userPublicKey: String, public val
         private val useOnionRequests = true
 
         internal var powDifficulty = 1
+        private val maxRecentlyReceivedMessageHashValueCount = 2048
+        /**
+         * Used as the expiration date of received message hash values if the snode didn't provide one.
+         */
+        private val maxMessageTTL = 14 * 24 * 60 * 60 * 1000L
+        private val receivedMessageHashValuePruneInterval = 60 * 60 * 1000L
         // endregion
     }
 
+    /**
+     * A bounded, in-memory front for the received message hash values table, keyed by "$publicKey-$hashValue".
+     */
+    private val recentlyReceivedMessageHashValues: MutableSet<String> = Collections.synchronizedSet(Collections.newSetFromMap(object : LinkedHashMap<String, Boolean>() {
+
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>?): Boolean {
+            return size > maxRecentlyReceivedMessageHashValueCount
+        }
+    }))
+    private var lastReceivedMessageHashValuePruneDate = 0L
+
     // region Error
     sealed class Error(val description: String) : Exception() {
         class HTTPRequestFailed(val code: Int) : Error("HTTP request failed with error code: $code.")
@@ -178,20 +196,35 @@ class SnodeAPI private constructor(public var userPublicKey: String, public val
     }
 
     private fun removeDuplicates(publicKey: String, rawMessages: List<*>): List<*> {
-        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey)?.toMutableSet() ?: mutableSetOf()
-        return rawMessages.filter { rawMessage ->
+        val now = System.currentTimeMillis()
+        val hashValues = rawMessages.mapNotNull { (it as? Map<*, *>)?.get("hash") as? String }
+        // Only hit the database for hashes that weren't seen recently
+        val candidates = hashValues.filter { !recentlyReceivedMessageHashValues.contains("$publicKey-$it") }
+        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey, candidates)
+        val newHashValues = mutableMapOf<String, Long>()
+        val result = rawMessages.filter { rawMessage ->
             val rawMessageAsJSON = rawMessage as? Map<*, *>
             val hashValue = rawMessageAsJSON?.get("hash") as? String
             if (hashValue != null) {
-                val isDuplicate = receivedMessageHashValues.contains(hashValue)
-                receivedMessageHashValues.add(hashValue)
-                database.setReceivedMessageHashValues(publicKey, receivedMessageHashValues)
+                val isDuplicate = recentlyReceivedMessageHashValues.contains("$publicKey-$hashValue")
+                    || receivedMessageHashValues.contains(hashValue) || newHashValues.containsKey(hashValue)
+                if (!isDuplicate) {
+                    val expiration = (rawMessageAsJSON["expiration"] as? Number)?.toLong() ?: (now + maxMessageTTL)
+                    newHashValues[hashValue] = expiration
+                }
                 !isDuplicate
             } else {
                 Log.d("Loki", "Missing hash value for message: ${rawMessage?.prettifiedDescription()}.")
                 false
             }
         }
+        database.addReceivedMessageHashValues(publicKey, newHashValues)
+        hashValues.forEach { recentlyReceivedMessageHashValues.add("$publicKey-$it") }
+        if (now - lastReceivedMessageHashValuePruneDate > receivedMessageHashValuePruneInterval) {
+            lastReceivedMessageHashValuePruneDate = now
+            database.pruneReceivedMessageHashValues(now)
+        }
+        return result
     }
 
     private fun parseEnvelopes(rawMessages: List<*>): List<Envelope> {
@@ -2,10 +2,13 @@ package org.session.libsignal.service.loki.api.crypto
 
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.service.loki.api.SnodeAPI
 import java.math.BigInteger
 import java.nio.ByteBuffer
 import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Based on the desktop messenger's proof of work implementation. For more information, see libloki/proof-of-work.js.
@@ -14,8 +17,16 @@ object ProofOfWork {
 
     // region Settings
     private val nonceSize = 8
+    private val hashSize = 64
+    private val workerCount = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+    /**
+     * Below this number of expected trials it's cheaper to search on the calling thread than to hand off to the workers.
+     */
+    private val minParallelTrialCount = 1L shl 14
     // endregion
 
+    private val executor by lazy { ThreadUtils.newDynamicExecutor(workerCount) }
+
     // region Implementation
     @kotlin.ExperimentalUnsignedTypes
     fun calculate(data: String, hexEncodedPublicKey: String, timestamp: Long, ttl: Int): String? {
@@ -24,15 +35,20 @@ object ProofOfWork {
             val payloadAsString = timestamp.toString() + ttl.toString() + hexEncodedPublicKey + data
             val payload = payloadAsString.toByteArray()
             val target = determineTarget(ttl, payload.size)
-            var currentTrialValue = ULong.MAX_VALUE
-            var nonce: Long = 0
             val initialHash = sha512.digest(payload)
-            while (currentTrialValue > target) {
-                nonce += 1
-                // This is different from bitmessage's PoW implementation
-                // newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
-                val newHash = sha512.digest(nonce.toByteArray() + initialHash)
-                currentTrialValue = newHash.sliceArray(0 until nonceSize).toULong()
+            val expectedTrialCount = ULong.MAX_VALUE / target.coerceAtLeast(1UL)
+            val nonce = if (workerCount == 1 || expectedTrialCount < minParallelTrialCount.toULong()) {
+                search(sha512, initialHash, target, 1, 1, AtomicLong(0))
+            } else {
+                // Worker i tries nonces i + 1, i + 1 + workerCount, ... until any of the workers finds a valid one
+                val solution = AtomicLong(0)
+                val futures = (0 until workerCount).map { index ->
+                    executor.submit(Callable {
+                        search(sha512.clone() as MessageDigest, initialHash, target, index + 1L, workerCount.toLong(), solution)
+                    })
+                }
+                futures.forEach { it.get() }
+                solution.get()
             }
             return Base64.encodeBytes(nonce.toByteArray())
         } catch (e: Exception) {
@@ -41,6 +57,39 @@ object ProofOfWork {
         }
     }
 
+    /**
+     * Tries `firstNonce`, `firstNonce + stride`, ... until the first 8 bytes of `hash(nonce + initialHash)`,
+     * interpreted as an unsigned big endian integer, are at most `target`, or until another worker has stored its
+     * nonce in `solution`. Doesn't allocate inside the loop.
+     *
+     * This is different from bitmessage's PoW implementation:
+     * newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
+     */
+    @kotlin.ExperimentalUnsignedTypes
+    private fun search(sha512: MessageDigest, initialHash: ByteArray, target: ULong, firstNonce: Long, stride: Long, solution: AtomicLong): Long {
+        val input = ByteArray(nonceSize + hashSize)
+        val output = ByteArray(hashSize)
+        System.arraycopy(initialHash, 0, input, nonceSize, hashSize)
+        var nonce = firstNonce
+        while (solution.get() == 0L) {
+            for (i in 0 until nonceSize) {
+                input[i] = (nonce ushr (8 * (nonceSize - 1 - i))).toByte()
+            }
+            sha512.update(input, 0, input.size)
+            sha512.digest(output, 0, hashSize)
+            var trialValue = 0L
+            for (i in 0 until nonceSize) {
+                trialValue = (trialValue shl 8) or (output[i].toLong() and 0xff)
+            }
+            if (trialValue.toULong() <= target) {
+                solution.compareAndSet(0, nonce)
+                break
+            }
+            nonce += stride
+        }
+        return solution.get()
+    }
+
     @kotlin.ExperimentalUnsignedTypes
     private fun determineTarget(ttl: Int, payloadSize: Int): ULong {
         val x1 = BigInteger.valueOf(2).pow(16) - 1.toBigInteger()
@@ -59,6 +108,4 @@ object ProofOfWork {
 @kotlin.ExperimentalUnsignedTypes
 private fun BigInteger.toULong() = toLong().toULong()
 private fun Long.toByteArray() = ByteBuffer.allocate(8).putLong(this).array()
-@kotlin.ExperimentalUnsignedTypes
-private fun ByteArray.toULong() = ByteBuffer.wrap(this).long.toULong()
 // endregion
@@ -1,7 +1,12 @@
 package org.session.libsignal.service.loki.api.crypto
 
 import org.session.libsignal.libsignal.ecc.ECKeyPair
+import org.session.libsignal.libsignal.ecc.ECPublicKey
 import org.session.libsignal.service.loki.database.LokiAPIDatabaseProtocol
+import org.session.libsignal.utilities.ThreadUtils
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
 
 interface SessionProtocol {
 
@@ -40,25 +45,61 @@ interface SessionProtocol {
 }
 
 object SessionProtocolUtilities {
+    /**
+     * The public key of the key pair that last decrypted a message for each closed group.
+     */
+    private val lastUsedEncryptionKeyPairPublicKeys = ConcurrentHashMap<String, ECPublicKey>()
+    private val encryptionExecutor by lazy { ThreadUtils.newDynamicExecutor(Runtime.getRuntime().availableProcessors().coerceIn(1, 4)) }
+
+    /**
+     * Encrypts `plaintext` for each of `recipientPublicKeys` in parallel, and returns the ciphertexts in the same order.
+     * This is what makes distributing a new closed group encryption key pair to a large group fast.
+     */
+    fun encryptForRecipients(plaintext: ByteArray, recipientPublicKeys: List<String>, sessionProtocolImpl: SessionProtocol): List<ByteArray> {
+        if (recipientPublicKeys.size <= 1) {
+            return recipientPublicKeys.map { sessionProtocolImpl.encrypt(plaintext, it) }
+        }
+        val futures = recipientPublicKeys.map { publicKey ->
+            encryptionExecutor.submit(Callable { sessionProtocolImpl.encrypt(plaintext, publicKey) })
+        }
+        return futures.map { future ->
+            try {
+                future.get()
+            } catch (exception: ExecutionException) {
+                throw exception.cause as? Exception ?: exception
+            }
+        }
+    }
 
     fun decryptClosedGroupCiphertext(ciphertext: ByteArray, groupPublicKey: String, apiDB: LokiAPIDatabaseProtocol, sessionProtocolImpl: SessionProtocol): Pair<ByteArray, String> {
-        val encryptionKeyPairs = apiDB.getClosedGroupEncryptionKeyPairs(groupPublicKey).toMutableList()
+        val encryptionKeyPairs = apiDB.getClosedGroupEncryptionKeyPairs(groupPublicKey)
         if (encryptionKeyPairs.isEmpty()) { throw SessionProtocol.Exception.NoGroupKeyPair }
-        // Loop through all known group key pairs in reverse order (i.e. try the latest key pair first (which'll more than
-        // likely be the one we want) but try older ones in case that didn't work)
-        var encryptionKeyPair = encryptionKeyPairs.removeAt(encryptionKeyPairs.lastIndex)
-        fun decrypt(): Pair<ByteArray, String> {
+        return decryptWithClosedGroupEncryptionKeyPairs(groupPublicKey, encryptionKeyPairs) { sessionProtocolImpl.decrypt(ciphertext, it) }
+    }
+
+    /**
+     * Tries `decrypt` with each of the group's `encryptionKeyPairs` (ordered from oldest to newest) until one works.
+     *
+     * The key pair that last worked for the group is tried first, followed by the others from newest to oldest (the
+     * latest key pair is more than likely the one we want). This way a backlog of messages that were sent before the
+     * latest key rotation doesn't pay for a failed decryption with the new key pair for every message.
+     */
+    fun <T> decryptWithClosedGroupEncryptionKeyPairs(groupPublicKey: String, encryptionKeyPairs: List<ECKeyPair>, decrypt: (ECKeyPair) -> T): T {
+        val lastUsedPublicKey = lastUsedEncryptionKeyPairPublicKeys[groupPublicKey]
+        val lastUsedKeyPair = encryptionKeyPairs.lastOrNull { it.publicKey == lastUsedPublicKey }
+        val candidates = listOfNotNull(lastUsedKeyPair) + encryptionKeyPairs.asReversed().filter { it !== lastUsedKeyPair }
+        var error: Exception? = null
+        for (encryptionKeyPair in candidates) {
             try {
-                return sessionProtocolImpl.decrypt(ciphertext, encryptionKeyPair)
-            } catch(exception: Exception) {
-                if (encryptionKeyPairs.isNotEmpty()) {
-                    encryptionKeyPair = encryptionKeyPairs.removeAt(encryptionKeyPairs.lastIndex)
-                    return decrypt()
-                } else {
-                    throw exception
+                val result = decrypt(encryptionKeyPair)
+                if (encryptionKeyPair !== lastUsedKeyPair) {
+                    lastUsedEncryptionKeyPairPublicKeys[groupPublicKey] = encryptionKeyPair.publicKey
                 }
+                return result
+            } catch (exception: Exception) {
+                error = exception
             }
         }
-        return decrypt()
+        throw error ?: SessionProtocol.Exception.NoGroupKeyPair
     }
-}
\ No newline at end of file
+}
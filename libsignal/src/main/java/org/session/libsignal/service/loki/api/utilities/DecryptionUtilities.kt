@@ -10,10 +10,19 @@ internal object DecryptionUtilities {
      * Sync. Don't call from the main thread.
      */
     internal fun decryptUsingAESGCM(ivAndCiphertext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = ivAndCiphertext.sliceArray(0 until EncryptionUtilities.ivSize)
-        val ciphertext = ivAndCiphertext.sliceArray(EncryptionUtilities.ivSize until ivAndCiphertext.count())
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
-        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(EncryptionUtilities.gcmTagSize, iv))
-        return cipher.doFinal(ciphertext)
+        return decryptUsingAESGCM(ivAndCiphertext, 0, ivAndCiphertext.size, symmetricKey)
+    }
+
+    /**
+     * Decrypts the IV and ciphertext stored in `ivAndCiphertext` from `offset` to `offset + length` without copying
+     * them out first.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun decryptUsingAESGCM(ivAndCiphertext: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): ByteArray {
+        val ivSize = EncryptionUtilities.ivSize
+        val cipher = EncryptionUtilities.cipher.get()!!
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(EncryptionUtilities.gcmTagSize, ivAndCiphertext, offset, ivSize))
+        return cipher.doFinal(ivAndCiphertext, offset + ivSize, length - ivSize)
     }
 }
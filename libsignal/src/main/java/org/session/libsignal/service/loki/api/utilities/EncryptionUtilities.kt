@@ -1,7 +1,6 @@
 package org.session.libsignal.service.loki.api.utilities
 
 import org.whispersystems.curve25519.Curve25519
-import org.session.libsignal.libsignal.util.ByteUtil
 import org.session.libsignal.utilities.Hex
 import org.session.libsignal.service.internal.util.Util
 import javax.crypto.Cipher
@@ -19,14 +18,41 @@ internal object EncryptionUtilities {
     internal val gcmTagSize = 128
     internal val ivSize = 12
 
+    // Looking these up through the provider machinery is relatively expensive, so they are reused. Cipher and Mac
+    // aren't thread safe, so each thread keeps its own instances.
+    private val curve by lazy { Curve25519.getInstance(Curve25519.BEST) }
+    internal val cipher = object : ThreadLocal<Cipher>() {
+        override fun initialValue(): Cipher = Cipher.getInstance("AES/GCM/NoPadding")
+    }
+    private val hmac = object : ThreadLocal<Mac>() {
+        override fun initialValue(): Mac {
+            val mac = Mac.getInstance("HmacSHA256")
+            mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
+            return mac
+        }
+    }
+
     /**
      * Sync. Don't call from the main thread.
      */
     internal fun encryptUsingAESGCM(plaintext: ByteArray, symmetricKey: ByteArray): ByteArray {
+        return encryptUsingAESGCM(plaintext, 0, plaintext.size, symmetricKey)
+    }
+
+    /**
+     * Encrypts `plaintext` from `offset` to `offset + length`. The IV and ciphertext are written straight into the
+     * returned buffer.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encryptUsingAESGCM(plaintext: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): ByteArray {
         val iv = Util.getSecretBytes(ivSize)
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        val cipher = cipher.get()!!
         cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-        return ByteUtil.combine(iv, cipher.doFinal(plaintext))
+        val result = ByteArray(ivSize + cipher.getOutputSize(length))
+        System.arraycopy(iv, 0, result, 0, ivSize)
+        cipher.doFinal(plaintext, offset, length, result, ivSize)
+        return result
     }
 
     /**
@@ -34,11 +60,9 @@ internal object EncryptionUtilities {
      */
     internal fun encryptForX25519PublicKey(plaintext: ByteArray, hexEncodedX25519PublicKey: String): EncryptionResult {
         val x25519PublicKey = Hex.fromStringCondensed(hexEncodedX25519PublicKey)
-        val ephemeralKeyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
-        val ephemeralSharedSecret = Curve25519.getInstance(Curve25519.BEST).calculateAgreement(x25519PublicKey, ephemeralKeyPair.privateKey)
-        val mac = Mac.getInstance("HmacSHA256")
-        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
-        val symmetricKey = mac.doFinal(ephemeralSharedSecret)
+        val ephemeralKeyPair = curve.generateKeyPair()
+        val ephemeralSharedSecret = curve.calculateAgreement(x25519PublicKey, ephemeralKeyPair.privateKey)
+        val symmetricKey = hmac.get()!!.doFinal(ephemeralSharedSecret)
         val ciphertext = encryptUsingAESGCM(plaintext, symmetricKey)
         return EncryptionResult(ciphertext, symmetricKey, ephemeralKeyPair.publicKey)
     }
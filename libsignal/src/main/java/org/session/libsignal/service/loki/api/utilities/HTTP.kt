@@ -1,8 +1,11 @@
 package org.session.libsignal.service.loki.api.utilities
 
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
 import okhttp3.*
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.JsonUtil
+import java.io.IOException
 import java.security.SecureRandom
 import java.security.cert.X509Certificate
 import java.util.concurrent.TimeUnit
@@ -31,9 +34,17 @@ object HTTP {
         }
         val sslContext = SSLContext.getInstance("SSL")
         sslContext.init(null, arrayOf( trustManager ), SecureRandom())
+        // Nearly all traffic goes to the same few guard snodes, so allow enough concurrent requests per host and keep
+        // their connections alive for long enough to be reused across polls
+        val dispatcher = Dispatcher()
+        dispatcher.maxRequests = maxConcurrentRequestCount
+        dispatcher.maxRequestsPerHost = maxConcurrentRequestCount
         OkHttpClient().newBuilder()
             .sslSocketFactory(sslContext.socketFactory, trustManager)
             .hostnameVerifier { _, _ -> true }
+            .connectionPool(ConnectionPool(maxIdleConnectionCount, keepAliveDuration, TimeUnit.MINUTES))
+            .protocols(listOf( Protocol.HTTP_2, Protocol.HTTP_1_1 ))
+            .dispatcher(dispatcher)
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
             .writeTimeout(timeout, TimeUnit.SECONDS)
@@ -41,6 +52,9 @@ object HTTP {
     }
 
     private const val timeout: Long = 20
+    private const val maxConcurrentRequestCount = 16
+    private const val maxIdleConnectionCount = 6
+    private const val keepAliveDuration: Long = 5 // Minutes
 
     class HTTPRequestFailedException(val statusCode: Int, val json: Map<*, *>?)
         : kotlin.Exception("HTTP request failed with status code $statusCode.")
@@ -72,6 +86,80 @@ object HTTP {
      * Sync. Don't call from the main thread.
      */
     fun execute(verb: Verb, url: String, body: ByteArray?, useSeedNodeConnection: Boolean = false): Map<*, *> {
+        val request = buildRequest(verb, url, body)
+        lateinit var response: Response
+        try {
+            val connection = if (useSeedNodeConnection) seedNodeConnection else defaultConnection
+            response = connection.newCall(request).execute()
+        } catch (exception: Exception) {
+            Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
+            // Override the actual error so that we can correctly catch failed requests in OnionRequestAPI
+            throw HTTPRequestFailedException(0, null)
+        }
+        return response.use { parseResponse(verb, url, it) { body -> parseJSON(body) } }
+    }
+
+    /**
+     * Async. The request is handed to the connection's dispatcher rather than occupying a thread while it waits for the
+     * response. The promise is fulfilled on one of the dispatcher's threads.
+     */
+    fun executeAsync(verb: Verb, url: String, body: ByteArray?, useSeedNodeConnection: Boolean = false): Promise<Map<*, *>, Exception> {
+        return executeAsync(verb, url, body, useSeedNodeConnection) { parseJSON(it) }
+    }
+
+    /**
+     * Like `executeAsync`, but hands the body of a successful response to `parse` so that it can be consumed as a
+     * stream. The body is closed after `parse` returns.
+     */
+    fun <T> executeAsync(verb: Verb, url: String, body: ByteArray?, useSeedNodeConnection: Boolean = false, parse: (ResponseBody) -> T): Promise<T, Exception> {
+        val deferred = deferred<T, Exception>()
+        val request: Request
+        try {
+            request = buildRequest(verb, url, body)
+        } catch (exception: Exception) {
+            return Promise.ofFail(exception)
+        }
+        val connection = if (useSeedNodeConnection) seedNodeConnection else defaultConnection
+        connection.newCall(request).enqueue(object : Callback {
+
+            override fun onFailure(call: Call, exception: IOException) {
+                Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
+                // Override the actual error so that we can correctly catch failed requests in OnionRequestAPI
+                deferred.reject(HTTPRequestFailedException(0, null))
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                try {
+                    deferred.resolve(response.use { parseResponse(verb, url, it, parse) })
+                } catch (exception: Exception) {
+                    deferred.reject(exception)
+                }
+            }
+        })
+        return deferred.promise
+    }
+
+    /**
+     * Opens (or keeps alive) a pooled connection to each of the given servers so that the next request to them doesn't
+     * have to wait for the TCP and TLS handshakes. Failures are ignored.
+     */
+    fun warmUpConnections(urls: Collection<String>) {
+        urls.forEach { url ->
+            val request = Request.Builder().url(url).get().build()
+            defaultConnection.newCall(request).enqueue(object : Callback {
+
+                override fun onFailure(call: Call, exception: IOException) {
+                    Log.d("Loki", "Couldn't warm up connection to $url due to error: ${exception.localizedMessage}.")
+                }
+
+                override fun onResponse(call: Call, response: Response) {
+                    response.close()
+                }
+            })
+        }
+    }
+
+    private fun buildRequest(verb: Verb, url: String, body: ByteArray?): Request {
         val request = Request.Builder().url(url)
         when (verb) {
             Verb.GET -> request.get()
@@ -83,22 +171,19 @@ object HTTP {
             }
             Verb.DELETE -> request.delete()
         }
-        lateinit var response: Response
-        try {
-            val connection = if (useSeedNodeConnection) seedNodeConnection else defaultConnection
-            response = connection.newCall(request.build()).execute()
-        } catch (exception: Exception) {
-            Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
-            // Override the actual error so that we can correctly catch failed requests in OnionRequestAPI
-            throw HTTPRequestFailedException(0, null)
-        }
+        return request.build()
+    }
+
+    private fun <T> parseResponse(verb: Verb, url: String, response: Response, parse: (ResponseBody) -> T): T {
         when (val statusCode = response.code()) {
             200 -> {
-                val bodyAsString = response.body()?.string() ?: throw Exception("An error occurred.")
+                val body = response.body() ?: throw Exception("An error occurred.")
                 try {
-                    return JsonUtil.fromJson(bodyAsString, Map::class.java)
-                } catch (exception: Exception) {
-                    return mapOf( "result" to bodyAsString)
+                    return parse(body)
+                } catch (exception: IOException) {
+                    Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
+                    // Override the actual error so that we can correctly catch failed requests in OnionRequestAPI
+                    throw HTTPRequestFailedException(0, null)
                 }
             }
             else -> {
@@ -107,4 +192,22 @@ object HTTP {
             }
         }
     }
+
+    private fun parseJSON(body: ResponseBody): Map<*, *> {
+        val source = body.source()
+        // Buffer the whole body without consuming it, so that it can still be returned as a string if it turns out not
+        // to be JSON
+        source.request(Long.MAX_VALUE)
+        val buffer = source.buffer()
+        // JSON bodies are parsed straight from the buffer; anything else (e.g. the base64 encoded result of an onion
+        // request) is returned as a string
+        if (buffer.size() > 0 && buffer.getByte(0) == '{'.toByte()) {
+            try {
+                return JsonUtil.fromJson(buffer.clone().inputStream(), Map::class.java)
+            } catch (exception: Exception) {
+                // Fall back on returning the body as a string
+            }
+        }
+        return mapOf( "result" to buffer.readUtf8() )
+    }
 }
@@ -15,8 +15,15 @@ interface LokiAPIDatabaseProtocol {
     fun setSwarm(publicKey: String, newValue: Set<Snode>)
     fun getLastMessageHashValue(snode: Snode, publicKey: String): String?
     fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String)
-    fun getReceivedMessageHashValues(publicKey: String): Set<String>?
-    fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>)
+    /**
+     * Returns the subset of `hashValues` that was already received for `publicKey`.
+     */
+    fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String>
+    /**
+     * Stores `hashValues` (hash value to expiration date in milliseconds) for `publicKey` in a single transaction.
+     */
+    fun addReceivedMessageHashValues(publicKey: String, hashValues: Map<String, Long>)
+    fun pruneReceivedMessageHashValues(now: Long)
     fun getAuthToken(server: String): String?
     fun setAuthToken(server: String, newValue: String?)
     fun getLastMessageServerID(group: Long, server: String): Long?
@@ -23,4 +23,16 @@ object ThreadUtils {
         return executor
     }
 
+    /**
+     * Returns a pool of at most `threadCount` threads that are torn down when idle. Tasks queue up rather than
+     * spawning additional threads.
+     */
+    @JvmStatic
+    fun newDynamicExecutor(threadCount: Int): ExecutorService {
+        val executor = ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                LinkedBlockingQueue())
+        executor.allowCoreThreadTimeOut(true)
+        return executor
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+package org.session.libsignal.service.loki.api.crypto
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import org.session.libsignal.service.loki.api.SnodeAPI
+import org.session.libsignal.utilities.Base64
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares `ProofOfWork.calculate` with the sequential search it replaced. Both are fed the same sequence of messages,
+ * as the number of trials needed varies a lot from one message to the next.
+ *
+ * Run with `./gradlew :libsignal:jmh -Pjmh=ProofOfWorkBenchmark`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@kotlin.ExperimentalUnsignedTypes
+open class ProofOfWorkBenchmark {
+    private val publicKey = "05d871fc80ca007eed9b2f4df72853e2a2d5465a92fcb1889fb5c84aa2833b3b40"
+    private val ttl = 24 * 60 * 60 * 1000
+    private val messageCount = 64
+    private var messageIndex = 0
+
+    @Param("1", "16")
+    @JvmField
+    var difficulty = 1
+
+    @Setup
+    fun setUp() {
+        SnodeAPI.powDifficulty = difficulty
+    }
+
+    @TearDown
+    fun tearDown() {
+        SnodeAPI.powDifficulty = 1
+    }
+
+    private fun nextTimestamp(): Long {
+        messageIndex = (messageIndex + 1) % messageCount
+        return 1610000000000L + messageIndex
+    }
+
+    @Benchmark
+    fun sequentialSearch(): String? {
+        val timestamp = nextTimestamp()
+        return SequentialProofOfWork.calculate("Message sent at $timestamp", publicKey, timestamp, ttl)
+    }
+
+    @Benchmark
+    fun parallelSearch(): String? {
+        val timestamp = nextTimestamp()
+        return ProofOfWork.calculate("Message sent at $timestamp", publicKey, timestamp, ttl)
+    }
+}
+
+/**
+ * The implementation `ProofOfWork` replaced, kept as is for reference.
+ */
+private object SequentialProofOfWork {
+    private val nonceSize = 8
+
+    @kotlin.ExperimentalUnsignedTypes
+    fun calculate(data: String, hexEncodedPublicKey: String, timestamp: Long, ttl: Int): String? {
+        val sha512 = MessageDigest.getInstance("SHA-512")
+        val payloadAsString = timestamp.toString() + ttl.toString() + hexEncodedPublicKey + data
+        val payload = payloadAsString.toByteArray()
+        val target = determineTarget(ttl, payload.size)
+        var currentTrialValue = ULong.MAX_VALUE
+        var nonce: Long = 0
+        val initialHash = sha512.digest(payload)
+        while (currentTrialValue > target) {
+            nonce += 1
+            val newHash = sha512.digest(nonce.toByteArray() + initialHash)
+            currentTrialValue = newHash.sliceArray(0 until nonceSize).toULong()
+        }
+        return Base64.encodeBytes(nonce.toByteArray())
+    }
+
+    @kotlin.ExperimentalUnsignedTypes
+    private fun determineTarget(ttl: Int, payloadSize: Int): ULong {
+        val x1 = BigInteger.valueOf(2).pow(16) - 1.toBigInteger()
+        val x2 = BigInteger.valueOf(2).pow(64) - 1.toBigInteger()
+        val size = (payloadSize + nonceSize).toBigInteger()
+        val ttlInSeconds = (ttl / 1000).toBigInteger()
+        val x3 = (ttlInSeconds * size) / x1
+        val x4 = size + x3
+        val x5 = SnodeAPI.powDifficulty.toBigInteger() * x4
+        return (x2 / x5).toLong().toULong()
+    }
+
+    private fun Long.toByteArray() = ByteBuffer.allocate(8).putLong(this).array()
+
+    @kotlin.ExperimentalUnsignedTypes
+    private fun ByteArray.toULong() = ByteBuffer.wrap(this).long.toULong()
+}
@@ -0,0 +1,90 @@
+package org.session.libsignal.service.loki.api.crypto
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.service.loki.api.SnodeAPI
+import org.session.libsignal.utilities.Base64
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+@kotlin.ExperimentalUnsignedTypes
+class ProofOfWorkTest {
+    private val publicKey = "05d871fc80ca007eed9b2f4df72853e2a2d5465a92fcb1889fb5c84aa2833b3b40"
+    private val ttl = 24 * 60 * 60 * 1000
+
+    @After
+    fun resetDifficulty() {
+        SnodeAPI.powDifficulty = 1
+    }
+
+    // region Reference Implementation
+    // Straightforward port of libloki/proof-of-work.js, using big integers throughout so that it can't share any
+    // signedness bugs with the implementation under test.
+    private fun getPayload(data: String, timestamp: Long): ByteArray {
+        return (timestamp.toString() + ttl.toString() + publicKey + data).toByteArray()
+    }
+
+    private fun getTarget(payload: ByteArray): BigInteger {
+        val size = BigInteger.valueOf(payload.size + 8L)
+        val x3 = BigInteger.valueOf(ttl / 1000L).multiply(size).divide(BigInteger.valueOf(65535))
+        val x4 = size.add(x3)
+        val x5 = BigInteger.valueOf(SnodeAPI.powDifficulty.toLong()).multiply(x4)
+        return BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE).divide(x5)
+    }
+
+    private fun getTrialValue(nonce: Long, payload: ByteArray): BigInteger {
+        val sha512 = MessageDigest.getInstance("SHA-512")
+        val initialHash = sha512.digest(payload)
+        val hash = sha512.digest(ByteBuffer.allocate(8).putLong(nonce).array() + initialHash)
+        return BigInteger(1, hash.copyOfRange(0, 8))
+    }
+
+    private fun findFirstValidNonce(payload: ByteArray): Long {
+        val target = getTarget(payload)
+        var nonce = 1L
+        while (getTrialValue(nonce, payload) > target) { nonce += 1 }
+        return nonce
+    }
+    // endregion
+
+    private fun calculate(data: String, timestamp: Long): Long {
+        val nonce = ProofOfWork.calculate(data, publicKey, timestamp, ttl)
+        assertNotNull(nonce)
+        return ByteBuffer.wrap(Base64.decode(nonce!!)).long
+    }
+
+    @Test
+    fun testSequentialSearchFindsFirstValidNonce() {
+        // About half of all trial values have their top bit set, so comparing them as signed integers would accept a
+        // different nonce for most of these inputs
+        for (timestamp in 1610000000000L until 1610000000050L) {
+            val data = "Message sent at $timestamp"
+            assertEquals(findFirstValidNonce(getPayload(data, timestamp)), calculate(data, timestamp))
+        }
+    }
+
+    @Test
+    fun testFirstNonceIsTried() {
+        val data = "Hello"
+        val timestamp = (1610000000000L until 1610000100000L).first { findFirstValidNonce(getPayload(data, it)) == 1L }
+        assertEquals(1L, calculate(data, timestamp))
+    }
+
+    @Test
+    fun testParallelSearchFindsValidNonce() {
+        // Raise the difficulty so that the expected number of trials exceeds what's searched on the calling thread
+        SnodeAPI.powDifficulty = 256
+        for (timestamp in 1610000000000L until 1610000000005L) {
+            val data = "Message sent at $timestamp"
+            val payload = getPayload(data, timestamp)
+            val nonce = calculate(data, timestamp)
+            // Workers race each other, so any valid nonce will do as long as it's not before the first one
+            assertTrue(nonce >= findFirstValidNonce(payload))
+            assertTrue(getTrialValue(nonce, payload) <= getTarget(payload))
+        }
+    }
+}